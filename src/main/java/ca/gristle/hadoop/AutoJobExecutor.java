@@ -0,0 +1,31 @@
+package ca.gristle.hadoop;
+
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapreduce.MRConfig;
+
+import java.io.IOException;
+
+/**
+ * Runs jobs in process when MapReduce is configured to run locally or the splits add up to at most
+ * LOCAL_MAX_BYTES, and submits them otherwise. Submitted jobs compute their splits a second time.
+ */
+public class AutoJobExecutor implements JobExecutor {
+    public void execute(JobConf conf) throws IOException {
+        LocalJobExecutor local = new LocalJobExecutor();
+        if(MRConfig.LOCAL_FRAMEWORK_NAME.equals(conf.get(MRConfig.FRAMEWORK_NAME, MRConfig.LOCAL_FRAMEWORK_NAME))) {
+            local.execute(conf);
+            return;
+        }
+        InputSplit[] splits = conf.getInputFormat().getSplits(conf, conf.getNumMapTasks());
+        long bytes = 0;
+        for(InputSplit split: splits) {
+            bytes += split.getLength();
+        }
+        if(bytes <= conf.getLong(LOCAL_MAX_BYTES, DEFAULT_LOCAL_MAX_BYTES)) {
+            local.execute(conf, splits);
+        } else {
+            new MapReduceJobExecutor().execute(conf);
+        }
+    }
+}
@@ -7,18 +7,13 @@ import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.NullWritable;
-import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.Reporter;
-import org.apache.hadoop.mapred.RunningJob;
 import org.apache.hadoop.mapred.lib.NullOutputFormat;
 
 import java.io.IOException;
 
 public class BalancedDistcp {
-    private static Thread shutdownHook;
-    private static RunningJob job = null;
-
     public static void distcp(String qualifiedSource, String qualifiedDest, int renameMode, PathLister lister) throws IOException {
         distcp(qualifiedSource, qualifiedDest, renameMode, lister, "");
     }
@@ -29,8 +24,12 @@ public class BalancedDistcp {
     }
 
     public static void distcp(String qualSource, String qualDest, int renameMode, PathLister lister, String extensionOnRename, Configuration configuration) throws IOException {
+        distcp(qualSource, qualDest, renameMode, lister, extensionOnRename, configuration, null);
+    }
+
+    public static void distcp(String qualSource, String qualDest, int renameMode, PathLister lister, String extensionOnRename, Configuration configuration, JobExecutor executor) throws IOException {
         FileCopyInputFormat.FileCopyArgs args = new FileCopyInputFormat.FileCopyArgs(qualSource, qualDest, renameMode, lister, extensionOnRename);
-        distcp(args, configuration);
+        distcp(args, configuration, executor);
     }
 
     public static void distcp(FileCopyInputFormat.FileCopyArgs args) throws IOException {
@@ -38,6 +37,13 @@ public class BalancedDistcp {
     }
 
     public static void distcp(FileCopyInputFormat.FileCopyArgs args, Configuration configuration) throws IOException {
+        distcp(args, configuration, null);
+    }
+
+    /**
+     * executor of null picks one with JobExecutor#fromConf.
+     */
+    public static void distcp(FileCopyInputFormat.FileCopyArgs args, Configuration configuration, JobExecutor executor) throws IOException {
         if(!Utils.hasScheme(args.source) || !Utils.hasScheme(args.dest))
             throw new IllegalArgumentException("source and dest must have schemes " + args.source + " " + args.dest);
 
@@ -57,22 +63,13 @@ public class BalancedDistcp {
         conf.setOutputKeyClass(NullWritable.class);
         conf.setOutputValueClass(NullWritable.class);
 
+        if(executor==null) executor = JobExecutor.fromConf(conf);
         try {
-            registerShutdownHook();
-            job = new JobClient(conf).submitJob(conf);
-
-            while(!job.isComplete()) {
-                Thread.sleep(100);
-            }
-
-            if(!job.isSuccessful()) throw new IOException("BalancedDistcp failed");
-            deregisterShutdownHook();
+            executor.execute(conf);
         } catch(IOException e) {
             IOException ret = new IOException("BalancedDistcp failed");
             ret.initCause(e);
             throw ret;
-        } catch(InterruptedException e) {
-            throw new RuntimeException(e);
         }
     }
 
@@ -99,26 +96,4 @@ public class BalancedDistcp {
         }
     }
 
-    private static void registerShutdownHook() {
-        shutdownHook = new Thread()
-        {
-            @Override
-            public void run()
-            {
-                try {
-                    if(job != null)
-                        job.killJob();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-
-            }
-        };
-        Runtime.getRuntime().addShutdownHook( shutdownHook );
-    }
-
-    private static void deregisterShutdownHook()
-    {
-        Runtime.getRuntime().removeShutdownHook( shutdownHook );
-    }
 }
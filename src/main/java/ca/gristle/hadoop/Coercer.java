@@ -8,22 +8,18 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.NullWritable;
-import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.Reporter;
-import org.apache.hadoop.mapred.RunningJob;
 import org.apache.hadoop.mapred.lib.NullOutputFormat;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 
 public class Coercer {
     private static final String FACTIN_ARG = "coercer_stream_factin_arg";
     private static final String FACTOUT_ARG = "coercer_stream_factout_arg";
 
-    private static Thread shutdownHook;
-    private static RunningJob job = null;
-
     public static void coerce(String source, String dest, int renameMode, PathLister lister, RecordStreamFactory factin, RecordStreamFactory factout) throws IOException {
         coerce(source, dest, renameMode, lister, factin, factout, "");
     }
@@ -34,6 +30,13 @@ public class Coercer {
 
 
     public static void coerce(String qualSource, String qualDest, int renameMode, PathLister lister, RecordStreamFactory factin, RecordStreamFactory factout, String extensionOnRename, Configuration configuration) throws IOException {
+        coerce(qualSource, qualDest, renameMode, lister, factin, factout, extensionOnRename, configuration, null);
+    }
+
+    /**
+     * executor of null picks one with JobExecutor#fromConf.
+     */
+    public static void coerce(String qualSource, String qualDest, int renameMode, PathLister lister, RecordStreamFactory factin, RecordStreamFactory factout, String extensionOnRename, Configuration configuration, JobExecutor executor) throws IOException {
         if(!Utils.hasScheme(qualSource) || !Utils.hasScheme(qualDest))
             throw new IllegalArgumentException("source and dest must have schemes " + qualSource + " " + qualDest);
 
@@ -57,46 +60,16 @@ public class Coercer {
         conf.setOutputKeyClass(NullWritable.class);
         conf.setOutputValueClass(NullWritable.class);
 
+        if(executor==null) executor = JobExecutor.fromConf(conf);
         try {
-            registerShutdownHook();
-            job = new JobClient(conf).submitJob(conf);
-            while(!job.isComplete()) {
-                Thread.sleep(100);
-            }
-
-            if(!job.isSuccessful()) throw new IOException("Coercer failed");
-            deregisterShutdownHook();
+            executor.execute(conf);
         } catch(IOException e) {
             IOException ret = new IOException("Coercer failed");
             ret.initCause(e);
             throw ret;
-        } catch(InterruptedException e) {
-            throw new RuntimeException(e);
         }
     }
 
-    private static void registerShutdownHook() {
-        shutdownHook = new Thread()
-        {
-            @Override
-            public void run()
-            {
-                try {
-                    if(job != null)
-                        job.killJob();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        };
-        Runtime.getRuntime().addShutdownHook( shutdownHook );
-    }
-
-    private static void deregisterShutdownHook()
-    {
-        Runtime.getRuntime().removeShutdownHook( shutdownHook );
-    }
-
     public static class CoercerMapper extends AbstractFileCopyMapper {
 
         RecordStreamFactory factin;
@@ -108,11 +81,11 @@ public class Coercer {
             RecordOutputStream fout = factout.getOutputStream(fsDest, target);
 
             try {
-                byte[] record;
+                ByteBuffer record;
                 int bytes = 0;
-                while((record = fin.readRawRecord()) != null) {
-                    fout.writeRaw(record);
-                    bytes+=record.length;
+                while((record = fin.readRecord()) != null) {
+                    fout.writeRaw(record.array(), record.arrayOffset() + record.position(), record.remaining());
+                    bytes+=record.remaining();
                     if(bytes >= 1000000) { //every 1 MB of data report progress so we don't time out on large files
                         bytes = 0;
                         reporter.progress();
@@ -0,0 +1,20 @@
+package ca.gristle.hadoop;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Told about the files a consolidation merged before their sources are deleted, so an index of the files
+ * (e.g. a bucket manifest) can swap them in one update and never name a file that's gone.
+ */
+public interface ConsolidationListener {
+    /**
+     * Called once, on the consolidating process, with each merged file and the sources it replaces. Sources
+     * are only deleted if this returns normally.
+     */
+    public void merged(FileSystem fs, Map<Path, List<Path>> merges) throws IOException;
+}
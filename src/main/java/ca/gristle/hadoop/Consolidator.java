@@ -5,6 +5,8 @@ import ca.gristle.hadoop.formats.RecordOutputStream;
 import ca.gristle.hadoop.formats.RecordStreamFactory;
 import ca.gristle.support.SubsetSum;
 import ca.gristle.support.Utils;
+import org.apache.hadoop.fs.CommonPathCapabilities;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.*;
@@ -15,17 +17,28 @@ import org.slf4j.LoggerFactory;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 
 public class Consolidator {
     public static final long DEFAULT_CONSOLIDATION_SIZE = 1024*1024*127; //127 MB
     private static final String ARGS = "consolidator_args";
+    private static final Logger LOG = LoggerFactory.getLogger(Consolidator.class);
 
-    private static Thread shutdownHook;
-    private static RunningJob job = null;
+    /**
+     * Whether to consolidate with FileSystem#concat, without rewriting any data, when both the filesystem and the
+     * format support it. Defaults to true.
+     */
+    public static final String CONCAT = "consolidator.concat";
+
+    /**
+     * The SubsetSum.Strategy files are grouped with. Defaults to best fit decreasing.
+     */
+    public static final String PACKING = "consolidator.packing";
 
     public static class ConsolidatorArgs implements Serializable {
         public String fsUri;
@@ -34,6 +47,8 @@ public class Consolidator {
         public List<String> dirs;
         public long targetSizeBytes;
         public String extension;
+        //merges planned before the job, whose sources are left for the driver to delete, or null
+        public List<ConsolidatorSplit> planned = null;
 
 
         public ConsolidatorArgs(String fsUri, RecordStreamFactory streams, PathLister pathLister,
@@ -82,10 +97,41 @@ public class Consolidator {
 
     public static void consolidate(FileSystem fs, RecordStreamFactory streams, PathLister lister, List<String> dirs,
         long targetSizeBytes, String extension) throws IOException {
+        consolidate(fs, streams, lister, dirs, targetSizeBytes, extension, null);
+    }
+
+    /**
+     * executor of null picks one with JobExecutor#fromConf.
+     */
+    public static void consolidate(FileSystem fs, RecordStreamFactory streams, PathLister lister, List<String> dirs,
+        long targetSizeBytes, String extension, JobExecutor executor) throws IOException {
+        consolidate(fs, streams, lister, dirs, targetSizeBytes, extension, executor, null);
+    }
+
+    /**
+     * Like consolidate, telling listener about the merged files before any source is deleted. The merges are
+     * planned up front and the sources deleted here once the job is done, including those of merges that
+     * finished when others failed. concat isn't used, since it consumes its sources as it joins them.
+     */
+    public static void consolidate(FileSystem fs, RecordStreamFactory streams, PathLister lister, List<String> dirs,
+        long targetSizeBytes, String extension, JobExecutor executor, ConsolidationListener listener) throws IOException {
+        if(listener==null && streams.canConcat() && fs.getConf().getBoolean(CONCAT, true)) {
+            dirs = concatConsolidate(fs, lister, dirs, targetSizeBytes, extension);
+            if(dirs.isEmpty()) return;
+        }
         JobConf conf = new JobConf(fs.getConf(), Consolidator.class);
         String fsUri = fs.getUri().toString();
         ConsolidatorArgs args = new ConsolidatorArgs(fsUri, streams, lister, dirs, targetSizeBytes, extension);
         Utils.setObject(conf, ARGS, args);
+        if(listener!=null) {
+            List<ConsolidatorSplit> planned = new ArrayList<ConsolidatorSplit>();
+            for(InputSplit split: new ConsolidatorInputFormat().getSplits(conf, 0)) {
+                planned.add((ConsolidatorSplit) split);
+            }
+            if(planned.isEmpty()) return;
+            args.planned = planned;
+            Utils.setObject(conf, ARGS, args);
+        }
 
         conf.setJobName("Consolidator: " + getDirsString(dirs));
 
@@ -100,45 +146,146 @@ public class Consolidator {
         conf.setOutputKeyClass(NullWritable.class);
         conf.setOutputValueClass(NullWritable.class);
 
+        if(executor==null) executor = JobExecutor.fromConf(conf);
         try {
-            registerShutdownHook();
-            job = new JobClient(conf).submitJob(conf);
-
-            while(!job.isComplete()) {
-                Thread.sleep(100);
-            }
-            if(!job.isSuccessful()) throw new IOException("Consolidator failed");
-            deregisterShutdownHook();
+            executor.execute(conf);
         } catch(IOException e) {
-
             IOException ret = new IOException("Consolidator failed");
             ret.initCause(e);
             throw ret;
-        } catch(InterruptedException e) {
-            throw new RuntimeException(e);
+        } finally {
+            if(args.planned!=null) commitMerges(fs, args, listener);
+        }
+    }
+
+    //a merged file only exists once it's complete, so every one that exists replaces its sources
+    private static void commitMerges(FileSystem fs, ConsolidatorArgs args, ConsolidationListener listener) throws IOException {
+        Map<Path, List<Path>> merges = new LinkedHashMap<Path, List<Path>>();
+        for(ConsolidatorSplit split: args.planned) {
+            Path target = new Path(split.target);
+            if(!fs.exists(target)) continue;
+            List<Path> sources = new ArrayList<Path>();
+            for(String source: split.sources) {
+                sources.add(new Path(source));
+            }
+            merges.put(target, sources);
+        }
+        if(merges.isEmpty()) return;
+        listener.merged(fs, merges);
+        for(List<Path> sources: merges.values()) {
+            for(Path p: sources) {
+                fs.delete(p, false);
+                deleteSidecars(fs, args.pathLister, p);
+            }
+        }
+    }
+
+
+    private static class StatusSize implements SubsetSum.Value {
+        FileStatus status;
+
+        StatusSize(FileStatus status) {
+            this.status = status;
+        }
+
+        public long getValue() {
+            return status.getLen();
         }
     }
 
-    private static void registerShutdownHook() {
-        shutdownHook = new Thread()
-        {
-            @Override
-            public void run()
-            {
-                try {
-                    if(job != null)
-                        job.killJob();
-                } catch (IOException e) {
-                    e.printStackTrace();
+    /**
+     * Consolidates the dirs whose filesystem supports concat, returning the dirs left for the job: those that
+     * don't support it and those where a concat failed.
+     */
+    private static List<String> concatConsolidate(FileSystem fs, PathLister lister, List<String> dirs,
+        long targetSizeBytes, String extension) throws IOException {
+        List<String> ret = new ArrayList<String>();
+        for(String dir: dirs) {
+            FileSystem dirfs = Utils.getFS(dir, fs.getConf());
+            if(!dirfs.hasPathCapability(new Path(dir), CommonPathCapabilities.FS_CONCAT)) {
+                ret.add(dir);
+                continue;
+            }
+            //concat only joins files in the same directory
+            Map<Path, List<StatusSize>> byParent = new HashMap<Path, List<StatusSize>>();
+            for(FileStatus status: lister.getFileStatuses(dirfs, dir)) {
+                List<StatusSize> siblings = byParent.get(status.getPath().getParent());
+                if(siblings==null) {
+                    siblings = new ArrayList<StatusSize>();
+                    byParent.put(status.getPath().getParent(), siblings);
+                }
+                siblings.add(new StatusSize(status));
+            }
+            try {
+                SubsetSum.Strategy strategy = SubsetSum.Strategy.fromConf(fs.getConf(), PACKING);
+                for(Map.Entry<Path, List<StatusSize>> e: byParent.entrySet()) {
+                    SubsetSum.Packing<StatusSize> packing = SubsetSum.pack(e.getValue(), targetSizeBytes, strategy);
+                    LOG.info("Concatenating " + e.getKey() + " into " + packing);
+                    for(List<StatusSize> group: packing.getBins()) {
+                        if(group.size() > 1) concat(dirfs, lister, e.getKey(), group, extension);
+                    }
                 }
+            } catch(IOException e) {
+                //every step leaves complete files behind, so the job can pick up wherever this stopped
+                LOG.warn("Could not consolidate " + dir + " with concat, rewriting it instead", e);
+                ret.add(dir);
             }
-        };
-        Runtime.getRuntime().addShutdownHook( shutdownHook );
+        }
+        return ret;
     }
 
-    private static void deregisterShutdownHook()
-    {
-        Runtime.getRuntime().removeShutdownHook( shutdownHook );
+    private static void concat(FileSystem fs, PathLister lister, Path parent, List<StatusSize> group, String extension) throws IOException {
+        List<FileStatus> sources = new ArrayList<FileStatus>();
+        List<Path> empty = new ArrayList<Path>();
+        for(StatusSize s: group) {
+            if(s.status.getLen()==0) empty.add(s.status.getPath());
+            else sources.add(s.status);
+        }
+        if(sources.size() > 1) {
+            //statuses from a manifest have no block size, so those sources are stat'ed
+            List<Path> unknown = new ArrayList<Path>();
+            for(FileStatus source: sources) {
+                if(source.getBlockSize() <= 0) unknown.add(source.getPath());
+            }
+            if(!unknown.isEmpty()) {
+                FileStatus[] stats = Utils.getFileStatuses(fs, unknown);
+                int next = 0;
+                for(int i=0; i<sources.size(); i++) {
+                    if(sources.get(i).getBlockSize() > 0) continue;
+                    if(stats[next]==null) throw new FileNotFoundException(unknown.get(next) + " was listed but does not exist");
+                    sources.set(i, stats[next++]);
+                }
+            }
+            //sources can't have a bigger block size than the file they're joined onto
+            Collections.sort(sources, new Comparator<FileStatus>() {
+                public int compare(FileStatus a, FileStatus b) {
+                    return Long.compare(b.getBlockSize(), a.getBlockSize());
+                }
+            });
+            //renamed first so nothing stored alongside the old name describes the joined file
+            Path target = new Path(parent, "cons" + UUID.randomUUID().toString() + extension);
+            if(!fs.rename(sources.get(0).getPath(), target))
+                throw new IOException("could not rename " + sources.get(0).getPath() + " to " + target);
+            Path[] rest = new Path[sources.size() - 1];
+            for(int i=1; i<sources.size(); i++) {
+                rest[i-1] = sources.get(i).getPath();
+            }
+            LOG.info("Concatenating " + sources.size() + " files into " + target);
+            fs.concat(target, rest);
+            for(FileStatus source: sources) {
+                deleteSidecars(fs, lister, source.getPath());
+            }
+        }
+        for(Path p: empty) {
+            fs.delete(p, false);
+            deleteSidecars(fs, lister, p);
+        }
+    }
+
+    private static void deleteSidecars(FileSystem fs, PathLister lister, Path file) throws IOException {
+        for(Path sidecar: lister.getSidecars(file)) {
+            fs.delete(sidecar, false);
+        }
     }
 
     public static class ConsolidatorMapper extends MapReduceBase implements Mapper<ArrayWritable, Text, NullWritable, NullWritable> {
@@ -171,12 +318,15 @@ public class Consolidator {
                 RecordOutputStream os = fact.getOutputStream(fs, tmpFile);
                 for(Path i: sources) {
                     LOG.info("Opening " + i.toString() + " for consolidation");
-                    RecordInputStream is = fact.getInputStream(fs, i);
-                    byte[] record;
-                    while((record = is.readRawRecord()) != null) {
-                        os.writeRaw(record);
+                    //copies the stored bytes when the source is compressed like the target
+                    if(!os.appendStored(fs, i)) {
+                        RecordInputStream is = fact.getInputStream(fs, i);
+                        ByteBuffer record;
+                        while((record = is.readRecord()) != null) {
+                            os.writeRaw(record.array(), record.arrayOffset() + record.position(), record.remaining());
+                        }
+                        is.close();
                     }
-                    is.close();
                     rprtr.progress();
                 }
                 os.close();
@@ -189,12 +339,16 @@ public class Consolidator {
                     throw new IOException("could not rename " + tmpFile.toString() + " to " + finalFile.toString());
             }
 
+            //left for the driver, which deletes them once the merge is recorded
+            if(args.planned!=null) return;
+
             String status = "Deleting " + sources.size() + " original files";
             LOG.info(status);
             rprtr.setStatus(status);
 
             for(Path p: sources) {
                 fs.delete(p, false);
+                deleteSidecars(fs, args.pathLister, p);
                 rprtr.progress();
             }
 
@@ -211,22 +365,29 @@ public class Consolidator {
         }
     }
 
-    public static class ConsolidatorSplit implements InputSplit {
+    public static class ConsolidatorSplit implements InputSplit, Serializable {
         public String[] sources;
         public String target;
+        //total size of the sources
+        public long bytes;
 
         public ConsolidatorSplit() {
 
         }
 
         public ConsolidatorSplit(String[] sources, String target) {
+            this(sources, target, 1);
+        }
+
+        public ConsolidatorSplit(String[] sources, String target, long bytes) {
             this.sources = sources;
             this.target = target;
+            this.bytes = bytes;
         }
 
 
         public long getLength() throws IOException {
-            return 1;
+            return bytes;
         }
 
         public String[] getLocations() throws IOException {
@@ -236,11 +397,13 @@ public class Consolidator {
         public void write(DataOutput d) throws IOException {
             WritableUtils.writeString(d, target);
             WritableUtils.writeStringArray(d, sources);
+            WritableUtils.writeVLong(d, bytes);
         }
 
         public void readFields(DataInput di) throws IOException {
             target = WritableUtils.readString(di);
             sources = WritableUtils.readStringArray(di);
+            bytes = WritableUtils.readVLong(di);
         }
 
     }
@@ -307,16 +470,23 @@ public class Consolidator {
 
         }
 
-        private List<PathSizePair> getFileSizePairs(FileSystem fs, List<Path> files) throws IOException {
+        private List<PathSizePair> getFileSizePairs(List<FileStatus> files) {
             List<PathSizePair> results = new ArrayList<PathSizePair>();
-            for(Path p: files) {
-                long size = fs.getContentSummary(p).getLength();
-                results.add(new PathSizePair(p, size));
+            for(FileStatus f: files) {
+                results.add(new PathSizePair(f.getPath(), f.getLen()));
             }
             return results;
         }
 
 
+        private long totalSize(List<PathSizePair> pairs) {
+            long ret = 0;
+            for(PathSizePair p: pairs) {
+                ret += p.size;
+            }
+            return ret;
+        }
+
         private String[] pathsToStrs(List<PathSizePair> pairs) {
             String[] ret = new String[pairs.size()];
             for(int i=0; i<pairs.size(); i++) {
@@ -325,18 +495,20 @@ public class Consolidator {
             return ret;
         }
 
-        private List<InputSplit> createSplits(FileSystem fs, List<Path> files,
-            String target, long targetSize, String extension) throws IOException {
-            List<PathSizePair> working = getFileSizePairs(fs, files);
+        private List<InputSplit> createSplits(List<FileStatus> files,
+            String target, long targetSize, String extension, SubsetSum.Strategy strategy) throws IOException {
+            List<PathSizePair> working = getFileSizePairs(files);
             List<InputSplit> ret = new ArrayList<InputSplit>();
-            List<List<PathSizePair>> splits = SubsetSum.split(working, targetSize);
+            SubsetSum.Packing<PathSizePair> packing = SubsetSum.pack(working, targetSize, strategy);
+            LOG.info("Consolidating " + target + " into " + packing);
+            List<List<PathSizePair>> splits = packing.getBins();
             for(List<PathSizePair> c: splits) {
                 if(c.size()>1) {
                     String rand = UUID.randomUUID().toString();
                     String targetFile = new Path(target,
                         "" + rand.charAt(0) + rand.charAt(1) + "/cons" +
                         rand + extension).toString();
-                    ret.add(new ConsolidatorSplit(pathsToStrs(c), targetFile));
+                    ret.add(new ConsolidatorSplit(pathsToStrs(c), targetFile, totalSize(c)));
 
                 }
             }
@@ -350,13 +522,15 @@ public class Consolidator {
 
         public InputSplit[] getSplits(JobConf conf, int ignored) throws IOException {
             ConsolidatorArgs args = (ConsolidatorArgs) Utils.getObject(conf, ARGS);
+            if(args.planned!=null) return args.planned.toArray(new InputSplit[args.planned.size()]);
             PathLister lister = args.pathLister;
             List<String> dirs = args.dirs;
             List<InputSplit> ret = new ArrayList<InputSplit>();
+            SubsetSum.Strategy strategy = SubsetSum.Strategy.fromConf(conf, PACKING);
             for(String dir: dirs) {
                 FileSystem fs = Utils.getFS(dir, conf);
-                ret.addAll(createSplits(fs, lister.getFiles(fs,dir),
-                    dir, args.targetSizeBytes, args.extension));
+                ret.addAll(createSplits(lister.getFileStatuses(fs,dir),
+                    dir, args.targetSizeBytes, args.extension, strategy));
             }
             return ret.toArray(new InputSplit[ret.size()]);
         }
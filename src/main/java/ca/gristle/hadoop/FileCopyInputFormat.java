@@ -3,11 +3,14 @@ package ca.gristle.hadoop;
 import ca.gristle.support.SubsetSum;
 import ca.gristle.support.Utils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.mapred.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.DataInput;
 import java.io.DataOutput;
@@ -21,6 +24,11 @@ public class FileCopyInputFormat implements InputFormat<Text, Text> {
     public static final String ARGS = "file_copy_args";
     public static final String WORK_PER_WORKER = "file_copy_work";
     public static final long DEFAULT_WORK_PER_WORKER = 256*1024*1024;
+    /**
+     * The SubsetSum.Strategy copies are grouped into splits with. Defaults to best fit decreasing.
+     */
+    public static final String PACKING = "file_copy_packing";
+    private static final Logger LOG = LoggerFactory.getLogger(FileCopyInputFormat.class);
 
 
     public static class FileCopyArgs implements Serializable {
@@ -61,16 +69,23 @@ public class FileCopyInputFormat implements InputFormat<Text, Text> {
     public static class FileCopySplit implements InputSplit {
 
         public List<FileCopy> copies;
+        //total size of the sources, so executors can tell how much work a job is
+        public long bytes;
 
         public FileCopySplit() {
         }
 
         public FileCopySplit(List<FileCopy> copies) {
+            this(copies, copies.size());
+        }
+
+        public FileCopySplit(List<FileCopy> copies, long bytes) {
             this.copies = copies;
+            this.bytes = bytes;
         }
 
         public long getLength() throws IOException {
-            return copies.size();
+            return bytes;
         }
 
         public String[] getLocations() throws IOException {
@@ -83,6 +98,7 @@ public class FileCopyInputFormat implements InputFormat<Text, Text> {
                 WritableUtils.writeString(d, copy.source);
                 WritableUtils.writeString(d, copy.target);
             }
+            WritableUtils.writeVLong(d, bytes);
         }
 
         public void readFields(DataInput di) throws IOException {
@@ -93,6 +109,7 @@ public class FileCopyInputFormat implements InputFormat<Text, Text> {
                 String target = WritableUtils.readString(di);
                 copies.add(new FileCopy(source, target));
             }
+            bytes = WritableUtils.readVLong(di);
         }
     }
 
@@ -150,6 +167,14 @@ public class FileCopyInputFormat implements InputFormat<Text, Text> {
         }
     }
 
+    private long getBytes(List<FileCopyAndSize> c) {
+        long ret = 0;
+        for(FileCopyAndSize f: c) {
+            ret += f.size;
+        }
+        return ret;
+    }
+
     private List<FileCopy> getFileCopies(List<FileCopyAndSize> c) {
         List<FileCopy> ret = new ArrayList<FileCopy>();
         for(FileCopyAndSize f: c) {
@@ -166,17 +191,24 @@ public class FileCopyInputFormat implements InputFormat<Text, Text> {
 
         long workPerWorker = conf.getLong(WORK_PER_WORKER, DEFAULT_WORK_PER_WORKER);
         List<FileCopyAndSize> all = new ArrayList<FileCopyAndSize>();
-        List<Path> fullPaths = args.lister.getFiles(fsSource, args.source);
-        for(Path p: fullPaths) {
-            long size = fsSource.getContentSummary(p).getLength();
-            Path destp;
+        List<FileStatus> sources = args.lister.getFileStatuses(fsSource, args.source);
+        List<Path> destPaths = new ArrayList<Path>(sources.size());
+        for(FileStatus source: sources) {
+            Path p = source.getPath();
             if(args.allToRoot) {
-                destp = new Path(args.dest, p.getName());
+                destPaths.add(new Path(args.dest, p.getName()));
             } else {
-                destp = new Path(args.dest, Utils.makeRelative(new Path(args.source), p));
+                destPaths.add(new Path(args.dest, Utils.makeRelative(new Path(args.source), p)));
             }
+        }
+        //one stat per target either way, but not one after another
+        FileStatus[] existing = Utils.getFileStatuses(fsDest, destPaths);
+        for(int i=0; i<sources.size(); i++) {
+            Path p = sources.get(i).getPath();
+            long size = sources.get(i).getLen();
+            Path destp = destPaths.get(i);
             String dest;
-            boolean targetExists = fsDest.exists(destp);
+            boolean targetExists = existing[i]!=null;
             if(targetExists || args.renameMode==RenameMode.ALWAYS_RENAME) {
                 if(args.renameMode != RenameMode.NO_RENAME && p.getName().endsWith(args.renamableExtension)) {
                     dest = new Path(destp.getParent(), "fc_" + UUID.randomUUID().toString() + args.renamableExtension).toString();
@@ -201,11 +233,13 @@ public class FileCopyInputFormat implements InputFormat<Text, Text> {
                 splits.add(l);
             }
         } else {
-            splits = SubsetSum.split(all, workPerWorker);
+            SubsetSum.Packing<FileCopyAndSize> packing = SubsetSum.pack(all, workPerWorker, SubsetSum.Strategy.fromConf(conf, PACKING));
+            LOG.info("Copying " + all.size() + " files in " + packing);
+            splits = packing.getBins();
         }
         InputSplit[] ret = new InputSplit[splits.size()];
         for(int i = 0; i < splits.size(); i++) {
-            ret[i] = new FileCopySplit(getFileCopies(splits.get(i)));
+            ret[i] = new FileCopySplit(getFileCopies(splits.get(i)), getBytes(splits.get(i)));
         }
 
         return ret;
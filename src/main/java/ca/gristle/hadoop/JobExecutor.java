@@ -0,0 +1,50 @@
+package ca.gristle.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.JobConf;
+
+import java.io.IOException;
+
+/**
+ * Runs the map-only jobs BalancedDistcp, Coercer and Consolidator describe with a JobConf: its input format,
+ * its mapper and a discarded output.
+ */
+public interface JobExecutor {
+    /**
+     * Which executor runs jobs when none is passed in: "mapreduce", "local" or "auto". Defaults to "auto",
+     * which runs jobs in process when they're smaller than LOCAL_MAX_BYTES or MapReduce runs locally anyway.
+     */
+    public static final String EXECUTOR = "gristle.job.executor";
+    public static final String EXECUTOR_MAPREDUCE = "mapreduce";
+    public static final String EXECUTOR_LOCAL = "local";
+    public static final String EXECUTOR_AUTO = "auto";
+
+    /**
+     * Largest total split length the auto executor runs in process. Defaults to 1GB.
+     */
+    public static final String LOCAL_MAX_BYTES = "gristle.job.local.max.bytes";
+    public static final long DEFAULT_LOCAL_MAX_BYTES = 1024L * 1024 * 1024;
+
+    /**
+     * Threads the in-process executor runs splits on. Defaults to the number of processors.
+     */
+    public static final String LOCAL_THREADS = "gristle.job.local.threads";
+
+    /**
+     * Returns when the job has succeeded. Throws IOException if it failed.
+     */
+    public void execute(JobConf conf) throws IOException;
+
+    public static JobExecutor fromConf(Configuration conf) {
+        String name = conf.get(EXECUTOR, EXECUTOR_AUTO);
+        if(name.equals(EXECUTOR_MAPREDUCE)) {
+            return new MapReduceJobExecutor();
+        } else if(name.equals(EXECUTOR_LOCAL)) {
+            return new LocalJobExecutor();
+        } else if(name.equals(EXECUTOR_AUTO)) {
+            return new AutoJobExecutor();
+        } else {
+            throw new IllegalArgumentException("Unknown job executor " + name);
+        }
+    }
+}
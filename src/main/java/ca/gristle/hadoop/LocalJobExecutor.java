@@ -0,0 +1,128 @@
+package ca.gristle.hadoop;
+
+import org.apache.hadoop.mapred.InputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs a job's mapper over its splits on a thread pool in this JVM, with no job submission. Each split gets its
+ * own configured mapper and, like a MapReduce task, up to JobConf#getMaxMapAttempts attempts. Anything the
+ * mapper collects is discarded.
+ */
+public class LocalJobExecutor implements JobExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(LocalJobExecutor.class);
+
+    private static final OutputCollector DISCARD = new OutputCollector() {
+        public void collect(Object key, Object value) {
+        }
+    };
+
+    private int _threads;
+
+    public LocalJobExecutor() {
+        this(0);
+    }
+
+    /**
+     * threads of 0 takes the number from LOCAL_THREADS.
+     */
+    public LocalJobExecutor(int threads) {
+        _threads = threads;
+    }
+
+    public void execute(JobConf conf) throws IOException {
+        execute(conf, conf.getInputFormat().getSplits(conf, getThreads(conf)));
+    }
+
+    /**
+     * Runs the job over splits already computed by its input format.
+     */
+    public void execute(final JobConf conf, InputSplit[] splits) throws IOException {
+        if(splits.length==0) return;
+        int threads = Math.min(splits.length, getThreads(conf));
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "local-job");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+            for(final InputSplit split: splits) {
+                tasks.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        runSplit(conf, split);
+                        return null;
+                    }
+                }));
+            }
+            for(Future<Void> task: tasks) {
+                task.get();
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch(ExecutionException e) {
+            IOException ret = new IOException("Job " + conf.getJobName() + " failed");
+            ret.initCause(e.getCause());
+            throw ret;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private int getThreads(JobConf conf) {
+        if(_threads > 0) return _threads;
+        return conf.getInt(LOCAL_THREADS, Runtime.getRuntime().availableProcessors());
+    }
+
+    private static void runSplit(JobConf conf, InputSplit split) throws IOException {
+        int attempts = Math.max(1, conf.getMaxMapAttempts());
+        for(int attempt=1; ; attempt++) {
+            try {
+                runAttempt(conf, split);
+                return;
+            } catch(IOException e) {
+                if(attempt >= attempts) throw e;
+                LOG.warn("Attempt " + attempt + " of a split of " + conf.getJobName() + " failed, retrying", e);
+            } catch(RuntimeException e) {
+                if(attempt >= attempts) throw e;
+                LOG.warn("Attempt " + attempt + " of a split of " + conf.getJobName() + " failed, retrying", e);
+            }
+        }
+    }
+
+    private static void runAttempt(JobConf conf, InputSplit split) throws IOException {
+        InputFormat format = conf.getInputFormat();
+        Mapper mapper = ReflectionUtils.newInstance(conf.getMapperClass(), conf);
+        RecordReader reader = format.getRecordReader(split, conf, Reporter.NULL);
+        try {
+            Object key = reader.createKey();
+            Object value = reader.createValue();
+            while(reader.next(key, value)) {
+                mapper.map(key, value, DISCARD, Reporter.NULL);
+            }
+        } finally {
+            reader.close();
+            mapper.close();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package ca.gristle.hadoop;
+
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RunningJob;
+
+import java.io.IOException;
+
+/**
+ * Submits jobs through JobClient and polls them until they finish. The job is killed if the JVM exits first.
+ */
+public class MapReduceJobExecutor implements JobExecutor {
+    public void execute(JobConf conf) throws IOException {
+        final RunningJob job = new JobClient(conf).submitJob(conf);
+        Thread shutdownHook = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    job.killJob();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        try {
+            while(!job.isComplete()) {
+                Thread.sleep(100);
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        }
+        if(!job.isSuccessful()) throw new IOException("Job " + conf.getJobName() + " failed");
+    }
+}
@@ -1,9 +1,15 @@
 package ca.gristle.hadoop;
 
+import ca.gristle.support.Utils;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -12,4 +18,26 @@ import java.util.List;
  */
 public interface PathLister extends Serializable {
     public List<Path> getFiles(FileSystem fs, String path);
+
+    /**
+     * The files getFiles returns along with their statuses, which planners take sizes from. Listers that get
+     * statuses from listing anyway should return those; this stats every file, Utils#STAT_THREADS at a time.
+     */
+    default List<FileStatus> getFileStatuses(FileSystem fs, String path) throws IOException {
+        List<Path> files = getFiles(fs, path);
+        FileStatus[] stats = Utils.getFileStatuses(fs, files);
+        List<FileStatus> ret = new ArrayList<FileStatus>(stats.length);
+        for(int i=0; i<stats.length; i++) {
+            if(stats[i]==null) throw new FileNotFoundException(files.get(i) + " was listed but does not exist");
+            ret.add(stats[i]);
+        }
+        return ret;
+    }
+
+    /**
+     * Files stored alongside file that describe it, which have to go when it's deleted or rewritten.
+     */
+    default List<Path> getSidecars(Path file) {
+        return Collections.emptyList();
+    }
 }
@@ -1,33 +1,89 @@
 package ca.gristle.hadoop.bucket;
 
+import ca.gristle.hadoop.formats.AsyncRecordOutputStream;
 import ca.gristle.hadoop.formats.RecordInputStream;
 import ca.gristle.hadoop.formats.RecordOutputStream;
+import ca.gristle.support.BloomFilter;
 import ca.gristle.support.Utils;
 import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 public abstract class AbstractBucket {
     public static final String EXTENSION = ".bucketfile";
     public static final String META_EXTENSION = ".metafile";
     public static final String META_TEMP_EXTENSION = ".metafiletmp";
+    public static final String BLOOM_EXTENSION = ".bloomfile";
+    public static final String STATS_EXTENSION = ".statsfile";
     private static final String TEMP_EXTENSION = ".bucketfiletmp";
 
-    private class BucketOutputStream implements RecordOutputStream {
+    /**
+     * Takes records along with the objects they were serialized from, so bloom filter keys and stats are
+     * taken from the objects rather than from the records deserialized again.
+     */
+    protected interface ObjectRecordOutputStream extends RecordOutputStream {
+        public void writeObject(Object obj, byte[] record) throws IOException;
 
+        /**
+         * Like writeRawBatch, with the object of each record.
+         */
+        public void writeObjectBatch(List<?> objs, byte[] packed, int[] offsets) throws IOException;
+    }
+
+    private class BucketOutputStream implements ObjectRecordOutputStream {
+
+        private String userfilename;
         private Path tempFile;
         private Path finalFile;
         private RecordOutputStream delegate;
+        //key hashes for the bloom filter, which can only be sized once every record has been written
+        private long[] hashes = null;
+        private int numHashes = 0;
+        private FileStats stats = null;
+        private long records = 0;
+        //how far close got, so a close that failed after the data was written out can be retried
+        private boolean delegateClosed = false;
+        private boolean renamed = false;
+        private boolean committed = false;
+        //set once the data may not all have been written, after which the file is never committed
+        private IOException failed = null;
 
         public BucketOutputStream(String userfilename, boolean overwrite) throws IOException {
+            this.userfilename = userfilename;
             tempFile = new Path(_instance_root, userfilename + TEMP_EXTENSION);
             finalFile = new Path(_instance_root, userfilename + EXTENSION);
             if(finalFile.getName().equals(EXTENSION)) throw new IllegalArgumentException("Cannot create empty user file name");
 
+            //checked before the temp file is open so a bad setting can't leak it
+            int buffers = getAsyncWriteBuffers();
             mkdirs(tempFile.getParent());
             if(exists(tempFile)) {
                 delete(tempFile, false);
@@ -36,6 +92,8 @@ public abstract class AbstractBucket {
 
             if(overwrite && exists(finalFile)) {
                 delete(finalFile, false);
+                deleteSidecars(userfilename);
+                onDelete(Collections.singletonList(userfilename));
             }
 
             if(exists(finalFile)) {
@@ -43,6 +101,13 @@ public abstract class AbstractBucket {
                 delete(tempFile, false);
                 throw new IOException("File already exists " + finalFile.toString());
             }
+
+            if(getBloomFilterFpp() > 0) hashes = new long[1024];
+            if(writesStats()) stats = new FileStats(getStatFields());
+
+            if(buffers > 0) {
+                delegate = new AsyncRecordOutputStream(delegate, buffers, getAsyncWriteBufferBytes());
+            }
         }
 
         public void writeRaw(byte[] record) throws IOException {
@@ -50,14 +115,157 @@ public abstract class AbstractBucket {
         }
 
         public void close() throws IOException {
-            delegate.close();
-            if(!rename(tempFile, finalFile)) {
-                throw new IOException("Unable to atomically create bucketfile with rename " + tempFile.toString());
+            if(committed) return;
+            checkFailed();
+            if(!renamed) {
+                if(!delegateClosed) {
+                    try {
+                        delegate.close();
+                    } catch(IOException e) {
+                        fail(e);
+                        throw e;
+                    } catch(RuntimeException e) {
+                        fail(e);
+                        throw e;
+                    }
+                    delegateClosed = true;
+                }
+                //written before the bucketfile appears, so a committed bucketfile always has its filter. One left
+                //by an earlier file of the same name would describe different records
+                long length = getLength(tempFile);
+                if(hashes!=null) writeBloomFilter(length);
+                else delete(toStoredBloomPath(userfilename), false);
+                if(stats!=null) writeStats(length);
+                else delete(toStoredStatsPath(userfilename), false);
+                if(!rename(tempFile, finalFile)) {
+                    throw new IOException("Unable to atomically create bucketfile with rename " + tempFile.toString());
+                }
+                renamed = true;
             }
+            onCommit(userfilename, records);
+            committed = true;
+        }
+
+        //the delegate may have lost records, so the temp file goes and a retried close can't commit what's left
+        private void fail(Exception cause) {
+            failed = new IOException("Writing bucketfile " + finalFile.toString() + " failed", cause);
+            try {
+                delete(tempFile, false);
+            } catch(IOException e) {
+                //the temp file is left for the next writer of this name to clear
+            }
+        }
+
+        private void checkFailed() throws IOException {
+            if(failed!=null) throw new IOException(failed.getMessage(), failed.getCause());
         }
 
         public void writeRaw(byte[] record, int start, int length) throws IOException {
-            delegate.writeRaw(record, start, length);
+            checkFailed();
+            if(hashes!=null || stats!=null) describe(deserializeRecord(record, start, length), length);
+            write(record, start, length);
+        }
+
+        public void writeObject(Object obj, byte[] record) throws IOException {
+            checkFailed();
+            if(hashes!=null || stats!=null) describe(obj, record.length);
+            write(record, 0, record.length);
+        }
+
+        private void write(byte[] record, int start, int length) throws IOException {
+            records++;
+            try {
+                delegate.writeRaw(record, start, length);
+            } catch(IOException e) {
+                fail(e);
+                throw e;
+            }
+        }
+
+        @Override
+        public void writeRawBatch(byte[] packed, int[] offsets, int count) throws IOException {
+            checkFailed();
+            if(hashes!=null || stats!=null) {
+                for(int i=0; i<count; i++) {
+                    int length = offsets[i+1] - offsets[i];
+                    describe(deserializeRecord(packed, offsets[i], length), length);
+                }
+            }
+            writeBatch(packed, offsets, count);
+        }
+
+        public void writeObjectBatch(List<?> objs, byte[] packed, int[] offsets) throws IOException {
+            checkFailed();
+            if(hashes!=null || stats!=null) {
+                for(int i=0; i<objs.size(); i++) {
+                    describe(objs.get(i), offsets[i+1] - offsets[i]);
+                }
+            }
+            writeBatch(packed, offsets, objs.size());
+        }
+
+        private void writeBatch(byte[] packed, int[] offsets, int count) throws IOException {
+            records += count;
+            try {
+                delegate.writeRawBatch(packed, offsets, count);
+            } catch(IOException e) {
+                fail(e);
+                throw e;
+            }
+        }
+
+        //adds the object's key to the bloom filter and its values to the stats
+        private void describe(Object obj, int length) {
+            if(hashes!=null) {
+                if(numHashes==hashes.length) hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                hashes[numHashes++] = BloomFilter.hash(getFilterKey(obj));
+            }
+            if(stats!=null) stats.add(length, getStatValues(obj));
+        }
+
+        private void writeBloomFilter(long length) throws IOException {
+            BloomFilter filter = BloomFilter.create(numHashes, getBloomFilterFpp());
+            for(int i=0; i<numHashes; i++) {
+                filter.add(hashes[i]);
+            }
+            writeSidecar(toStoredBloomPath(userfilename), filter.toBytes(), length);
+        }
+
+        private void writeStats(long length) throws IOException {
+            writeSidecar(toStoredStatsPath(userfilename), stats.toBytes(), length);
+        }
+    }
+
+    //the second record is the length of the bucketfile the sidecar describes
+    private void writeSidecar(Path path, byte[] contents, long length) throws IOException {
+        delete(path, false);
+        RecordOutputStream os = createMetadataOutputStream(path);
+        os.writeRaw(contents);
+        os.writeRaw(ByteBuffer.allocate(8).putLong(length).array());
+        os.close();
+    }
+
+    /**
+     * The contents of a sidecar, or null if there is none, it doesn't record the length of the bucketfile it
+     * describes, or it was written for a bucketfile of a different length than length, or than the bucketfile's
+     * current length if length is negative.
+     */
+    private byte[] readSidecar(Path path, String userfilename, long length) throws IOException {
+        if(!exists(path)) return null;
+        RecordInputStream is = createInputStream(path);
+        try {
+            byte[] ret = is.readRawRecord();
+            byte[] describes = is.readRawRecord();
+            //nothing ties a sidecar without a length to the bucketfile that's there now
+            if(describes==null || describes.length!=8) return null;
+            if(length < 0) {
+                Path stored = toStoredPath(userfilename);
+                if(!exists(stored)) return null;
+                length = getLength(stored);
+            }
+            return ByteBuffer.wrap(describes).getLong()==length ? ret : null;
+        } finally {
+            is.close();
         }
     }
 
@@ -76,6 +284,10 @@ public abstract class AbstractBucket {
     }
 
     public RecordOutputStream openWrite(String userfilename, boolean overwrite) throws IOException {
+        return openObjectWrite(userfilename, overwrite);
+    }
+
+    protected ObjectRecordOutputStream openObjectWrite(String userfilename, boolean overwrite) throws IOException {
         return new BucketOutputStream(userfilename, overwrite);
     }
 
@@ -98,7 +310,7 @@ public abstract class AbstractBucket {
         mkdirs(metaTmpPath.getParent());
         delete(metaPath, false);
         delete(metaTmpPath, false);
-        RecordOutputStream os = createOutputStream(metaTmpPath);
+        RecordOutputStream os = createMetadataOutputStream(metaTmpPath);
         os.writeRaw(("M" + metadata).getBytes("UTF-8")); //ensure that it's not an empty record
         os.close();
         rename(metaTmpPath, metaPath);
@@ -118,22 +330,280 @@ public abstract class AbstractBucket {
 
     protected abstract RecordInputStream createInputStream(Path path) throws IOException;
     protected abstract RecordOutputStream createOutputStream(Path path) throws IOException;
+
+    /**
+     * Stream for files that aren't bucketfiles, whose records aren't objects of the bucket's structure.
+     */
+    protected RecordOutputStream createMetadataOutputStream(Path path) throws IOException {
+        return createOutputStream(path);
+    }
     protected abstract boolean delete(Path path, boolean recursive) throws IOException;
     protected abstract boolean exists(Path path) throws IOException;
     protected abstract boolean rename(Path source, Path dest) throws IOException;
     protected abstract boolean mkdirs(Path path) throws IOException;
+    protected abstract long getLength(Path path) throws IOException;
     protected abstract FileStatus[] listStatus(Path path) throws IOException;
 
+    /**
+     * Lists path incrementally. Filesystems that page large directories should override this.
+     */
+    protected RemoteIterator<FileStatus> listStatusIterator(Path path) throws IOException {
+        return new ArrayRemoteIterator<FileStatus>(listStatus(path));
+    }
+
+    /**
+     * Lists every file below path in a single call, or returns null if the filesystem can't do that more
+     * cheaply than walking directory by directory.
+     */
+    protected RemoteIterator<LocatedFileStatus> listFilesRecursive(Path path) throws IOException {
+        return null;
+    }
+
+    protected Path qualify(Path path) {
+        return path;
+    }
+
+    /**
+     * Directories that listStatus leaves out. Flat listings apply the same filter.
+     */
+    protected boolean isHiddenDir(String name) {
+        return false;
+    }
+
+    /**
+     * Number of threads used to list subdirectories concurrently when walking the bucket.
+     */
+    protected int getListingThreads() {
+        return 1;
+    }
+
+    /**
+     * Number of buffers bucketfile writes are staged in while a background thread writes them out, or 0 to
+     * write on the caller's thread.
+     */
+    protected int getAsyncWriteBuffers() {
+        return 0;
+    }
+
+    protected int getAsyncWriteBufferBytes() {
+        return 1024 * 1024;
+    }
+
+    /**
+     * False positive probability of the bloom filters written alongside bucketfiles, or 0 to not write them.
+     */
+    protected double getBloomFilterFpp() {
+        return 0;
+    }
+
+    /**
+     * The object a record written raw holds, for getFilterKey and getStatValues. Only called when bloom
+     * filters or stats are written.
+     */
+    protected Object deserializeRecord(byte[] record, int start, int length) {
+        throw new UnsupportedOperationException("Bloom filters and stats need records with a structure");
+    }
+
+    /**
+     * Key of a record's object for bloom filters. Only called when getBloomFilterFpp is positive.
+     */
+    protected byte[] getFilterKey(Object obj) {
+        throw new UnsupportedOperationException("Bloom filters need keyed records");
+    }
+
+    /**
+     * Reads the bloom filter stored alongside a bucketfile, or returns null if it was written without one.
+     */
+    public BloomFilter readBloomFilter(String userfilename) throws IOException {
+        return readBloomFilter(userfilename, -1);
+    }
+
+    /**
+     * Like readBloomFilter, for a bucketfile already known to be length bytes long.
+     */
+    protected BloomFilter readBloomFilter(String userfilename, long length) throws IOException {
+        byte[] bytes = readSidecar(toStoredBloomPath(userfilename), userfilename, length);
+        return bytes==null ? null : BloomFilter.fromBytes(bytes);
+    }
+
+    /**
+     * Whether a FileStats sidecar is written alongside each bucketfile.
+     */
+    protected boolean writesStats() {
+        return false;
+    }
+
+    /**
+     * Fields whose min and max go in the stats. Only called when writesStats is true.
+     */
+    protected List<String> getStatFields() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Values of the stat fields for a record's object, or null if it has none.
+     */
+    protected byte[][] getStatValues(Object obj) {
+        return null;
+    }
+
+    /**
+     * Reads the stats stored alongside a bucketfile, or returns null if it was written without them.
+     */
+    public FileStats readStats(String userfilename) throws IOException {
+        return readStats(userfilename, -1);
+    }
+
+    /**
+     * Like readStats, for a bucketfile already known to be length bytes long.
+     */
+    protected FileStats readStats(String userfilename, long length) throws IOException {
+        byte[] bytes = readSidecar(toStoredStatsPath(userfilename), userfilename, length);
+        return bytes==null ? null : FileStats.fromBytes(bytes);
+    }
+
+    /**
+     * Called after a bucketfile holding records records has been atomically committed.
+     */
+    protected void onCommit(String userfilename, long records) throws IOException {
+    }
+
+    /**
+     * Called after bucketfiles have been deleted.
+     */
+    protected void onDelete(Collection<String> userfilenames) throws IOException {
+    }
+
+    /**
+     * Lists user files and their sizes without walking the directory tree, or returns null if that isn't possible.
+     */
+    protected Map<String, Long> getManifestUserFiles() throws IOException {
+        return null;
+    }
+
     public List<String> getUserFileNames() throws IOException {
+        Map<String, Long> manifested = getManifestUserFiles();
+        if(manifested!=null) return new ArrayList<String>(manifested.keySet());
         List<String> ret = new ArrayList<String>();
         getFilesHelper(new Path(_instance_root), "", EXTENSION, true, ret);
         return ret;
     }
 
+    /**
+     * User files mapped to their sizes in bytes, in the same order as getUserFileNames.
+     */
+    public Map<String, Long> getUserFileSizes() throws IOException {
+        Map<String, Long> manifested = getManifestUserFiles();
+        if(manifested!=null) return manifested;
+        return scanUserFiles("", true);
+    }
+
+    /**
+     * Lists user files lazily, so callers can start on the first files before the walk finishes.
+     */
+    public RemoteIterator<String> iterateUserFileNames() throws IOException {
+        return iterateUserFileNames((AttrPredicate) null);
+    }
+
+    /**
+     * Lists the user files in attribute directories attrs accepts, without listing directories it rules out.
+     * A null attrs lists everything.
+     */
+    public RemoteIterator<String> iterateUserFileNames(AttrPredicate attrs) throws IOException {
+        final RemoteIterator<Map.Entry<String, Long>> sizes = iterateUserFileSizes(attrs);
+        return new CloseableRemoteIterator<String>() {
+            public boolean hasNext() throws IOException {
+                return sizes.hasNext();
+            }
+
+            public String next() throws IOException {
+                return sizes.next().getKey();
+            }
+
+            public void close() throws IOException {
+                closeIterator(sizes);
+            }
+        };
+    }
+
+    /**
+     * Like iterateUserFileNames, along with the size of each file as listed or manifested.
+     */
+    public RemoteIterator<Map.Entry<String, Long>> iterateUserFileSizes(AttrPredicate attrs) throws IOException {
+        Map<String, Long> manifested = getManifestUserFiles();
+        if(manifested!=null) {
+            List<Map.Entry<String, Long>> files = new ArrayList<Map.Entry<String, Long>>();
+            for(Map.Entry<String, Long> e: manifested.entrySet()) {
+                if(acceptsFile(attrs, e.getKey())) files.add(e);
+            }
+            return new ArrayRemoteIterator<Map.Entry<String, Long>>(files.toArray(new Map.Entry[files.size()]));
+        }
+        Path root = new Path(_instance_root);
+        //a flat listing can't skip the directories attrs rules out
+        RemoteIterator<LocatedFileStatus> flat = attrs==null ? listFilesRecursive(root) : null;
+        final ListingIterator it = new ListingIterator(root, "", Collections.singletonList(EXTENSION), true, flat, true, attrs);
+        return new CloseableRemoteIterator<Map.Entry<String, Long>>() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public Map.Entry<String, Long> next() throws IOException {
+                String name = it.next();
+                return new AbstractMap.SimpleImmutableEntry<String, Long>(name, it.getStatus().getLen());
+            }
+
+            public void close() throws IOException {
+                it.close();
+            }
+        };
+    }
+
+    public List<String> getUserFileNames(AttrPredicate attrs) throws IOException {
+        RemoteIterator<String> it = iterateUserFileNames(attrs);
+        List<String> ret = new ArrayList<String>();
+        while(it.hasNext()) {
+            ret.add(it.next());
+        }
+        return ret;
+    }
+
+    public RemoteIterator<Path> iterateStoredFiles() throws IOException {
+        final RemoteIterator<String> names = iterateUserFileNames();
+        return new CloseableRemoteIterator<Path>() {
+            public boolean hasNext() throws IOException {
+                return names.hasNext();
+            }
+
+            public Path next() throws IOException {
+                return toStoredPath(names.next());
+            }
+
+            public void close() throws IOException {
+                closeIterator(names);
+            }
+        };
+    }
+
+    /**
+     * Stops a listing that won't be read to the end. Listings read ahead of the caller, so iterators from
+     * iterateUserFileNames and friends should be closed when they're abandoned.
+     */
+    public static void closeIterator(RemoteIterator<?> it) throws IOException {
+        if(it instanceof Closeable) ((Closeable) it).close();
+    }
+
     public Path toStoredPath(String userfilename) {
         return new Path(_instance_root, userfilename+EXTENSION);
     }
 
+    public Path toStoredBloomPath(String userfilename) {
+        return new Path(_instance_root, userfilename+BLOOM_EXTENSION);
+    }
+
+    public Path toStoredStatsPath(String userfilename) {
+        return new Path(_instance_root, userfilename+STATS_EXTENSION);
+    }
+
     public Path toStoredMetadataPath(String metadatafilename) {
         return new Path(_instance_root, metadatafilename+META_EXTENSION);
     }
@@ -145,13 +615,28 @@ public abstract class AbstractBucket {
 
     public void delete(String userfilename) throws IOException {
         delete(toStoredPath(userfilename), false);
+        deleteSidecars(userfilename);
+        onDelete(Collections.singletonList(userfilename));
+    }
+
+    protected void deleteSidecars(String userfilename) throws IOException {
+        delete(toStoredBloomPath(userfilename), false);
+        delete(toStoredStatsPath(userfilename), false);
     }
 
     public List<Path> getStoredFiles() throws IOException {
-        List<String> userfiles = getUserFileNames();
+        RemoteIterator<Path> it = iterateStoredFiles();
         List<Path> ret = new ArrayList<Path>();
-        for(String u: userfiles) {
-            ret.add(toStoredPath(u));
+        while(it.hasNext()) {
+            ret.add(it.next());
+        }
+        return ret;
+    }
+
+    public List<Path> getStoredFiles(AttrPredicate attrs) throws IOException {
+        List<Path> ret = new ArrayList<Path>();
+        for(String name: getUserFileNames(attrs)) {
+            ret.add(toStoredPath(name));
         }
         return ret;
     }
@@ -172,6 +657,44 @@ public abstract class AbstractBucket {
         return ret;
     }
 
+    /**
+     * Statuses of the stored files, in the same order as getStoredFiles, taken from the listing rather than by
+     * stat'ing each file. A manifest only records sizes, so when there is one the statuses hold just the path and
+     * length, and a block size of 0 says it isn't known.
+     */
+    public List<FileStatus> getStoredFileStatuses() throws IOException {
+        List<FileStatus> ret = new ArrayList<FileStatus>();
+        Map<String, Long> manifested = getManifestUserFiles();
+        if(manifested!=null) {
+            for(Map.Entry<String, Long> e: manifested.entrySet()) {
+                ret.add(new FileStatus(e.getValue(), false, 0, 0, 0, toStoredPath(e.getKey())));
+            }
+            return ret;
+        }
+        List<String> names = new ArrayList<String>();
+        getFilesHelper(new Path(_instance_root), "", Collections.singletonList(EXTENSION), true, names, ret);
+        for(int i=0; i<names.size(); i++) {
+            ret.get(i).setPath(toStoredPath(names.get(i)));
+        }
+        return ret;
+    }
+
+    /**
+     * Statuses of the files getStoredFilesAndMetadata returns, from one listing.
+     */
+    public List<FileStatus> getStoredFileStatusesAndMetadata() throws IOException {
+        List<String> relFiles = new ArrayList<String>();
+        List<FileStatus> ret = new ArrayList<FileStatus>();
+        List<String> extensions = new ArrayList<String>();
+        extensions.add(META_EXTENSION);
+        extensions.add(EXTENSION);
+        getFilesHelper(new Path(_instance_root), "", extensions, false, relFiles, ret);
+        for(int i=0; i<relFiles.size(); i++) {
+            ret.get(i).setPath(new Path(_instance_root, relFiles.get(i)));
+        }
+        return ret;
+    }
+
     public List<Path> getStoredFilesAndMetadata() throws IOException {
         List<String> relFiles = new ArrayList<String>();
         List<String> extensions = new ArrayList<String>();
@@ -215,6 +738,36 @@ public abstract class AbstractBucket {
         return ret;
     }
 
+    /**
+     * Walks subdir for bucketfiles, ignoring any manifest. Returns user file names mapped to file sizes.
+     */
+    protected Map<String, Long> scanUserFiles(String subdir, boolean recursive) throws IOException {
+        Path absDir;
+        if(subdir.length()==0) {
+            absDir = new Path(_instance_root);
+        } else {
+            absDir = new Path(_instance_root, subdir);
+        }
+        Map<String, Long> ret = new LinkedHashMap<String, Long>();
+        if(!exists(absDir)) return ret;
+        if(recursive) {
+            List<String> names = new ArrayList<String>();
+            List<FileStatus> stats = new ArrayList<FileStatus>();
+            getFilesHelper(absDir, subdir, Collections.singletonList(EXTENSION), true, names, stats);
+            for(int i=0; i<names.size(); i++) {
+                ret.put(names.get(i), stats.get(i).getLen());
+            }
+        } else {
+            for(FileStatus stat: listStatus(absDir)) {
+                String filename = relify(subdir, stat.getPath().getName());
+                if(!stat.isDir() && filename.endsWith(EXTENSION) && stat.getLen()>0) {
+                    ret.put(Utils.stripExtension(filename, EXTENSION), stat.getLen());
+                }
+            }
+        }
+        return ret;
+    }
+
     public List<String> getAttrsAtDir(String subdir) throws IOException {
         return readDir(subdir, true);
     }
@@ -246,25 +799,451 @@ public abstract class AbstractBucket {
     }
 
     private void getFilesHelper(Path abs, String rel, List<String> extensions, boolean stripExtension, List<String> files) throws IOException {
-        FileStatus[] contents = listStatus(abs);
-        for(FileStatus stat: contents) {
-            Path p = stat.getPath();
-            if(stat.isDir()) {
-                getFilesHelper(p, relify(rel, stat.getPath().getName()), extensions, stripExtension, files);
+        getFilesHelper(abs, rel, extensions, stripExtension, files, null);
+    }
+
+    private void getFilesHelper(Path abs, String rel, List<String> extensions, boolean stripExtension, List<String> files, List<FileStatus> stats) throws IOException {
+        RemoteIterator<LocatedFileStatus> flat = listFilesRecursive(abs);
+        if(flat==null && getListingThreads() > 1) {
+            getFilesParallel(abs, rel, extensions, stripExtension, files, stats);
+        } else {
+            ListingIterator it = new ListingIterator(abs, rel, extensions, stripExtension, flat, false);
+            try {
+                while(it.hasNext()) {
+                    files.add(it.next());
+                    if(stats!=null) stats.add(it.getStatus());
+                }
+            } finally {
+                it.close();
+            }
+        }
+    }
+
+    private void addFile(FileStatus stat, String filename, List<String> extensions, boolean stripExtension, List<String> files, List<FileStatus> stats) {
+        String match = matchFile(stat, filename, extensions, stripExtension);
+        if(match!=null) {
+            files.add(match);
+            if(stats!=null) stats.add(stat);
+        }
+    }
+
+    private String matchFile(FileStatus stat, String filename, List<String> extensions, boolean stripExtension) {
+        for(String extension: extensions) {
+            if(filename.endsWith(extension) && stat.getLen()>0) {
+                if(stripExtension) {
+                    return Utils.stripExtension(filename, extension);
+                } else {
+                    return filename;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static List<String> attrsOf(String filename) {
+        String[] components = filename.split("/");
+        return Arrays.asList(components).subList(0, components.length - 1);
+    }
+
+    private static boolean acceptsFile(AttrPredicate attrs, String filename) {
+        return attrs==null || attrs.accept(attrsOf(filename));
+    }
+
+    private static boolean acceptsDir(AttrPredicate attrs, String dirname) {
+        return attrs==null || attrs.mightAccept(Arrays.asList(dirname.split("/")));
+    }
+
+    private boolean isHiddenPath(String sub) {
+        String[] components = sub.split("/");
+        //the last component is the file itself, which the directory walk never filters
+        for(int i=0; i<components.length-1; i++) {
+            if(isHiddenDir(components[i])) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether a walk could visit a path listed in key order at or after listed before path, which is when a
+     * directory named by a prefix of path followed by a character sorting before the separator may yet be listed.
+     */
+    static boolean isHeldBack(String path, String listed) {
+        for(int i=0; i<path.length(); i++) {
+            if(path.charAt(i) >= '/') continue;
+            String dir = path.substring(0, i) + '/';
+            if(listed.startsWith(dir) || listed.compareTo(dir) < 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Orders paths the way a depth first walk over name ordered directories visits them, which is string order
+     * with the separator sorting before any other character.
+     */
+    static int comparePaths(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        for(int i=0; i<n; i++) {
+            char ca = a.charAt(i);
+            char cb = b.charAt(i);
+            if(ca==cb) continue;
+            if(ca=='/') return -1;
+            if(cb=='/') return 1;
+            return ca < cb ? -1 : 1;
+        }
+        return a.length() - b.length();
+    }
+
+    //listing pools by thread count, shared by every bucket and left to wind down when idle
+    private static final Map<Integer, ThreadPoolExecutor> LISTING_POOLS = new HashMap<Integer, ThreadPoolExecutor>();
+
+    private static synchronized ThreadPoolExecutor getListingPool(int threads) {
+        ThreadPoolExecutor ret = LISTING_POOLS.get(threads);
+        if(ret==null) {
+            ret = newListingPool(threads);
+            LISTING_POOLS.put(threads, ret);
+        }
+        return ret;
+    }
+
+    private static ThreadPoolExecutor newListingPool(int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "bucket-lister");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        //pools are never shut down, so idle threads have to go away on their own
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    protected static abstract class CloseableRemoteIterator<T> implements RemoteIterator<T>, Closeable {
+    }
+
+    private static class ArrayRemoteIterator<T> implements RemoteIterator<T> {
+        private T[] _arr;
+        private int _pos = 0;
+
+        public ArrayRemoteIterator(T[] arr) {
+            _arr = arr;
+        }
+
+        public boolean hasNext() {
+            return _pos < _arr.length;
+        }
+
+        public T next() {
+            if(!hasNext()) throw new NoSuchElementException();
+            return _arr[_pos++];
+        }
+    }
+
+    /**
+     * Depth-first walk that only holds the listings of the directories on the current path. With more
+     * than one listing thread, the subdirectories of the directories on the path are listed ahead while
+     * earlier entries are consumed, nearest first and at most twice as many as there are threads. The order
+     * is the same as the materialized listings. A flat listing is put into the order a walk over name ordered
+     * directories would give as it streams, holding back only the files a directory not yet listed could
+     * still precede, which is about one directory's worth. Directory listings still open are closed with the
+     * iterator, so one abandoned before the end must be closed.
+     */
+    private class ListingIterator implements RemoteIterator<String>, Closeable {
+        private class Frame {
+            String rel;
+            RemoteIterator<FileStatus> contents;
+            Map<Path, Future<FileStatus[]>> prefetched;
+            LinkedList<Path> unfetched;
+        }
+
+        private class FlatFile {
+            String sub;
+            LocatedFileStatus stat;
+        }
+
+        private List<String> _extensions;
+        private boolean _strip;
+        private RemoteIterator<LocatedFileStatus> _flat;
+        private Path _flatAbs;
+        private String _flatRoot;
+        private String _flatRel;
+        private PriorityQueue<FlatFile> _held;
+        private ThreadPoolExecutor _pool = null;
+        private int _maxPrefetched;
+        private int _prefetched = 0;
+        private LinkedList<Frame> _stack = new LinkedList<Frame>();
+        private String _next;
+        private FileStatus _nextStatus;
+        private FileStatus _status;
+        private AttrPredicate _attrs;
+
+        public ListingIterator(Path abs, String rel, List<String> extensions, boolean stripExtension, RemoteIterator<LocatedFileStatus> flat, boolean prefetch) throws IOException {
+            this(abs, rel, extensions, stripExtension, flat, prefetch, null);
+        }
+
+        public ListingIterator(Path abs, String rel, List<String> extensions, boolean stripExtension, RemoteIterator<LocatedFileStatus> flat, boolean prefetch, AttrPredicate attrs) throws IOException {
+            _attrs = attrs;
+            _extensions = extensions;
+            _strip = stripExtension;
+            _flat = flat;
+            if(_flat!=null) {
+                _flatAbs = abs;
+                _flatRel = rel;
+                _flatRoot = qualify(abs).toUri().getPath();
+                if(!_flatRoot.endsWith("/")) _flatRoot = _flatRoot + "/";
+                _held = new PriorityQueue<FlatFile>(11, new Comparator<FlatFile>() {
+                    public int compare(FlatFile a, FlatFile b) {
+                        return comparePaths(a.sub, b.sub);
+                    }
+                });
+            } else {
+                if(prefetch && getListingThreads() > 1) {
+                    _pool = getListingPool(getListingThreads());
+                    _maxPrefetched = 2 * getListingThreads();
+                }
+                _stack.push(openFrame(abs, rel, null));
+                prefetch();
+            }
+            advance();
+        }
+
+        public boolean hasNext() {
+            return _next!=null;
+        }
+
+        public String next() throws IOException {
+            if(_next==null) throw new NoSuchElementException();
+            String ret = _next;
+            _status = _nextStatus;
+            advance();
+            return ret;
+        }
+
+        /**
+         * Status of the file last returned by next, as listed.
+         */
+        public FileStatus getStatus() {
+            return _status;
+        }
+
+        private Frame openFrame(Path abs, String rel, Future<FileStatus[]> listing) throws IOException {
+            Frame ret = new Frame();
+            ret.rel = rel;
+            if(_pool==null) {
+                ret.contents = listStatusIterator(abs);
             } else {
-                String filename = relify(rel, stat.getPath().getName());
-                for(String extension: extensions) {
-                    if(filename.endsWith(extension) && stat.getLen()>0) {
-                        String toAdd;
-                        if(stripExtension) {
-                            toAdd = Utils.stripExtension(filename, extension);
-                        } else {
-                            toAdd = filename;
+                FileStatus[] contents = listing==null ? listStatus(abs) : await(listing);
+                ret.contents = new ArrayRemoteIterator<FileStatus>(contents);
+                ret.prefetched = new HashMap<Path, Future<FileStatus[]>>();
+                ret.unfetched = new LinkedList<Path>();
+                for(FileStatus stat: contents) {
+                    if(stat.isDir() && acceptsDir(_attrs, relify(rel, stat.getPath().getName()))) {
+                        ret.unfetched.add(stat.getPath());
+                    }
+                }
+            }
+            return ret;
+        }
+
+        //lists ahead the subdirectories the walk reaches soonest, those of the deepest directories first
+        private void prefetch() {
+            if(_pool==null) return;
+            for(Frame frame: _stack) {
+                while(!frame.unfetched.isEmpty()) {
+                    if(_prefetched >= _maxPrefetched) return;
+                    final Path dir = frame.unfetched.removeFirst();
+                    frame.prefetched.put(dir, _pool.submit(new Callable<FileStatus[]>() {
+                        public FileStatus[] call() throws IOException {
+                            return listStatus(dir);
                         }
-                        files.add(toAdd);
-                        break;
+                    }));
+                    _prefetched++;
+                }
+            }
+        }
+
+        private Future<FileStatus[]> takePrefetched(Frame frame, Path dir) {
+            if(frame.prefetched==null) return null;
+            Future<FileStatus[]> ret = frame.prefetched.remove(dir);
+            if(ret!=null) _prefetched--;
+            else frame.unfetched.remove(dir);
+            return ret;
+        }
+
+        private void cancel(Frame frame) throws IOException {
+            if(frame.prefetched!=null) {
+                for(Future<FileStatus[]> listing: frame.prefetched.values()) {
+                    listing.cancel(true);
+                    _prefetched--;
+                }
+                frame.prefetched.clear();
+            }
+            closeIterator(frame.contents);
+        }
+
+        /**
+         * Cancels the listings made ahead, closes the ones still open and stops the walk.
+         */
+        public void close() throws IOException {
+            IOException failed = null;
+            while(!_stack.isEmpty()) {
+                try {
+                    cancel(_stack.pop());
+                } catch(IOException e) {
+                    if(failed==null) failed = e;
+                }
+            }
+            RemoteIterator<LocatedFileStatus> flat = _flat;
+            _next = null;
+            _flat = null;
+            _held = null;
+            if(flat!=null) {
+                try {
+                    closeIterator(flat);
+                } catch(IOException e) {
+                    if(failed==null) failed = e;
+                }
+            }
+            if(failed!=null) throw failed;
+        }
+
+        private void abandon() {
+            try {
+                close();
+            } catch(IOException e) {
+                //the failure that stopped the walk is the one worth reporting
+            }
+        }
+
+        private void advance() throws IOException {
+            _next = null;
+            try {
+                if(_flat!=null) {
+                    advanceFlat();
+                } else if(!_stack.isEmpty()) {
+                    advanceWalk();
+                }
+            } catch(IOException e) {
+                abandon();
+                throw e;
+            } catch(RuntimeException e) {
+                abandon();
+                throw e;
+            }
+        }
+
+        //flat listings come in key order, where "a-b" sorts before "a/x", so files wait in walk order until
+        //nothing listed later can come before them
+        private void advanceFlat() throws IOException {
+            while(true) {
+                FlatFile listed = null;
+                if(_flat.hasNext()) {
+                    LocatedFileStatus stat = _flat.next();
+                    String full = stat.getPath().toUri().getPath();
+                    if(!full.startsWith(_flatRoot)) {
+                        throw new IOException(stat.getPath().toString() + " was listed under " + _flatAbs.toString() + " but is not within it");
+                    }
+                    listed = new FlatFile();
+                    listed.sub = full.substring(_flatRoot.length());
+                    listed.stat = stat;
+                    if(isHiddenPath(listed.sub)) continue;
+                }
+                while(!_held.isEmpty() && (listed==null || !isHeldBack(_held.peek().sub, listed.sub))) {
+                    FlatFile file = _held.poll();
+                    if(found(file.stat, relify(_flatRel, file.sub))) {
+                        if(listed!=null) _held.add(listed);
+                        return;
+                    }
+                }
+                if(listed==null) return;
+                _held.add(listed);
+            }
+        }
+
+        private void advanceWalk() throws IOException {
+            while(!_stack.isEmpty()) {
+                Frame frame = _stack.peek();
+                if(!frame.contents.hasNext()) {
+                    cancel(_stack.pop());
+                    continue;
+                }
+                FileStatus stat = frame.contents.next();
+                String filename = relify(frame.rel, stat.getPath().getName());
+                if(stat.isDir()) {
+                    if(!acceptsDir(_attrs, filename)) continue;
+                    Future<FileStatus[]> listing = takePrefetched(frame, stat.getPath());
+                    _stack.push(openFrame(stat.getPath(), filename, listing));
+                    prefetch();
+                } else if(found(stat, filename)) {
+                    return;
+                }
+            }
+        }
+
+        private boolean found(FileStatus stat, String filename) {
+            _next = matchFile(stat, filename, _extensions, _strip);
+            if(_next!=null && !acceptsFile(_attrs, filename)) _next = null;
+            _nextStatus = stat;
+            return _next!=null;
+        }
+    }
+
+    private static class DirListing {
+        FileStatus[] contents;
+        Future<DirListing>[] children;
+    }
+
+    private Future<DirListing> submitListing(final ExecutorService pool, final Path abs, final AtomicBoolean abandoned) {
+        return pool.submit(new Callable<DirListing>() {
+            public DirListing call() throws IOException {
+                DirListing ret = new DirListing();
+                ret.contents = abandoned.get() ? new FileStatus[0] : listStatus(abs);
+                ret.children = new Future[ret.contents.length];
+                //subdirectories are listed as soon as their parent is, so the whole tree expands concurrently
+                for(int i=0; i<ret.contents.length; i++) {
+                    if(ret.contents[i].isDir()) {
+                        ret.children[i] = submitListing(pool, ret.contents[i].getPath(), abandoned);
                     }
                 }
+                return ret;
+            }
+        });
+    }
+
+    private void getFilesParallel(Path abs, String rel, List<String> extensions, boolean stripExtension, List<String> files, List<FileStatus> stats) throws IOException {
+        //the pool is shared, so a failed walk stops what it queued by leaving the rest of the tree unlisted
+        AtomicBoolean abandoned = new AtomicBoolean(false);
+        boolean done = false;
+        try {
+            collectListing(submitListing(getListingPool(getListingThreads()), abs, abandoned), rel, extensions, stripExtension, files, stats);
+            done = true;
+        } finally {
+            if(!done) abandoned.set(true);
+        }
+    }
+
+    //consumes listings in the same depth-first order as the serial walk so the results are identical
+    private void collectListing(Future<DirListing> future, String rel, List<String> extensions, boolean stripExtension, List<String> files, List<FileStatus> stats) throws IOException {
+        DirListing listing = await(future);
+        for(int i=0; i<listing.contents.length; i++) {
+            FileStatus stat = listing.contents[i];
+            String filename = relify(rel, stat.getPath().getName());
+            if(stat.isDir()) {
+                collectListing(listing.children[i], filename, extensions, stripExtension, files, stats);
+            } else {
+                addFile(stat, filename, extensions, stripExtension, files, stats);
             }
         }
     }
@@ -1,47 +1,235 @@
 package ca.gristle.hadoop.bucket;
 
-import org.apache.hadoop.conf.Configuration;
+import ca.gristle.hadoop.formats.MappedFileInputStream;
+import ca.gristle.support.ChannelOutputStream;
 import org.apache.hadoop.fs.FileStatus;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 /*
- * This class exists to get around lack of syncing in Hadoop local filesystem. Collector uses this to create output streams
+ * Bucket operations on the local disk through java.nio, bypassing Hadoop's local filesystem and its .crc files.
+ * Collector uses this to create output streams: createLocalOutputStream writes through a FileChannel and can
+ * fsync on close, which Hadoop's local filesystem doesn't do. Listings are walked lazily one DirectoryStream at
+ * a time, so they stream and skip the directories an AttrPredicate rules out. Each DirectoryStream stays open
+ * until its directory is read or the listing is closed.
  */
 public abstract class AbstractLocalBucket extends AbstractBucket {
-
-    private FileSystem _lfs;
+    private int _writeBufferBytes = 64 * 1024;
+    private boolean _syncOnClose = false;
 
     public AbstractLocalBucket(String instance_root) throws IOException {
         super(instance_root);
-        _lfs = FileSystem.getLocal(new Configuration());
+    }
+
+    /**
+     * Size of the buffer createLocalOutputStream writes through.
+     */
+    public AbstractLocalBucket setWriteBufferBytes(int bytes) {
+        _writeBufferBytes = bytes;
+        return this;
+    }
+
+    /**
+     * Whether createLocalOutputStream forces written data to disk when it's closed, before the bucketfile is
+     * renamed into place.
+     */
+    public AbstractLocalBucket setSyncOnClose(boolean sync) {
+        _syncOnClose = sync;
+        return this;
+    }
+
+    protected OutputStream createLocalOutputStream(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(toNio(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new ChannelOutputStream(channel, _writeBufferBytes, _syncOnClose);
+    }
+
+    protected InputStream createLocalInputStream(Path path) throws IOException {
+        return new MappedFileInputStream(toNio(path).toFile(), MappedFileInputStream.DEFAULT_SEGMENT_BYTES);
+    }
+
+    private static java.nio.file.Path toNio(Path path) {
+        return Paths.get(path.toUri().getPath());
+    }
+
+    private static Path fromNio(java.nio.file.Path path) {
+        //not toUri(), which ends directories with a slash
+        return new Path("file", null, path.toAbsolutePath().toString());
+    }
+
+    //checksum files left behind by Hadoop's local filesystem, which it hides from listings
+    private static boolean isChecksumFile(java.nio.file.Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(".") && name.endsWith(".crc");
+    }
+
+    //what Hadoop filesystems throw when listing a missing path
+    private static FileNotFoundException notFound(Path path) {
+        return new FileNotFoundException("File " + path + " does not exist");
+    }
+
+    private static FileStatus toStatus(java.nio.file.Path path, BasicFileAttributes attrs) {
+        return new FileStatus(attrs.isDirectory() ? 0 : attrs.size(), attrs.isDirectory(), 1, 0, attrs.lastModifiedTime().toMillis(), fromNio(path));
     }
 
     @Override
     protected boolean delete(Path path, boolean recursive) throws IOException {
-        return _lfs.delete(path, recursive);
+        java.nio.file.Path p = toNio(path);
+        if(!Files.exists(p, LinkOption.NOFOLLOW_LINKS)) return false;
+        if(Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+            if(!recursive) {
+                DirectoryStream<java.nio.file.Path> contents = Files.newDirectoryStream(p);
+                try {
+                    if(contents.iterator().hasNext()) throw new IOException("Directory " + path + " is not empty");
+                } finally {
+                    contents.close();
+                }
+            }
+            Files.walkFileTree(p, new SimpleFileVisitor<java.nio.file.Path>() {
+                @Override
+                public FileVisitResult visitFile(java.nio.file.Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(java.nio.file.Path dir, IOException e) throws IOException {
+                    if(e!=null) throw e;
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } else {
+            Files.delete(p);
+            Files.deleteIfExists(p.resolveSibling("." + p.getFileName() + ".crc"));
+        }
+        return true;
     }
 
     @Override
     protected boolean exists(Path path) throws IOException {
-        return _lfs.exists(path);
+        return Files.exists(toNio(path));
     }
 
+    /**
+     * Like Hadoop's rename this fails rather than replacing an existing file. A plain rename(2) replaces its
+     * target, so files are linked under the new name, which fails if it's taken, and then unlinked from the old.
+     */
     @Override
     protected boolean rename(Path source, Path dest) throws IOException {
-        return _lfs.rename(source, dest);
+        java.nio.file.Path from = toNio(source);
+        java.nio.file.Path to = toNio(dest);
+        try {
+            if(Files.isDirectory(from, LinkOption.NOFOLLOW_LINKS)) {
+                Files.move(from, to);
+            } else {
+                Files.createLink(to, from);
+                Files.delete(from);
+            }
+        } catch(FileAlreadyExistsException e) {
+            return false;
+        } catch(NoSuchFileException e) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected long getLength(Path path) throws IOException {
+        try {
+            return Files.size(toNio(path));
+        } catch(NoSuchFileException e) {
+            throw notFound(path);
+        }
     }
 
     @Override
     protected boolean mkdirs(Path path) throws IOException {
-        return _lfs.mkdirs(path);
+        try {
+            Files.createDirectories(toNio(path));
+        } catch(FileAlreadyExistsException e) {
+            return false;
+        }
+        return true;
     }
 
     @Override
     protected FileStatus[] listStatus(Path path) throws IOException {
-        return _lfs.listStatus(path);
+        List<FileStatus> ret = new ArrayList<FileStatus>();
+        RemoteIterator<FileStatus> it = listStatusIterator(path);
+        try {
+            while(it.hasNext()) {
+                ret.add(it.next());
+            }
+        } finally {
+            closeIterator(it);
+        }
+        return ret.toArray(new FileStatus[ret.size()]);
     }
 
+    /**
+     * Holds the directory open until it's exhausted or closed, so an iterator given up on early must be closed.
+     */
+    @Override
+    protected RemoteIterator<FileStatus> listStatusIterator(Path path) throws IOException {
+        final DirectoryStream<java.nio.file.Path> stream;
+        try {
+            stream = Files.newDirectoryStream(toNio(path));
+        } catch(NoSuchFileException e) {
+            throw notFound(path);
+        }
+        final Iterator<java.nio.file.Path> it = stream.iterator();
+        return new CloseableRemoteIterator<FileStatus>() {
+            private FileStatus _next = null;
+
+            public boolean hasNext() throws IOException {
+                while(_next==null && it.hasNext()) {
+                    java.nio.file.Path p = it.next();
+                    if(isChecksumFile(p)) continue;
+                    try {
+                        _next = toStatus(p, Files.readAttributes(p, BasicFileAttributes.class));
+                    } catch(NoSuchFileException e) {
+                        //deleted since it was listed
+                    }
+                }
+                if(_next==null) stream.close();
+                return _next!=null;
+            }
+
+            public FileStatus next() throws IOException {
+                if(!hasNext()) throw new NoSuchElementException();
+                FileStatus ret = _next;
+                _next = null;
+                return ret;
+            }
+
+            public void close() throws IOException {
+                stream.close();
+            }
+        };
+    }
+
+    @Override
+    protected Path qualify(Path path) {
+        return fromNio(toNio(path));
+    }
 }
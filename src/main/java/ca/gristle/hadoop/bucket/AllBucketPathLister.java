@@ -7,8 +7,22 @@ import java.util.List;
 
 
 public class AllBucketPathLister implements BucketPathLister {
+    private AttrPredicate _attrs;
+
+    public AllBucketPathLister() {
+        this(null);
+    }
+
+    /**
+     * Lists only the attribute directories attrs accepts, without descending into the rest.
+     */
+    public AllBucketPathLister(AttrPredicate attrs) {
+        _attrs = attrs;
+    }
+
     public List<Path> getPaths(Bucket p) throws IOException {
-        return p.getStoredFiles();
+        if(_attrs==null) return p.getStoredFiles();
+        return p.getStoredFiles(_attrs);
     }
 
 }
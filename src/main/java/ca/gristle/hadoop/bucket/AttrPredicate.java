@@ -0,0 +1,74 @@
+package ca.gristle.hadoop.bucket;
+
+import org.apache.hadoop.fs.GlobPattern;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Selects bucketfiles by the attribute directories they're in, relative to the bucket being read, i.e. the
+ * components of BucketStructure#getTarget. Listings skip directories mightAccept rules out without listing
+ * them.
+ */
+public interface AttrPredicate extends Serializable {
+    /**
+     * Whether files directly in the directory with these attributes are read.
+     */
+    public boolean accept(List<String> attrs);
+
+    /**
+     * False if no directory at or below these attributes can be accepted, so the listing doesn't descend
+     * into it.
+     */
+    default boolean mightAccept(List<String> prefix) {
+        return true;
+    }
+
+    /**
+     * Matches attribute paths like "2024/0[1-3]/*" component by component with glob syntax. Files are only
+     * accepted at exactly the pattern's depth.
+     */
+    public static AttrPredicate glob(String pattern) {
+        return new Glob(pattern);
+    }
+
+    public static class Glob implements AttrPredicate {
+        private String _pattern;
+        private transient GlobPattern[] _components;
+
+        public Glob(String pattern) {
+            _pattern = pattern;
+            getComponents();
+        }
+
+        private GlobPattern[] getComponents() {
+            if(_components==null) {
+                String[] parts = _pattern.length()==0 ? new String[0] : _pattern.split("/");
+                GlobPattern[] components = new GlobPattern[parts.length];
+                for(int i=0; i<parts.length; i++) {
+                    components[i] = new GlobPattern(parts[i]);
+                }
+                _components = components;
+            }
+            return _components;
+        }
+
+        public boolean accept(List<String> attrs) {
+            return attrs.size()==getComponents().length && mightAccept(attrs);
+        }
+
+        public boolean mightAccept(List<String> prefix) {
+            GlobPattern[] components = getComponents();
+            if(prefix.size() > components.length) return false;
+            for(int i=0; i<prefix.size(); i++) {
+                if(!components[i].matches(prefix.get(i))) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return _pattern;
+        }
+    }
+}
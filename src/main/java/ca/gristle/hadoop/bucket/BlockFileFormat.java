@@ -0,0 +1,265 @@
+package ca.gristle.hadoop.bucket;
+
+import ca.gristle.hadoop.formats.BlockFile;
+import ca.gristle.hadoop.formats.BlockFileInputStream;
+import ca.gristle.hadoop.formats.BlockFileOutputStream;
+import ca.gristle.hadoop.formats.MappedFileInputStream;
+import ca.gristle.hadoop.formats.RecordInputStream;
+import ca.gristle.hadoop.formats.RecordOutputStream;
+import ca.gristle.support.KeywordArgParser;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Varint-framed records grouped into separately compressed blocks, with an index of block offsets at the end of
+ * the file. See BlockFile for the layout.
+ */
+public class BlockFileFormat implements BucketFormat {
+    public static final String CODEC_ARG = "compressionCodec";
+    public static final String BLOCK_SIZE_ARG = "blockSize";
+
+    public static final String CODEC_ARG_NONE = "none";
+    public static final String CODEC_ARG_DEFAULT = "default";
+    public static final String CODEC_ARG_GZIP = "gzip";
+    public static final String CODEC_ARG_BZIP2 = "bzip2";
+
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+    private static final Map<String, CompressionCodec> CODECS = new HashMap<String, CompressionCodec>() {{
+        put(CODEC_ARG_DEFAULT, new DefaultCodec());
+        put(CODEC_ARG_GZIP, new GzipCodec());
+        put(CODEC_ARG_BZIP2, new BZip2Codec());
+    }};
+
+    private String _codecArg;
+    private int _blockSize;
+
+    public BlockFileFormat(Map<String, Object> args) {
+        args = new KeywordArgParser()
+                .add(CODEC_ARG, CODEC_ARG_DEFAULT, false, CODEC_ARG_NONE, CODEC_ARG_DEFAULT, CODEC_ARG_GZIP, CODEC_ARG_BZIP2)
+                .add(BLOCK_SIZE_ARG, DEFAULT_BLOCK_SIZE, false)
+                .parse(args);
+        _codecArg = (String) args.get(CODEC_ARG);
+        _blockSize = Integer.parseInt(args.get(BLOCK_SIZE_ARG).toString());
+        if(_blockSize <= 0) throw new IllegalArgumentException("Block size must be positive: " + _blockSize);
+    }
+
+    public RecordInputStream getInputStream(FileSystem fs, Path path) throws IOException {
+        return new BlockFileInputStream(MappedFileInputStream.open(fs, path), fs.getConf());
+    }
+
+    /**
+     * Every offset in a block file is relative to its own segment, so concatenated files read as one.
+     */
+    @Override
+    public boolean canConcat() {
+        return true;
+    }
+
+    public RecordOutputStream getOutputStream(FileSystem fs, Path path) throws IOException {
+        return createBlockFileOutputStream(fs, path);
+    }
+
+    protected BlockFileOutputStream createBlockFileOutputStream(FileSystem fs, Path path) throws IOException {
+        CompressionCodec codec = CODECS.get(_codecArg);
+        //the shared instances have no Configuration, which codecs need to pick their compressors
+        if(codec!=null) codec = ReflectionUtils.newInstance(codec.getClass(), fs.getConf());
+        return new BlockFileOutputStream(fs.create(path), codec, _blockSize);
+    }
+
+    /**
+     * Picks among chunks of BucketSampler#CHUNK_BYTES bytes and reads the blocks that start in picked chunks,
+     * so each block is picked with the sampler's probability. Only files with a picked chunk are opened, and
+     * then once, seeking from run to run of picked blocks.
+     */
+    @Override
+    public RecordInputStream getSampleInputStream(FileSystem fs, Path path, long length, BucketSampler sampler) throws IOException {
+        List<long[]> chunks = sampler.pickRanges(length, BucketSampler.getChunkBytes(fs.getConf()));
+        if(chunks.isEmpty()) return RecordInputStream.EMPTY;
+        FSDataInputStream in = MappedFileInputStream.open(fs, path);
+        final List<long[]> runs;
+        final BlockFileInputStream is;
+        try {
+            runs = pickBlocks(BlockFile.readIndex(in, length, path), length, chunks);
+            if(runs.isEmpty()) {
+                in.close();
+                return RecordInputStream.EMPTY;
+            }
+            is = new BlockFileInputStream(in, fs.getConf(), length, runs.get(0)[0], runs.get(0)[1]);
+        } catch(IOException e) {
+            in.close();
+            throw e;
+        }
+        return new RecordInputStream() {
+            private int _run = 0;
+
+            public byte[] readRawRecord() throws IOException {
+                while(true) {
+                    byte[] record = is.readRawRecord();
+                    if(record!=null) return record;
+                    if(++_run==runs.size()) return null;
+                    is.seek(runs.get(_run)[0], runs.get(_run)[1]);
+                }
+            }
+
+            public void close() throws IOException {
+                is.close();
+            }
+        };
+    }
+
+    /**
+     * The blocks starting in the given chunks, as [start, end) runs of consecutive blocks.
+     */
+    static List<long[]> pickBlocks(List<BlockFile.BlockInfo> blocks, long length, List<long[]> chunks) {
+        List<long[]> ret = new ArrayList<long[]>();
+        int chunk = 0;
+        for(int i=0; i<blocks.size() && chunk<chunks.size(); i++) {
+            long offset = blocks.get(i).getOffset();
+            while(chunk<chunks.size() && chunks.get(chunk)[1] <= offset) chunk++;
+            if(chunk==chunks.size() || offset < chunks.get(chunk)[0]) continue;
+            long next = i + 1 < blocks.size() ? blocks.get(i + 1).getOffset() : length;
+            long[] last = ret.isEmpty() ? null : ret.get(ret.size() - 1);
+            if(last!=null && last[1]==offset) {
+                last[1] = next;
+            } else {
+                ret.add(new long[] {offset, next});
+            }
+        }
+        return ret;
+    }
+
+    public Class<? extends InputFormat> getInputFormatClass() {
+        return BlockFileBucketInputFormat.class;
+    }
+
+    public static class BlockFileBucketRecordReader implements RecordReader<Text, BytesWritable> {
+        private static Logger LOG = LoggerFactory.getLogger(BlockFileBucketRecordReader.class);
+
+        BucketInputSplit split;
+        BlockFileInputStream is;
+
+        public BlockFileBucketRecordReader(JobConf conf, BucketInputSplit split) throws IOException {
+            this.split = split;
+            LOG.info("Processing bucket file " + split.getPath().toString());
+            FileSystem fs = split.getPath().getFileSystem(conf);
+            long length = fs.getFileStatus(split.getPath()).getLen();
+            is = new BlockFileInputStream(MappedFileInputStream.open(fs, split.getPath()), conf, length, split.getStart(), split.getStart() + split.getLength());
+        }
+
+        public boolean next(Text k, BytesWritable v) throws IOException {
+            ByteBuffer record = is.readRecord();
+            if(record==null) return false;
+            k.set(split.getBucketRelPath());
+            v.set(record.array(), record.arrayOffset() + record.position(), record.remaining());
+            return true;
+        }
+
+        public Text createKey() {
+            return new Text();
+        }
+
+        public BytesWritable createValue() {
+            return new BytesWritable();
+        }
+
+        public long getPos() throws IOException {
+            return is.getPos();
+        }
+
+        public void close() throws IOException {
+            is.close();
+        }
+
+        public float getProgress() throws IOException {
+            if(split.getLength()==0) return 1.0f;
+            return Math.min(1.0f, (is.getPos() - split.getStart()) / (float) split.getLength());
+        }
+    }
+
+    public static class BlockFileBucketInputFormat extends FileInputFormat<Text, BytesWritable> {
+        private Bucket _currBucket;
+
+        /**
+         * Splits each file on block boundaries, grouping consecutive blocks up to the usual split size.
+         */
+        @Override
+        public InputSplit[] getSplits(JobConf job, int numSplits) throws IOException {
+            List<InputSplit> ret = new ArrayList<InputSplit>();
+            Path[] roots = FileInputFormat.getInputPaths(job);
+            long minSize = job.getLong(org.apache.hadoop.mapreduce.lib.input.FileInputFormat.SPLIT_MINSIZE, 1);
+            for(int i=0; i < roots.length; i++) {
+                _currBucket = new Bucket(roots[i].toString());
+                FileSystem fs = _currBucket.getFileSystem();
+                FileStatus[] files = listStatus(job);
+                long totalSize = 0;
+                for(FileStatus file: files) {
+                    totalSize += file.getLen();
+                }
+                long goalSize = totalSize / Math.max(1, numSplits);
+                BucketSampler sampler = BucketSampler.fromConf(job);
+                long chunkBytes = BucketSampler.getChunkBytes(job);
+                for(FileStatus file: files) {
+                    if(sampler!=null) {
+                        //the index is only read for files with picked chunks
+                        List<long[]> chunks = sampler.pickRanges(file.getLen(), chunkBytes);
+                        if(chunks.isEmpty()) continue;
+                        for(long[] run: pickBlocks(BlockFile.readIndex(fs, file.getPath()), file.getLen(), chunks)) {
+                            addSplit(job, fs, file, run[0], run[1], ret);
+                        }
+                        continue;
+                    }
+                    long splitSize = computeSplitSize(goalSize, minSize, file.getBlockSize());
+                    List<BlockFile.BlockInfo> blocks = BlockFile.readIndex(fs, file.getPath());
+                    int start = 0;
+                    while(start < blocks.size()) {
+                        long startOffset = blocks.get(start).getOffset();
+                        int end = start + 1;
+                        while(end < blocks.size() && blocks.get(end).getOffset() - startOffset < splitSize) {
+                            end++;
+                        }
+                        long endOffset = end < blocks.size() ? blocks.get(end).getOffset() : file.getLen();
+                        FileSplit split = new FileSplit(file.getPath(), startOffset, endOffset - startOffset, BucketFormatFactory.getSplitHosts(fs, file, startOffset, endOffset - startOffset));
+                        ret.add(new BucketInputSplit(fs, _currBucket.getInstanceRoot(), _currBucket.getSpec(), job, split));
+                        start = end;
+                    }
+                }
+            }
+            return ret.toArray(new InputSplit[ret.size()]);
+        }
+
+        private void addSplit(JobConf job, FileSystem fs, FileStatus file, long start, long end, List<InputSplit> splits) throws IOException {
+            FileSplit split = new FileSplit(file.getPath(), start, end - start, BucketFormatFactory.getSplitHosts(fs, file, start, end - start));
+            splits.add(new BucketInputSplit(fs, _currBucket.getInstanceRoot(), _currBucket.getSpec(), job, split));
+        }
+
+        @Override
+        protected FileStatus[] listStatus(JobConf job) throws IOException {
+            return BucketFormatFactory.getBucketFileStatuses(_currBucket, job);
+        }
+
+        @Override
+        public RecordReader<Text, BytesWritable> getRecordReader(InputSplit split, JobConf job, Reporter reporter) throws IOException {
+            return new BlockFileBucketRecordReader(job, (BucketInputSplit) split);
+        }
+    }
+}
@@ -1,26 +1,62 @@
 package ca.gristle.hadoop.bucket;
 
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import ca.gristle.hadoop.Coercer;
 import ca.gristle.hadoop.PathLister;
 import ca.gristle.hadoop.RenameMode;
+import ca.gristle.hadoop.formats.BlockFile;
 import ca.gristle.hadoop.formats.RecordInputStream;
 import ca.gristle.hadoop.formats.RecordOutputStream;
+import ca.gristle.support.BloomFilter;
 import ca.gristle.support.Utils;
 import ca.gristle.hadoop.BalancedDistcp;
+import ca.gristle.hadoop.ConsolidationListener;
 import ca.gristle.hadoop.Consolidator;
+import ca.gristle.hadoop.JobExecutor;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,46 +65,198 @@ public class Bucket<T> extends AbstractBucket implements Iterable<T>{
 
     public static final String META = "bucket.meta";
 
+    /**
+     * Threads used to list subdirectories concurrently. Defaults to 1 (a serial walk).
+     */
+    public static final String LISTING_THREADS = "bucket.listing.threads";
+
+    /**
+     * Whether to list with a single recursive FileSystem#listFiles call. Defaults to doing so only when the
+     * filesystem implements its own recursive listing (as object stores like s3a do).
+     */
+    public static final String LISTING_FLAT = "bucket.listing.flat";
+
+    /**
+     * Files opened and decoded ahead of the caller by BucketIterator. Defaults to 0 (read on the caller's thread).
+     */
+    public static final String READ_PREFETCH = "bucket.read.prefetch";
+
+    /**
+     * Decoded records buffered per prefetched file before its reader blocks. Defaults to 1024.
+     */
+    public static final String READ_PREFETCH_RECORDS = "bucket.read.prefetch.records";
+
+    /**
+     * Most target directories a TypedRecordOutputStream keeps open at once. Defaults to 0 (no limit).
+     */
+    public static final String WRITE_MAX_OPEN = "bucket.write.max.open";
+
+    /**
+     * Total bytes that open writers may buffer, charged at WRITE_BUFFER_PER_WRITER each since their actual
+     * buffers aren't visible. Defaults to 0 (no limit).
+     */
+    public static final String WRITE_BUFFER_BUDGET = "bucket.write.buffer.budget";
+
+    /**
+     * Buffer memory charged per open writer. Defaults to the SequenceFile compression block size.
+     */
+    public static final String WRITE_BUFFER_PER_WRITER = "bucket.write.buffer.per.writer";
+
+    /**
+     * Buffers each bucketfile write is staged in while a background thread drains them into the file, e.g. 2
+     * for double buffering. Defaults to 0 (write on the caller's thread).
+     */
+    public static final String WRITE_ASYNC_BUFFERS = "bucket.write.async.buffers";
+
+    /**
+     * Size in bytes at which an async write buffer is handed to the background thread. Defaults to 1MB.
+     */
+    public static final String WRITE_ASYNC_BUFFER_BYTES = "bucket.write.async.buffer.bytes";
+
+    /**
+     * False positive probability of the bloom filters written alongside each bucketfile over the keys of a
+     * KeyedBucketStructure, e.g. 0.01. Defaults to 0, which writes no filters.
+     */
+    public static final String BLOOM_FILTER_FPP = "bucket.bloom.filter.fpp";
+
+    /**
+     * Whether a FileStats sidecar with the record count, bytes and the min and max of each field of a
+     * StatsBucketStructure is written alongside each bucketfile. Defaults to true when the structure is a
+     * StatsBucketStructure.
+     */
+    public static final String WRITE_STATS = "bucket.write.stats";
+
+    /**
+     * Threads count uses to read files whose record counts aren't recorded anywhere. Defaults to 4.
+     */
+    public static final String COUNT_THREADS = "bucket.count.threads";
+
     public class TypedRecordOutputStream implements RecordOutputStream {
-        private HashMap<String, RecordOutputStream> _workers = new HashMap<String, RecordOutputStream>();
+        //access ordered, so the first entry is the least recently written target
+        private LinkedHashMap<String, ObjectRecordOutputStream> _workers = new LinkedHashMap<String, ObjectRecordOutputStream>(16, 0.75f, true);
+        //structure targets resolved to their directories, so each distinct target is validated once
+        private HashMap<List<String>, String> _routes = new HashMap<List<String>, String>();
+        private HashMap<String, Integer> _parts = new HashMap<String, Integer>();
+        private RecordOutputStream _rawWorker = null;
         private String _userfilename;
         private boolean _overwrite;
+        private int _maxOpen;
 
         public TypedRecordOutputStream(String userfilename, boolean overwrite) {
             _userfilename = userfilename;
             _overwrite = overwrite;
+            _maxOpen = getMaxOpenWriters();
         }
 
         public <T> void writeObject(T obj) throws IOException {
             BucketStructure<T> structure = ((BucketStructure<T>) _structure);
-            List<String> rootAttrs = structure.getTarget(obj);
+            ObjectRecordOutputStream os = getWorker(structure.getTarget(obj), obj);
+            os.writeObject(obj, structure.serialize(obj));
+        }
+
+        private ObjectRecordOutputStream getWorker(List<String> rootAttrs, Object obj) throws IOException {
+            String targetDir = _routes.get(rootAttrs);
+            if(targetDir==null) {
+                targetDir = resolveTarget(rootAttrs, obj);
+                //structures are free to reuse the lists they return
+                _routes.put(new ArrayList<String>(rootAttrs), targetDir);
+            }
+            ObjectRecordOutputStream ret = _workers.get(targetDir);
+            if(ret==null) ret = openWorker(targetDir);
+            return ret;
+        }
+
+        private String resolveTarget(List<String> rootAttrs, Object obj) {
             List<String> attrs = makeRelative(rootAttrs);
             String targetDir = Utils.join(attrs, "/");
-            if(!_workers.containsKey(targetDir)) {
-                Path p;
-                if(targetDir.length()==0) p = new Path(_userfilename);
-                else p = new Path(targetDir, _userfilename);
-                List<String> totalAttrs = componentsFromRoot(p.toString());
-                if(!_structure.isValidTarget(totalAttrs.toArray(new String[totalAttrs.size()]))) {
-                    throw new IllegalArgumentException("Cannot write object " + obj.toString() + " to " + p.toString() +
-                            ". Conflicts with the structure of the datastore.");
-                }
-                _workers.put(targetDir, Bucket.super.openWrite(p.toString(), _overwrite));
+            String p = toTargetPath(targetDir, _userfilename);
+            List<String> totalAttrs = componentsFromRoot(p);
+            if(!_structure.isValidTarget(totalAttrs.toArray(new String[totalAttrs.size()]))) {
+                throw new IllegalArgumentException("Cannot write object " + obj.toString() + " to " + p +
+                        ". Conflicts with the structure of the datastore.");
+            }
+            return targetDir;
+        }
+
+        private String toTargetPath(String targetDir, String name) {
+            if(targetDir.length()==0) return new Path(name).toString();
+            else return new Path(targetDir, name).toString();
+        }
+
+        /**
+         * Commits the least recently written targets to stay under the writer limit. A target that's written
+         * again after being committed continues in a new part file. A target whose commit fails stays open, so
+         * the next eviction or close tries it again.
+         */
+        private ObjectRecordOutputStream openWorker(String targetDir) throws IOException {
+            while(_maxOpen > 0 && _workers.size() >= _maxOpen) {
+                Map.Entry<String, ObjectRecordOutputStream> eldest = _workers.entrySet().iterator().next();
+                eldest.getValue().close();
+                _workers.remove(eldest.getKey());
+            }
+            Integer part = _parts.get(targetDir);
+            String name = _userfilename;
+            if(part==null) {
+                part = 0;
+            } else {
+                do {
+                    part++;
+                    name = _userfilename + "-" + part;
+                } while(exists(toTargetPath(targetDir, name)));
             }
-            RecordOutputStream os = _workers.get(targetDir);
-            os.writeRaw(structure.serialize(obj));
+            _parts.put(targetDir, part);
+            ObjectRecordOutputStream ret = openObjectWrite(toTargetPath(targetDir, name), _overwrite);
+            _workers.put(targetDir, ret);
+            return ret;
         }
 
         public void writeObjects(T... objs) throws IOException {
+            writeObjects(Arrays.asList(objs));
+        }
+
+        /**
+         * Groups objs by target, then resolves each target once and hands its records to the stream as
+         * one packed batch. Records for the same target keep their relative order.
+         */
+        public void writeObjects(List<T> objs) throws IOException {
+            Map<List<String>, List<T>> groups = new LinkedHashMap<List<String>, List<T>>();
             for(T obj: objs) {
-                writeObject(obj);
+                List<String> target = _structure.getTarget(obj);
+                List<T> group = groups.get(target);
+                if(group==null) {
+                    group = new ArrayList<T>();
+                    //structures are free to reuse the lists they return
+                    groups.put(new ArrayList<String>(target), group);
+                }
+                group.add(obj);
+            }
+            for(Map.Entry<List<String>, List<T>> e: groups.entrySet()) {
+                List<T> group = e.getValue();
+                ObjectRecordOutputStream os = getWorker(e.getKey(), group.get(0));
+                int[] offsets = new int[group.size() + 1];
+                DataOutputBuffer packed = new DataOutputBuffer();
+                for(int i=0; i<group.size(); i++) {
+                    packed.write(_structure.serialize(group.get(i)));
+                    offsets[i+1] = packed.getLength();
+                }
+                os.writeObjectBatch(group, packed.getData(), offsets);
             }
         }
 
+        /**
+         * Commits every open target, rethrowing the first failure once all of them have been tried.
+         */
         public void close() throws IOException {
-            for(RecordOutputStream os: _workers.values()) {
-                os.close();
+            IOException error = null;
+            for(ObjectRecordOutputStream os: _workers.values()) {
+                try {
+                    os.close();
+                } catch(IOException e) {
+                    if(error==null) error = e;
+                }
             }
+            if(_rawWorker!=null) _rawWorker.close();
+            if(error!=null) throw error;
         }
 
         protected List<String> makeRelative(List<String> attrs) {
@@ -80,11 +268,20 @@ public class Bucket<T> extends AbstractBucket implements Iterable<T>{
         }
 
         public void writeRaw(byte[] record, int start, int length) throws IOException {
-            if(!_workers.containsKey(_userfilename)) {
+            getRawWorker().writeRaw(record, start, length);
+        }
+
+        @Override
+        public void writeRawBatch(byte[] packed, int[] offsets, int count) throws IOException {
+            getRawWorker().writeRawBatch(packed, offsets, count);
+        }
+
+        private RecordOutputStream getRawWorker() throws IOException {
+            if(_rawWorker==null) {
                 checkValidStructure(_userfilename);
-                _workers.put(_userfilename, Bucket.super.openWrite(_userfilename, _overwrite));
+                _rawWorker = Bucket.super.openWrite(_userfilename, _overwrite);
             }
-            _workers.get(_userfilename).writeRaw(record, start, length);
+            return _rawWorker;
         }
     }
 
@@ -109,6 +306,11 @@ public class Bucket<T> extends AbstractBucket implements Iterable<T>{
         public byte[] readRawRecord() throws IOException {
             return is.readRawRecord();
         }
+
+        @Override
+        public ByteBuffer readRecord() throws IOException {
+            return is.readRecord();
+        }
     }
 
     public static Bucket create(String path, BucketSpec spec) throws IOException {
@@ -179,12 +381,15 @@ public class Bucket<T> extends AbstractBucket implements Iterable<T>{
         fs.mkdirs(pathp);
         if(existing==null) {
             if(spec==null) spec = BucketFormatFactory.getDefaultCopy();
-            if(spec.getName()==null) spec = BucketFormatFactory.getDefaultCopy().setStructure(spec.getStructure());
+            if(spec.getName()==null) spec = BucketFormatFactory.getDefaultCopy().setStructure(spec.getStructure()).setManifest(spec.hasManifest());
             spec.writeToFileSystem(fs, new Path(pathp, META));
         }
 
-
-        return new Bucket(fs, path);
+        Bucket ret = new Bucket(fs, path);
+        if(existing==null && ret.hasManifest()) {
+            ret.rebuildManifest();
+        }
+        return ret;
     }
 
     private static BucketSpec getSpec(FileSystem fs, Path path) throws IOException {
@@ -219,6 +424,52 @@ public class Bucket<T> extends AbstractBucket implements Iterable<T>{
     private BucketStructure<T> _structure;
     private String _root;
     private FileSystem _fs;
+    private int _listingThreads = 0;
+    private int _readPrefetch = -1;
+    private int _maxOpenWriters = -1;
+    private int _asyncWriteBuffers = -1;
+    private double _bloomFilterFpp = -1;
+    //bloom filters by user file name, valid while the file keeps its length
+    private Map<String, Sidecar<BloomFilter>> _filters = new ConcurrentHashMap<String, Sidecar<BloomFilter>>();
+    private Boolean _writeStats = null;
+    //stats by user file name, valid while the file keeps its length
+    private Map<String, Sidecar<FileStats>> _stats = new ConcurrentHashMap<String, Sidecar<FileStats>>();
+    //record counts by user file name, valid while the file keeps its length
+    private Map<String, RecordCount> _counts = new ConcurrentHashMap<String, RecordCount>();
+    private volatile BucketManifest _manifest = null;
+
+    //a sidecar's contents, or null for a file written without it
+    private static class Sidecar<V> {
+        long length;
+        V value;
+
+        Sidecar(long length, V value) {
+            this.length = length;
+            this.value = value;
+        }
+    }
+
+    private static class RecordCount {
+        long length;
+        long records;
+
+        RecordCount(long length, long records) {
+            this.length = length;
+            this.records = records;
+        }
+    }
+    //block indexes of SortedFile bucketfiles by user file name, for lookups
+    private Map<String, KeyIndex> _keyIndexes = new ConcurrentHashMap<String, KeyIndex>();
+
+    private static class KeyIndex {
+        long length;
+        List<BlockFile.BlockInfo> blocks;
+
+        KeyIndex(long length, List<BlockFile.BlockInfo> blocks) {
+            this.length = length;
+            this.blocks = blocks;
+        }
+    }
 
     public Bucket(String path) throws IOException {
         this(Utils.getFS(path), path);
@@ -282,7 +533,232 @@ public class Bucket<T> extends AbstractBucket implements Iterable<T>{
 
     public Bucket<T> getSubBucket(String relpath) throws IOException {
         mkdirs(new Path(getInstanceRoot(), relpath));
-        return new Bucket(_fs, new Path(getInstanceRoot(), relpath).toString());
+        Bucket<T> ret = new Bucket(_fs, new Path(getInstanceRoot(), relpath).toString());
+        ret._listingThreads = _listingThreads;
+        ret._readPrefetch = _readPrefetch;
+        ret._maxOpenWriters = _maxOpenWriters;
+        ret._asyncWriteBuffers = _asyncWriteBuffers;
+        ret._bloomFilterFpp = _bloomFilterFpp;
+        ret._writeStats = _writeStats;
+        return ret;
+    }
+
+    /**
+     * Overrides LISTING_THREADS from the filesystem's Configuration for this bucket and its sub-buckets.
+     */
+    public Bucket<T> setListingThreads(int threads) {
+        _listingThreads = threads;
+        return this;
+    }
+
+    /**
+     * Overrides READ_PREFETCH from the filesystem's Configuration for this bucket and its sub-buckets.
+     */
+    public Bucket<T> setReadPrefetch(int files) {
+        _readPrefetch = files;
+        return this;
+    }
+
+    private int getReadPrefetch() {
+        if(_readPrefetch >= 0) return _readPrefetch;
+        return _fs.getConf().getInt(READ_PREFETCH, 0);
+    }
+
+    /**
+     * Overrides WRITE_MAX_OPEN and WRITE_BUFFER_BUDGET for this bucket and its sub-buckets. 0 means no limit.
+     */
+    public Bucket<T> setMaxOpenWriters(int writers) {
+        _maxOpenWriters = writers;
+        return this;
+    }
+
+    private int getMaxOpenWriters() {
+        if(_maxOpenWriters >= 0) return _maxOpenWriters;
+        Configuration conf = _fs.getConf();
+        int ret = conf.getInt(WRITE_MAX_OPEN, 0);
+        long budget = conf.getLong(WRITE_BUFFER_BUDGET, 0);
+        if(budget > 0) {
+            long perWriter = conf.getLong(WRITE_BUFFER_PER_WRITER, conf.getInt("io.seqfile.compress.blocksize", 1000000));
+            int byBudget = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budget / perWriter));
+            if(ret <= 0 || byBudget < ret) ret = byBudget;
+        }
+        return ret;
+    }
+
+    /**
+     * Overrides WRITE_ASYNC_BUFFERS for this bucket and its sub-buckets: 0 to write on the caller's thread, or at
+     * least 2.
+     */
+    public Bucket<T> setAsyncWriteBuffers(int buffers) {
+        checkAsyncWriteBuffers(buffers);
+        _asyncWriteBuffers = buffers;
+        return this;
+    }
+
+    private static void checkAsyncWriteBuffers(int buffers) {
+        if(buffers < 0 || buffers==1) throw new IllegalArgumentException("Async writes need 0 or at least 2 buffers, got " + buffers);
+    }
+
+    @Override
+    protected int getAsyncWriteBuffers() {
+        if(_asyncWriteBuffers >= 0) return _asyncWriteBuffers;
+        int ret = _fs.getConf().getInt(WRITE_ASYNC_BUFFERS, 0);
+        checkAsyncWriteBuffers(ret);
+        return ret;
+    }
+
+    @Override
+    protected int getAsyncWriteBufferBytes() {
+        return _fs.getConf().getInt(WRITE_ASYNC_BUFFER_BYTES, super.getAsyncWriteBufferBytes());
+    }
+
+    /**
+     * Overrides BLOOM_FILTER_FPP for this bucket and its sub-buckets.
+     */
+    public Bucket<T> setBloomFilterFpp(double fpp) {
+        _bloomFilterFpp = fpp;
+        return this;
+    }
+
+    @Override
+    protected double getBloomFilterFpp() {
+        double ret = _bloomFilterFpp >= 0 ? _bloomFilterFpp : _fs.getConf().getDouble(BLOOM_FILTER_FPP, 0);
+        if(ret > 0 && !(_structure instanceof KeyedBucketStructure)) {
+            throw new IllegalStateException("Bloom filters need a KeyedBucketStructure to take keys from");
+        }
+        return ret;
+    }
+
+    @Override
+    protected Object deserializeRecord(byte[] record, int start, int length) {
+        return _structure.deserialize(Arrays.copyOfRange(record, start, start + length));
+    }
+
+    @Override
+    protected byte[] getFilterKey(Object obj) {
+        return ((KeyedBucketStructure<T>) _structure).getKey((T) obj);
+    }
+
+    private BloomFilter getBloomFilter(String userfilename, long length) throws IOException {
+        Sidecar<BloomFilter> ret = _filters.get(userfilename);
+        //a file rewritten behind our back almost certainly changed length
+        if(ret==null || ret.length!=length) {
+            ret = new Sidecar<BloomFilter>(length, readBloomFilter(userfilename, length));
+            _filters.put(userfilename, ret);
+        }
+        return ret.value;
+    }
+
+    /**
+     * User files that might hold a record with key, going by their bloom filters. Files without a filter are
+     * always included.
+     */
+    public List<String> filesMightContain(byte[] key) throws IOException {
+        long hash = BloomFilter.hash(key);
+        List<String> ret = new ArrayList<String>();
+        for(Map.Entry<String, Long> file: getUserFileSizes().entrySet()) {
+            BloomFilter filter = getBloomFilter(file.getKey(), file.getValue());
+            if(filter==null || filter.mightContain(hash)) ret.add(file.getKey());
+        }
+        return ret;
+    }
+
+    /**
+     * False means no record in the bucket has key. True means one might.
+     */
+    public boolean mightContain(byte[] key) throws IOException {
+        return filesMightContain(key).size() > 0;
+    }
+
+    /**
+     * Overrides WRITE_STATS for this bucket and its sub-buckets.
+     */
+    public Bucket<T> setWriteStats(boolean write) {
+        _writeStats = write;
+        return this;
+    }
+
+    @Override
+    protected boolean writesStats() {
+        boolean ret = _writeStats!=null ? _writeStats : _fs.getConf().getBoolean(WRITE_STATS, true);
+        return ret && _structure instanceof StatsBucketStructure;
+    }
+
+    @Override
+    protected List<String> getStatFields() {
+        return ((StatsBucketStructure<T>) _structure).getStatFields();
+    }
+
+    @Override
+    protected byte[][] getStatValues(Object obj) {
+        return ((StatsBucketStructure<T>) _structure).getStatValues((T) obj);
+    }
+
+    /**
+     * The stats written alongside a user file, cached, or null if it was written without them.
+     */
+    public FileStats getStats(String userfilename) throws IOException {
+        Path path = toStoredPath(userfilename);
+        if(!_fs.exists(path)) return null;
+        return getStats(userfilename, getLength(path));
+    }
+
+    private FileStats getStats(String userfilename, long length) throws IOException {
+        Sidecar<FileStats> ret = _stats.get(userfilename);
+        if(ret==null || ret.length!=length) {
+            ret = new Sidecar<FileStats>(length, readStats(userfilename, length));
+            _stats.put(userfilename, ret);
+        }
+        return ret.value;
+    }
+
+    /**
+     * User files that might hold records satisfying every predicate, going by their stats. Files without stats
+     * are always included.
+     */
+    public List<String> getUserFileNames(RangePredicate... predicates) throws IOException {
+        return getUserFileNames(null, predicates);
+    }
+
+    /**
+     * User files in directories attrs accepts that might hold records satisfying every predicate. attrs may be
+     * null.
+     */
+    public List<String> getUserFileNames(AttrPredicate attrs, RangePredicate... predicates) throws IOException {
+        List<String> ret = new ArrayList<String>();
+        RemoteIterator<String> it = iterateUserFileNames(attrs, predicates);
+        while(it.hasNext()) {
+            ret.add(it.next());
+        }
+        return ret;
+    }
+
+    private RemoteIterator<String> iterateUserFileNames(AttrPredicate attrs, final RangePredicate... predicates) throws IOException {
+        if(predicates.length==0) return iterateUserFileNames(attrs);
+        final RemoteIterator<Map.Entry<String, Long>> files = iterateUserFileSizes(attrs);
+        return new CloseableRemoteIterator<String>() {
+            private String _next = null;
+
+            public boolean hasNext() throws IOException {
+                while(_next==null && files.hasNext()) {
+                    Map.Entry<String, Long> file = files.next();
+                    FileStats stats = getStats(file.getKey(), file.getValue());
+                    if(stats==null || stats.mightMatch(predicates)) _next = file.getKey();
+                }
+                return _next!=null;
+            }
+
+            public String next() throws IOException {
+                if(!hasNext()) throw new NoSuchElementException();
+                String ret = _next;
+                _next = null;
+                return ret;
+            }
+
+            public void close() throws IOException {
+                closeIterator(files);
+            }
+        };
     }
 
     public BucketSpec getSpec() {
@@ -307,6 +783,155 @@ public class Bucket<T> extends AbstractBucket implements Iterable<T>{
         return Utils.stripRoot(Utils.componentize(getRoot()), Utils.componentize(getInstanceRoot()));
     }
 
+    public boolean hasManifest() {
+        return _spec.hasManifest();
+    }
+
+    /**
+     * Starts keeping a manifest for the whole bucket, so listing no longer walks the directory tree.
+     * Bucket objects that were opened before this call won't maintain it.
+     */
+    public void enableManifest() throws IOException {
+        _spec.setManifest(true);
+        _spec.writeToFileSystem(_fs, new Path(getRoot(), META));
+        rebuildManifest();
+    }
+
+    public void disableManifest() throws IOException {
+        _spec.setManifest(false);
+        _spec.writeToFileSystem(_fs, new Path(getRoot(), META));
+        getManifest().delete();
+    }
+
+    /**
+     * Rewrites the manifest from a full walk of the bucket. Needed after files are added or removed
+     * without going through a Bucket, e.g. by a job using BucketOutputFormat.
+     */
+    public void rebuildManifest() throws IOException {
+        if(!hasManifest()) throw new IllegalStateException("Bucket at " + getRoot() + " does not keep a manifest");
+        Bucket root = atRoot() ? this : new Bucket(_fs, getRoot());
+        root.refreshManifest(Collections.singletonList(""), true);
+    }
+
+    //kept so successive commits know where the manifest's log ends
+    private BucketManifest getManifest() {
+        if(_manifest==null) _manifest = new BucketManifest(_fs, getRoot());
+        return _manifest;
+    }
+
+    private String getAttrsPath() {
+        return Utils.join(getAttrs(), "/");
+    }
+
+    //returns null for hadoop task outputs (_temporary/_attempt*), which aren't in the bucket until they're committed
+    private String toRootRelative(String userfilename) {
+        List<String> components = componentsFromRoot(userfilename);
+        for(String c: components) {
+            if(c.startsWith("_")) return null;
+        }
+        return Utils.join(components, "/");
+    }
+
+    private void updateManifest(Map<String, Long> committed, Collection<String> removed) throws IOException {
+        updateManifest(committed, Collections.<String, Long>emptyMap(), removed);
+    }
+
+    private void updateManifest(Map<String, Long> committed, Map<String, Long> records, Collection<String> removed) throws IOException {
+        if(!hasManifest()) return;
+        Map<String, Long> rootCommitted = toRootRelative(committed);
+        Map<String, Long> rootRecords = toRootRelative(records);
+        List<String> rootRemoved = new ArrayList<String>();
+        for(String name: removed) {
+            String rel = toRootRelative(name);
+            if(rel!=null) rootRemoved.add(rel);
+        }
+        if(rootCommitted.isEmpty() && rootRemoved.isEmpty()) return;
+        if(!getManifest().update(rootCommitted, rootRecords, rootRemoved)) {
+            rebuildManifest();
+        }
+    }
+
+    private Map<String, Long> toRootRelative(Map<String, Long> byUserFile) {
+        Map<String, Long> ret = new HashMap<String, Long>();
+        for(Map.Entry<String, Long> e: byUserFile.entrySet()) {
+            String rel = toRootRelative(e.getKey());
+            if(rel!=null) ret.put(rel, e.getValue());
+        }
+        return ret;
+    }
+
+    private void refreshManifest(Collection<String> dirs, boolean recursive) throws IOException {
+        if(!hasManifest()) return;
+        List<String> rootDirs = new ArrayList<String>();
+        Map<String, Long> contents = new HashMap<String, Long>();
+        for(String dir: dirs) {
+            rootDirs.add(Utils.join(componentsFromRoot(dir), "/"));
+            for(Map.Entry<String, Long> e: scanUserFiles(dir, recursive).entrySet()) {
+                String rel = toRootRelative(e.getKey());
+                if(rel!=null) contents.put(rel, e.getValue());
+            }
+        }
+        getManifest().replace(rootDirs, recursive, contents);
+    }
+
+    @Override
+    protected void onCommit(String userfilename, long records) throws IOException {
+        _keyIndexes.remove(userfilename);
+        _filters.remove(userfilename);
+        _stats.remove(userfilename);
+        long size = _fs.getFileStatus(toStoredPath(userfilename)).getLen();
+        _counts.put(userfilename, new RecordCount(size, records));
+        updateManifest(Collections.singletonMap(userfilename, size), Collections.singletonMap(userfilename, records), Collections.<String>emptyList());
+    }
+
+    @Override
+    protected void onDelete(Collection<String> userfilenames) throws IOException {
+        forget(userfilenames);
+        updateManifest(Collections.<String, Long>emptyMap(), userfilenames);
+    }
+
+    //drops what's cached about files that are gone
+    private void forget(Collection<String> userfilenames) {
+        for(String name: userfilenames) {
+            _keyIndexes.remove(name);
+            _filters.remove(name);
+            _stats.remove(name);
+            _counts.remove(name);
+        }
+    }
+
+    //record counts the manifest knows, by user file name, or null without a manifest
+    private Map<String, Long> getManifestRecords() throws IOException {
+        if(!hasManifest()) return null;
+        String prefix = getAttrsPath();
+        List<BucketManifest.Entry> entries = getManifest().getEntries(prefix);
+        if(entries==null) return null;
+        Map<String, Long> ret = new HashMap<String, Long>();
+        for(BucketManifest.Entry e: entries) {
+            if(e.getSize()>0 && e.getRecords()>=0) {
+                String name = e.getUserFileName();
+                ret.put(prefix.length()==0 ? name : name.substring(prefix.length() + 1), e.getRecords());
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    protected Map<String, Long> getManifestUserFiles() throws IOException {
+        if(!hasManifest()) return null;
+        String prefix = getAttrsPath();
+        List<BucketManifest.Entry> entries = getManifest().getEntries(prefix);
+        if(entries==null) return null;
+        Map<String, Long> ret = new LinkedHashMap<String, Long>();
+        for(BucketManifest.Entry e: entries) {
+            if(e.getSize()>0) {
+                String name = e.getUserFileName();
+                ret.put(prefix.length()==0 ? name : name.substring(prefix.length() + 1), e.getSize());
+            }
+        }
+        return ret;
+    }
+
     //returns if formats are same
     private boolean checkCombineValidity(Bucket p, CopyArgs args) throws IOException {
         if(args.force) return true;
@@ -347,15 +972,21 @@ public class Bucket<T> extends AbstractBucket implements Iterable<T>{
     }
 
     public void clear() throws IOException {
-        for(Path p: getStoredFiles()) {
-            delete(p, false);
+        List<String> names = getUserFileNames();
+        for(String name: names) {
+            delete(toStoredPath(name), false);
+            deleteSidecars(name);
         }
+        onDelete(names);
     }
 
     public void deleteSnapshot(Bucket snapshot) throws IOException {
-        for(String username: snapshot.getUserFileNames()) {
-            delete(username);
+        List<String> names = snapshot.getUserFileNames();
+        for(String username: names) {
+            delete(toStoredPath(username), false);
+            deleteSidecars(username);
         }
+        onDelete(names);
     }
 
     public Bucket createEmptyMimic(FileSystem fileSystem, String path) throws IOException {
@@ -415,9 +1046,17 @@ public class Bucket<T> extends AbstractBucket implements Iterable<T>{
         String sourceQual = getQualifiedRoot(p);
         String destQual = getQualifiedRoot(this);
         if(formatsSame) {
-            BalancedDistcp.distcp(sourceQual, destQual, args.renameMode, new BucketPathLister(args.copyMetadata), EXTENSION, args.configuration);
+            BalancedDistcp.distcp(sourceQual, destQual, args.renameMode, new BucketPathLister(args.copyMetadata), EXTENSION, args.configuration, args.executor);
         } else {
-            Coercer.coerce(sourceQual, destQual, args.renameMode, new BucketPathLister(args.copyMetadata), p.getFormat(), getFormat(), EXTENSION, args.configuration);
+            Coercer.coerce(sourceQual, destQual, args.renameMode, new BucketPathLister(args.copyMetadata), p.getFormat(), getFormat(), EXTENSION, args.configuration, args.executor);
+        }
+        if(hasManifest()) {
+            //copies keep their relative directory, so only the source's attribute dirs can have changed
+            Set<String> dirs = new HashSet<String>();
+            for(String name: p.getUserFileNames()) {
+                dirs.add(new Path(name).getParent().toString());
+            }
+            refreshManifest(dirs, false);
         }
     }
 
@@ -438,18 +1077,38 @@ public class Bucket<T> extends AbstractBucket implements Iterable<T>{
         if(!p._fs.getUri().equals(_fs.getUri())) throw new IllegalArgumentException("Cannot move append between different filesystems");
         if(!formatsSame) throw new IllegalArgumentException("Cannot move append different format buckets together");
 
-        for(String name: p.getUserFileNames()) {
-            String parent = new Path(name).getParent().toString();
-            _fs.mkdirs(new Path(getInstanceRoot() + "/" + parent));
-            Path storedPath = p.toStoredPath(name);
-            Path targetPath = toStoredPath(name);
-            if(_fs.exists(targetPath) || args.renameMode == RenameMode.ALWAYS_RENAME) {
-                if(args.renameMode == RenameMode.NO_RENAME)
-                    throw new IllegalArgumentException("Collision of filenames " + targetPath.toString());
-                if(parent.equals("")) targetPath = toStoredPath("ma_" + UUID.randomUUID().toString());
-                else targetPath = toStoredPath(parent + "/ma_" + UUID.randomUUID().toString());
+        List<String> movedFrom = new ArrayList<String>();
+        Map<String, Long> movedTo = new HashMap<String, Long>();
+        Map<String, Long> movedRecords = new HashMap<String, Long>();
+        Map<String, Long> sourceRecords = hasManifest() ? p.getManifestRecords() : null;
+        try {
+            for(Map.Entry<String, Long> file: ((Map<String, Long>) p.getUserFileSizes()).entrySet()) {
+                String name = file.getKey();
+                String parent = new Path(name).getParent().toString();
+                _fs.mkdirs(new Path(getInstanceRoot() + "/" + parent));
+                Path storedPath = p.toStoredPath(name);
+                String targetName = name;
+                if(_fs.exists(toStoredPath(targetName)) || args.renameMode == RenameMode.ALWAYS_RENAME) {
+                    if(args.renameMode == RenameMode.NO_RENAME)
+                        throw new IllegalArgumentException("Collision of filenames " + toStoredPath(targetName).toString());
+                    if(parent.equals("")) targetName = "ma_" + UUID.randomUUID().toString();
+                    else targetName = parent + "/ma_" + UUID.randomUUID().toString();
+                }
+                Path targetPath = toStoredPath(targetName);
+                Long records = hasManifest() ? p.getRecordedCount(name, file.getValue(), sourceRecords) : null;
+                if(_fs.rename(storedPath, targetPath)) {
+                    movedFrom.add(name);
+                    //the sidecars follow their bucketfile, and none left by an earlier file of the name stay
+                    deleteSidecars(targetName);
+                    if(_fs.exists(p.toStoredBloomPath(name))) _fs.rename(p.toStoredBloomPath(name), toStoredBloomPath(targetName));
+                    if(_fs.exists(p.toStoredStatsPath(name))) _fs.rename(p.toStoredStatsPath(name), toStoredStatsPath(targetName));
+                    if(hasManifest()) movedTo.put(targetName, _fs.getFileStatus(targetPath).getLen());
+                    if(records!=null) movedRecords.put(targetName, records);
+                }
             }
-            _fs.rename(storedPath, targetPath);
+        } finally {
+            p.onDelete(movedFrom);
+            updateManifest(movedTo, movedRecords, Collections.<String>emptyList());
         }
 
         if(args.copyMetadata) {
@@ -509,15 +1168,30 @@ public class Bucket<T> extends AbstractBucket implements Iterable<T>{
     }
 
     public void consolidate(long maxSize) throws IOException {
+        consolidate(maxSize, null);
+    }
+
+    /**
+     * executor of null picks one with JobExecutor#fromConf.
+     */
+    public void consolidate(long maxSize, JobExecutor executor) throws IOException {
+        consolidate(getConsolidationDirs(), new BucketPathLister(false), maxSize, executor);
+    }
+
+    /**
+     * The directories consolidate merges files within, relative to this bucket: the shallowest ones the
+     * structure allows files in.
+     */
+    public List<String> getConsolidationDirs() throws IOException {
         List<String> toCheck = new ArrayList<String>();
         toCheck.add("");
         BucketStructure structure = getSpec().getStructure();
-        List<String> consolidatedirs = new ArrayList<String>();
+        List<String> relDirs = new ArrayList<String>();
         while(toCheck.size()>0) {
             String dir = toCheck.remove(0);
             List<String> dirComponents = componentsFromRoot(dir);
             if(structure.isValidTarget(dirComponents.toArray(new String[dirComponents.size()]))) {
-                consolidatedirs.add(toFullPath(dir));
+                relDirs.add(dir);
             } else {
                 FileStatus[] contents = listStatus(new Path(toFullPath(dir)));
                 for(FileStatus f: contents) {
@@ -534,7 +1208,63 @@ public class Bucket<T> extends AbstractBucket implements Iterable<T>{
             }
         }
 
-        Consolidator.consolidate(_fs, _format, new BucketPathLister(false), consolidatedirs, maxSize, EXTENSION);
+        return relDirs;
+    }
+
+    /**
+     * Consolidates the files lister finds under each of relDirs, which are relative to this bucket. With a
+     * manifest, each merged file replaces its sources in a single manifest update before the sources are
+     * deleted, so listings through the manifest name either the sources or the merged file and never a file
+     * that's gone.
+     */
+    void consolidate(List<String> relDirs, PathLister lister, long maxSize, JobExecutor executor) throws IOException {
+        List<String> consolidatedirs = new ArrayList<String>();
+        for(String dir: relDirs) {
+            consolidatedirs.add(toFullPath(dir));
+        }
+        ConsolidationListener listener = null;
+        if(hasManifest()) {
+            listener = new ConsolidationListener() {
+                public void merged(FileSystem fs, Map<Path, List<Path>> merges) throws IOException {
+                    recordMerges(merges);
+                }
+            };
+        }
+        Consolidator.consolidate(_fs, _format, lister, consolidatedirs, maxSize, EXTENSION, executor, listener);
+    }
+
+    //applied as a change under the manifest's lock, so files writers commit meanwhile aren't dropped
+    private void recordMerges(Map<Path, List<Path>> merges) throws IOException {
+        SortedMap<String, BucketManifest.Entry> manifested = getManifest().read();
+        Map<String, Long> committed = new HashMap<String, Long>();
+        Map<String, Long> records = new HashMap<String, Long>();
+        List<String> removed = new ArrayList<String>();
+        for(Map.Entry<Path, List<Path>> merge: merges.entrySet()) {
+            String target = toUserFileName(merge.getKey());
+            long count = 0;
+            for(Path source: merge.getValue()) {
+                String name = toUserFileName(source);
+                removed.add(name);
+                String rel = toRootRelative(name);
+                BucketManifest.Entry e = manifested==null || rel==null ? null : manifested.get(rel);
+                if(e==null || e.getRecords() < 0) count = -1;
+                else if(count >= 0) count += e.getRecords();
+            }
+            committed.put(target, _fs.getFileStatus(merge.getKey()).getLen());
+            if(count >= 0) records.put(target, count);
+        }
+        forget(removed);
+        updateManifest(committed, records, removed);
+    }
+
+    //the user file name of a bucketfile stored in this bucket
+    private String toUserFileName(Path stored) {
+        String full = stored.makeQualified(_fs).toUri().getPath();
+        String root = new Path(getInstanceRoot()).makeQualified(_fs).toUri().getPath();
+        if(!full.startsWith(root + "/") || !full.endsWith(EXTENSION)) {
+            throw new IllegalArgumentException(stored.toString() + " is not a bucketfile in " + getInstanceRoot());
+        }
+        return full.substring(root.length() + 1, full.length() - EXTENSION.length());
     }
 
     @Override
@@ -547,6 +1277,13 @@ public class Bucket<T> extends AbstractBucket implements Iterable<T>{
         return _format.getOutputStream(_fs, path);
     }
 
+    @Override
+    protected RecordOutputStream createMetadataOutputStream(Path path) throws IOException {
+        //metadata records have no key to sort by
+        if(_format instanceof SortedFileFormat) return ((SortedFileFormat) _format).getUnsortedOutputStream(_fs, path);
+        return createOutputStream(path);
+    }
+
     @Override
     protected boolean delete(Path path, boolean recursive) throws IOException {
         return _fs.delete(path, recursive);
@@ -567,18 +1304,96 @@ public class Bucket<T> extends AbstractBucket implements Iterable<T>{
         return _fs.mkdirs(path);
     }
 
+    @Override
+    protected long getLength(Path path) throws IOException {
+        return _fs.getFileStatus(path).getLen();
+    }
+
     @Override
     protected FileStatus[] listStatus(Path path) throws IOException {
         FileStatus[] arr =  _fs.listStatus(path);
         List<FileStatus> ret = new ArrayList<FileStatus>();
         for(FileStatus fs: arr) {
-            if(!fs.isDir() || !fs.getPath().getName().startsWith("_")) {
+            if(!fs.isDir() || !isHiddenDir(fs.getPath().getName())) {
                 ret.add(fs);
             }
         }
+        //walks visit directories in name order whatever order the filesystem lists them in
+        Collections.sort(ret, new Comparator<FileStatus>() {
+            public int compare(FileStatus a, FileStatus b) {
+                return a.getPath().getName().compareTo(b.getPath().getName());
+            }
+        });
         return ret.toArray(new FileStatus[ret.size()]);
     }
 
+    /**
+     * Lists path incrementally where the filesystem pages its listings, which it does in name order. Local
+     * listings come in directory order, so they're read whole and sorted.
+     */
+    @Override
+    protected RemoteIterator<FileStatus> listStatusIterator(Path path) throws IOException {
+        if(_fs instanceof LocalFileSystem || _fs instanceof RawLocalFileSystem) return super.listStatusIterator(path);
+        final RemoteIterator<FileStatus> it = _fs.listStatusIterator(path);
+        return new RemoteIterator<FileStatus>() {
+            private FileStatus _next = advance();
+
+            private FileStatus advance() throws IOException {
+                while(it.hasNext()) {
+                    FileStatus fs = it.next();
+                    if(!fs.isDir() || !isHiddenDir(fs.getPath().getName())) return fs;
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return _next!=null;
+            }
+
+            public FileStatus next() throws IOException {
+                if(_next==null) throw new NoSuchElementException();
+                FileStatus ret = _next;
+                _next = advance();
+                return ret;
+            }
+        };
+    }
+
+    @Override
+    protected RemoteIterator<LocatedFileStatus> listFilesRecursive(Path path) throws IOException {
+        String flat = _fs.getConf().get(LISTING_FLAT);
+        boolean useFlat;
+        if(flat==null) useFlat = hasNativeRecursiveListing(_fs);
+        else useFlat = Boolean.parseBoolean(flat);
+        if(!useFlat) return null;
+        return _fs.listFiles(path, true);
+    }
+
+    //FileSystem's own listFiles walks listLocatedStatus one directory at a time, so it's no better than our walk
+    private static boolean hasNativeRecursiveListing(FileSystem fs) {
+        try {
+            return fs.getClass().getMethod("listFiles", Path.class, boolean.class).getDeclaringClass() != FileSystem.class;
+        } catch(NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    @Override
+    protected Path qualify(Path path) {
+        return path.makeQualified(_fs);
+    }
+
+    @Override
+    protected boolean isHiddenDir(String name) {
+        return name.startsWith("_");
+    }
+
+    @Override
+    protected int getListingThreads() {
+        if(_listingThreads > 0) return _listingThreads;
+        return _fs.getConf().getInt(LISTING_THREADS, 1);
+    }
+
     protected String toFullPath(String relpath) {
        Path p;
        if(relpath.length()==0) p = new Path(getInstanceRoot());
@@ -632,46 +1447,586 @@ public class Bucket<T> extends AbstractBucket implements Iterable<T>{
                 throw new RuntimeException(e);
             }
         }
+
+        @Override
+        public List<Path> getSidecars(Path file) {
+            String name = file.getName();
+            if(!name.endsWith(EXTENSION)) return Collections.emptyList();
+            String base = name.substring(0, name.length() - EXTENSION.length());
+            return Arrays.asList(new Path(file.getParent(), base + BLOOM_EXTENSION), new Path(file.getParent(), base + STATS_EXTENSION));
+        }
+
+        @Override
+        public List<FileStatus> getFileStatuses(FileSystem fs, String path) throws IOException {
+            Bucket p = new Bucket(fs, path);
+            if(_includeMeta) {
+                return p.getStoredFileStatusesAndMetadata();
+            } else {
+                return p.getStoredFileStatuses();
+            }
+        }
+    }
+
+    /**
+     * Returns the records whose key is key, for buckets in the SortedFile format. Each file's bloom filter and
+     * block index are read once and cached, and only files and blocks that might hold key are read.
+     */
+    public List<T> lookup(byte[] key) throws IOException {
+        if(!(_format instanceof SortedFileFormat)) {
+            throw new IllegalStateException("Lookups need a bucket in the " + BucketFormatFactory.SORTED_FILE + " format, not " + _spec.getName());
+        }
+        SortedFileFormat format = (SortedFileFormat) _format;
+        List<T> ret = new ArrayList<T>();
+        long hash = BloomFilter.hash(key);
+        for(Map.Entry<String, Long> file: getUserFileSizes().entrySet()) {
+            BloomFilter filter = getBloomFilter(file.getKey(), file.getValue());
+            if(filter!=null && !filter.mightContain(hash)) continue;
+            Path path = toStoredPath(file.getKey());
+            KeyIndex index = _keyIndexes.get(file.getKey());
+            //a file rewritten behind our back almost certainly changed length
+            if(index==null || index.length!=file.getValue()) {
+                index = new KeyIndex(file.getValue(), BlockFile.readIndex(_fs, path));
+                _keyIndexes.put(file.getKey(), index);
+            }
+            if(!SortedFileFormat.mightContain(index.blocks, key)) continue;
+            for(byte[] record: format.lookup(_fs, path, index.blocks, key)) {
+                ret.add(_structure.deserialize(record));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Number of records in the bucket. Counts come from the manifest, the stats written alongside each
+     * bucketfile and counts cached by this Bucket, and only files with no recorded count are read, on
+     * COUNT_THREADS threads. Counts found that way are saved in the manifest.
+     *
+     * Recorded counts are taken to hold while a file keeps its length. A file replaced behind this Bucket's
+     * back by one of exactly the same length keeps the old count until the manifest is rebuilt.
+     */
+    public long count() throws IOException {
+        long ret = 0;
+        for(long records: countByFile().values()) {
+            ret += records;
+        }
+        return ret;
+    }
+
+    /**
+     * Record counts of the attribute directories that hold bucketfiles, relative to this bucket. Files
+     * directly in the bucket are under "".
+     */
+    public Map<String, Long> countByAttrPath() throws IOException {
+        return byAttrPath(countByFile());
+    }
+
+    /**
+     * Total size of the bucketfiles in bytes, as listed. No files are opened.
+     */
+    public long sizeBytes() throws IOException {
+        long ret = 0;
+        for(long size: getUserFileSizes().values()) {
+            ret += size;
+        }
+        return ret;
+    }
+
+    public Map<String, Long> sizeBytesByAttrPath() throws IOException {
+        return byAttrPath(getUserFileSizes());
     }
 
+    /**
+     * Whether the bucket has no records. The bucket is listed, and files opened when their count isn't
+     * recorded, only until one with a record is found. Recorded counts are trusted as in count.
+     */
     public boolean isEmpty() throws IOException {
-        BucketIterator it = iterator();
-        boolean ret = !it.hasNext();
-        it.close();
+        Map<String, Long> manifested = getManifestRecords();
+        RemoteIterator<Map.Entry<String, Long>> files = iterateUserFileSizes(null);
+        try {
+            while(files.hasNext()) {
+                Map.Entry<String, Long> file = files.next();
+                Long records = getRecordedCount(file.getKey(), file.getValue(), manifested);
+                if(records==null) {
+                    RecordInputStream is = createInputStream(toStoredPath(file.getKey()));
+                    try {
+                        if(is.readRawRecord()!=null) return false;
+                    } finally {
+                        is.close();
+                    }
+                } else if(records > 0) {
+                    return false;
+                }
+            }
+        } finally {
+            closeIterator(files);
+        }
+        return true;
+    }
+
+    /**
+     * Reads a random sample of about fraction of the bucket's records. Formats pick among pieces they can seek
+     * to, chunks of BucketSampler#CHUNK_BYTES bytes for SequenceFile and the blocks starting in such chunks
+     * for BlockFile, so only the sample is read and records come in runs rather than independently. The same
+     * seed gives the same sample of an unchanged bucket.
+     */
+    public List<T> sample(double fraction, long seed) throws IOException {
+        BucketSampler sampler = new BucketSampler(fraction, seed);
+        List<T> ret = new ArrayList<T>();
+        //the sizes let formats pick over the bucket's bytes and only open the files with picks
+        for(Map.Entry<String, Long> file: getUserFileSizes().entrySet()) {
+            RecordInputStream is = _format.getSampleInputStream(_fs, toStoredPath(file.getKey()), file.getValue(), sampler);
+            try {
+                byte[] record;
+                while((record = is.readRawRecord())!=null) {
+                    ret.add(_structure.deserialize(record));
+                }
+            } finally {
+                is.close();
+            }
+        }
+        return ret;
+    }
+
+    public List<T> sampleN(int n) throws IOException {
+        return sampleN(n, new Random().nextLong());
+    }
+
+    /**
+     * Returns n records sampled from the bucket, or all of them if it has fewer. The fraction to sample is
+     * estimated from the record counts in the manifest and cached by this Bucket, and raised until at least n
+     * records come back.
+     */
+    public List<T> sampleN(int n, long seed) throws IOException {
+        Map<String, Long> sizes = getUserFileSizes();
+        Map<String, Long> manifested = getManifestRecords();
+        long totalBytes = 0;
+        long countedBytes = 0;
+        long counted = 0;
+        for(Map.Entry<String, Long> file: sizes.entrySet()) {
+            totalBytes += file.getValue();
+            Long records = manifested==null ? null : manifested.get(file.getKey());
+            RecordCount cached = _counts.get(file.getKey());
+            if(cached!=null && cached.length==file.getValue()) records = cached.records;
+            if(records!=null) {
+                countedBytes += file.getValue();
+                counted += records;
+            }
+        }
+        if(n <= 0 || totalBytes==0) return new ArrayList<T>();
+        //without counts, a guess that's corrected below
+        double bytesPerRecord = counted > 0 ? (double) countedBytes / counted : 1024;
+        double fraction = Math.min(1, 1.25 * n * bytesPerRecord / totalBytes);
+        while(true) {
+            List<T> ret = sample(fraction, seed);
+            if(ret.size() >= n || fraction >= 1) {
+                Collections.shuffle(ret, new Random(seed));
+                return ret.size() > n ? new ArrayList<T>(ret.subList(0, n)) : ret;
+            }
+            fraction = Math.min(1, fraction * (ret.isEmpty() ? 16 : Math.max(2, 1.25 * n / ret.size())));
+        }
+    }
+
+    private Map<String, Long> byAttrPath(Map<String, Long> byFile) {
+        Map<String, Long> ret = new TreeMap<String, Long>();
+        for(Map.Entry<String, Long> e: byFile.entrySet()) {
+            int idx = e.getKey().lastIndexOf('/');
+            String dir = idx < 0 ? "" : e.getKey().substring(0, idx);
+            Long total = ret.get(dir);
+            ret.put(dir, (total==null ? 0 : total) + e.getValue());
+        }
+        return ret;
+    }
+
+    private Long getRecordedCount(String userfilename, long length, Map<String, Long> manifested) throws IOException {
+        RecordCount cached = _counts.get(userfilename);
+        if(cached!=null && cached.length==length) return cached.records;
+        Long ret = manifested==null ? null : manifested.get(userfilename);
+        if(ret==null) {
+            FileStats stats = getStats(userfilename, length);
+            if(stats!=null) ret = stats.getRecords();
+        }
+        if(ret!=null) _counts.put(userfilename, new RecordCount(length, ret));
+        return ret;
+    }
+
+    private Map<String, Long> countByFile() throws IOException {
+        Map<String, Long> sizes = getUserFileSizes();
+        Map<String, Long> manifested = getManifestRecords();
+        Map<String, Long> ret = new LinkedHashMap<String, Long>();
+        List<String> uncounted = new ArrayList<String>();
+        for(Map.Entry<String, Long> file: sizes.entrySet()) {
+            Long records = getRecordedCount(file.getKey(), file.getValue(), manifested);
+            if(records==null) uncounted.add(file.getKey());
+            ret.put(file.getKey(), records);
+        }
+        if(uncounted.isEmpty()) return ret;
+
+        Map<String, Long> counted = countRecords(uncounted);
+        Map<String, Long> countedSizes = new HashMap<String, Long>();
+        for(Map.Entry<String, Long> e: counted.entrySet()) {
+            long size = sizes.get(e.getKey());
+            countedSizes.put(e.getKey(), size);
+            _counts.put(e.getKey(), new RecordCount(size, e.getValue()));
+            ret.put(e.getKey(), e.getValue());
+        }
+        if(manifested!=null) getManifest().setRecords(toRootRelative(countedSizes), toRootRelative(counted));
+        return ret;
+    }
+
+    private Map<String, Long> countRecords(List<String> userfilenames) throws IOException {
+        int threads = Math.max(1, Math.min(userfilenames.size(), _fs.getConf().getInt(COUNT_THREADS, 4)));
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "bucket-counter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            Map<String, Future<Long>> futures = new LinkedHashMap<String, Future<Long>>();
+            for(final String name: userfilenames) {
+                futures.put(name, pool.submit(new Callable<Long>() {
+                    public Long call() throws IOException {
+                        return countRecords(name);
+                    }
+                }));
+            }
+            Map<String, Long> ret = new HashMap<String, Long>();
+            for(Map.Entry<String, Future<Long>> e: futures.entrySet()) {
+                try {
+                    ret.put(e.getKey(), e.getValue().get());
+                } catch(InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(ex);
+                } catch(ExecutionException ex) {
+                    if(ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+                    throw new RuntimeException(ex.getCause());
+                }
+            }
+            return ret;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private long countRecords(String userfilename) throws IOException {
+        Path path = toStoredPath(userfilename);
+        //block files count their records in the index
+        if(_format instanceof BlockFileFormat) {
+            long ret = 0;
+            for(BlockFile.BlockInfo block: BlockFile.readIndex(_fs, path)) {
+                ret += block.getRecords();
+            }
+            return ret;
+        }
+        long ret = 0;
+        RecordInputStream is = createInputStream(path);
+        try {
+            while(is.readRawRecord()!=null) {
+                ret++;
+            }
+        } finally {
+            is.close();
+        }
         return ret;
     }
 
     public BucketIterator iterator() {
-        return new BucketIterator();
+        return new BucketIterator(getReadPrefetch());
+    }
+
+    /**
+     * Iterates with prefetchFiles files opened and decoded ahead on a thread pool. Records still come back
+     * in file order. Call close if iteration stops early so the readers are released.
+     */
+    public BucketIterator iterator(int prefetchFiles) {
+        return new BucketIterator(prefetchFiles);
+    }
+
+    /**
+     * Iterates over the files whose stats don't rule out every predicate. Records within those files aren't
+     * filtered.
+     */
+    public BucketIterator iterator(RangePredicate... predicates) {
+        return new BucketIterator(getReadPrefetch(), null, predicates);
+    }
+
+    public BucketIterator iterator(int prefetchFiles, RangePredicate... predicates) {
+        return new BucketIterator(prefetchFiles, null, predicates);
+    }
+
+    /**
+     * Iterates over the files in attribute directories attrs accepts. Directories it rules out aren't listed.
+     */
+    public BucketIterator iterator(AttrPredicate attrs, RangePredicate... predicates) {
+        return new BucketIterator(getReadPrefetch(), attrs, predicates);
+    }
+
+    public BucketIterator iterator(int prefetchFiles, AttrPredicate attrs, RangePredicate... predicates) {
+        return new BucketIterator(prefetchFiles, attrs, predicates);
+    }
+
+    /**
+     * Streams the records of every file. Files are split across workers by size, and records are decoded on
+     * the thread that consumes them. Close the stream if it may not be fully consumed, so any files still
+     * open get closed.
+     */
+    public Stream<T> stream() {
+        return stream(false);
+    }
+
+    public Stream<T> parallelStream() {
+        return stream(true);
+    }
+
+    private Stream<T> stream(boolean parallel) {
+        final BucketSpliterator split = new BucketSpliterator();
+        return StreamSupport.stream(split, parallel).onClose(new Runnable() {
+            public void run() {
+                split.closeAll();
+            }
+        });
+    }
+
+    @Override
+    public Spliterator<T> spliterator() {
+        return new BucketSpliterator();
+    }
+
+    public class BucketSpliterator implements Spliterator<T> {
+        private String[] _files;
+        //_offsets[i] is the combined size of the files before i
+        private long[] _offsets;
+        private Set<TypedRecordInputStream> _open;
+        private int _lo;
+        private int _hi;
+        private TypedRecordInputStream _curr = null;
+
+        public BucketSpliterator() {
+            Map<String, Long> sizes;
+            try {
+                sizes = getUserFileSizes();
+            } catch(IOException e) {
+                throw new RuntimeException(e);
+            }
+            _files = new String[sizes.size()];
+            _offsets = new long[sizes.size() + 1];
+            int i = 0;
+            for(Map.Entry<String, Long> e: sizes.entrySet()) {
+                _files[i] = e.getKey();
+                _offsets[i+1] = _offsets[i] + e.getValue();
+                i++;
+            }
+            _open = Collections.newSetFromMap(new ConcurrentHashMap<TypedRecordInputStream, Boolean>());
+            _lo = 0;
+            _hi = _files.length;
+        }
+
+        private BucketSpliterator(BucketSpliterator parent, int lo, int hi) {
+            _files = parent._files;
+            _offsets = parent._offsets;
+            _open = parent._open;
+            _lo = lo;
+            _hi = hi;
+        }
+
+        public boolean tryAdvance(Consumer<? super T> action) {
+            try {
+                while(true) {
+                    if(_curr==null) {
+                        if(_lo>=_hi) return false;
+                        _curr = openRead(_files[_lo++]);
+                        _open.add(_curr);
+                    }
+                    T record = _curr.readObject();
+                    if(record!=null) {
+                        action.accept(record);
+                        return true;
+                    }
+                    _curr.close();
+                    _open.remove(_curr);
+                    _curr = null;
+                }
+            } catch(IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Hands off the first half of the remaining files by size. A file is never split, and nothing is
+         * split off once this spliterator has started reading.
+         */
+        public Spliterator<T> trySplit() {
+            if(_curr!=null || _hi - _lo < 2) return null;
+            long half = (_offsets[_lo] + _offsets[_hi]) / 2;
+            int mid = Arrays.binarySearch(_offsets, _lo + 1, _hi, half);
+            if(mid < 0) mid = -mid - 1;
+            if(mid <= _lo) mid = _lo + 1;
+            if(mid >= _hi) mid = _hi - 1;
+            BucketSpliterator ret = new BucketSpliterator(this, _lo, mid);
+            _lo = mid;
+            return ret;
+        }
+
+        /**
+         * Bytes left in unopened files, which is proportional enough to the record count for balancing splits.
+         */
+        public long estimateSize() {
+            return _offsets[_hi] - _offsets[_lo];
+        }
+
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+
+        void closeAll() {
+            for(TypedRecordInputStream is: _open) {
+                try {
+                    is.close();
+                } catch(IOException e) {
+                    LOG.warn("Unable to close " + is, e);
+                }
+            }
+            _open.clear();
+        }
     }
 
-    public class BucketIterator implements Iterator<T> {
+    private static final Object END_OF_FILE = new Object();
 
-        private List<String> filesleft;
+    private class PrefetchedFile implements Runnable {
+        private String _userfilename;
+        private BlockingQueue<Object> _records;
+        private volatile Throwable _error = null;
+
+        public PrefetchedFile(String userfilename, int capacity) {
+            _userfilename = userfilename;
+            _records = new ArrayBlockingQueue<Object>(capacity);
+        }
+
+        public void run() {
+            try {
+                TypedRecordInputStream is = openRead(_userfilename);
+                try {
+                    T record;
+                    while((record = is.readObject())!=null) {
+                        _records.put(record);
+                    }
+                } finally {
+                    is.close();
+                }
+            } catch(InterruptedException e) {
+                //the iterator was closed
+                return;
+            } catch(Throwable t) {
+                _error = t;
+            }
+            try {
+                _records.put(END_OF_FILE);
+            } catch(InterruptedException e) {
+            }
+        }
+
+        public Object take() throws IOException {
+            Object ret;
+            try {
+                ret = _records.take();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            if(ret==END_OF_FILE && _error!=null) {
+                if(_error instanceof IOException) throw (IOException) _error;
+                if(_error instanceof RuntimeException) throw (RuntimeException) _error;
+                throw new RuntimeException(_error);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Records of the bucket's files in order. An iterator that may not be read to the end must be closed, which
+     * releases the open file and listing and, when prefetching, stops the reader threads and the streams they
+     * hold open. Closing more than once is harmless.
+     */
+    public class BucketIterator implements Iterator<T>, Closeable {
+
+        private RemoteIterator<String> filesleft;
         private TypedRecordInputStream curr = null;
         private T nextRecord;
+        private int prefetch;
+        private int queueCapacity;
+        private ExecutorService pool = null;
+        private LinkedList<PrefetchedFile> window = new LinkedList<PrefetchedFile>();
 
         public BucketIterator() {
+            this(0);
+        }
+
+        public BucketIterator(int prefetchFiles) {
+            this(prefetchFiles, null);
+        }
+
+        public BucketIterator(int prefetchFiles, AttrPredicate attrs, RangePredicate... predicates) {
+            prefetch = prefetchFiles;
             try {
-                filesleft = getUserFileNames();
+                filesleft = iterateUserFileNames(attrs, predicates);
             } catch(IOException e) {
                 throw new RuntimeException(e);
             }
+            if(prefetch > 0) {
+                queueCapacity = _fs.getConf().getInt(READ_PREFETCH_RECORDS, 1024);
+                pool = Executors.newFixedThreadPool(prefetch, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "bucket-reader");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
             getNextRecord();
         }
 
         private void getNextRecord() {
             try {
+                if(pool!=null) {
+                    getNextPrefetched();
+                    return;
+                }
                 while(curr==null || (nextRecord = curr.readObject()) == null) {
-                    if(curr!=null) curr.close();
-                    if(filesleft.size()==0) break;
-                    curr = openRead(filesleft.remove(0));
+                    if(curr!=null) {
+                        curr.close();
+                        curr = null;
+                    }
+                    if(!filesleft.hasNext()) break;
+                    curr = openRead(filesleft.next());
                 }
             } catch(IOException e) {
                 throw new RuntimeException(e);
             }
         }
 
+        private void getNextPrefetched() throws IOException {
+            nextRecord = null;
+            while(true) {
+                while(window.size() < prefetch && filesleft.hasNext()) {
+                    PrefetchedFile file = new PrefetchedFile(filesleft.next(), queueCapacity);
+                    window.add(file);
+                    pool.submit(file);
+                }
+                if(window.isEmpty()) {
+                    pool.shutdown();
+                    return;
+                }
+                Object record = window.getFirst().take();
+                if(record==END_OF_FILE) {
+                    window.removeFirst();
+                } else {
+                    nextRecord = (T) record;
+                    return;
+                }
+            }
+        }
+
         public boolean hasNext() {
             return nextRecord != null;
         }
@@ -683,8 +2038,16 @@ public class Bucket<T> extends AbstractBucket implements Iterable<T>{
         }
 
         public void close() throws IOException {
+            nextRecord = null;
+            closeIterator(filesleft);
             if(curr!=null) {
                 curr.close();
+                curr = null;
+            }
+            if(pool!=null) {
+                //interrupts readers blocked on full queues, which close their streams on the way out
+                pool.shutdownNow();
+                window.clear();
             }
         }
 
@@ -0,0 +1,406 @@
+package ca.gristle.hadoop.bucket;
+
+import ca.gristle.hadoop.Consolidator;
+import ca.gristle.hadoop.JobExecutor;
+import ca.gristle.hadoop.PathLister;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps registered buckets compacted in the background. Each check lists every consolidation dir of every
+ * bucket and compacts the dirs that have too many small files or are too fragmented, through the Consolidator.
+ *
+ * Compaction is size tiered: files under the target size fall into tiers whose bounds start at the small file
+ * size and grow by the tier fanout, and only tiers with enough files are merged, each tier in a consolidation
+ * of its own. Big files aren't rewritten every time a few small ones land next to them.
+ *
+ * At most maxConcurrent dirs are compacted at once, and compactions start no faster than maxBytesPerSecond
+ * allows for the bytes they rewrite. In buckets with a manifest, each merged file replaces its sources in one
+ * manifest update before the sources are deleted, so readers listing through the manifest see the records once,
+ * though a reader still reading a source when it's deleted fails. Without a manifest, a reader listing a dir
+ * while it's compacted can see records twice or find listed files gone.
+ */
+public class BucketCompactor implements Closeable {
+    public static Logger LOG = LoggerFactory.getLogger(BucketCompactor.class);
+
+    public static final long DEFAULT_SMALL_FILE_BYTES = 16 * 1024 * 1024;
+    public static final int DEFAULT_MIN_SMALL_FILES = 16;
+    public static final double DEFAULT_MAX_FRAGMENTATION = 0.5;
+    public static final int DEFAULT_TIER_FANOUT = 4;
+    public static final int DEFAULT_MIN_TIER_FILES = 4;
+    public static final int DEFAULT_MAX_CONCURRENT = 2;
+    public static final long DEFAULT_MAX_BYTES_PER_SECOND = 64 * 1024 * 1024;
+    public static final long DEFAULT_CHECK_INTERVAL_MS = 60 * 1000;
+
+    private long _targetSize = Consolidator.DEFAULT_CONSOLIDATION_SIZE;
+    private long _smallFileBytes = DEFAULT_SMALL_FILE_BYTES;
+    private int _minSmallFiles = DEFAULT_MIN_SMALL_FILES;
+    private double _maxFragmentation = DEFAULT_MAX_FRAGMENTATION;
+    private int _tierFanout = DEFAULT_TIER_FANOUT;
+    private int _minTierFiles = DEFAULT_MIN_TIER_FILES;
+    private int _maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private long _maxBytesPerSecond = DEFAULT_MAX_BYTES_PER_SECOND;
+    private long _checkIntervalMs = DEFAULT_CHECK_INTERVAL_MS;
+    private JobExecutor _executor;
+
+    private Set<Bucket<?>> _buckets = Collections.newSetFromMap(new ConcurrentHashMap<Bucket<?>, Boolean>());
+    //full paths of the dirs being compacted or waiting to be
+    private Set<String> _pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private ExecutorService _workers;
+    private ScheduledExecutorService _scheduler;
+    private boolean _closed = false;
+    //when the rate limit next lets a compaction start
+    private long _nextStart = 0;
+    private final Object _rateLock = new Object();
+
+    private AtomicLong _compactions = new AtomicLong();
+    private AtomicLong _bytesCompacted = new AtomicLong();
+
+    /**
+     * Files in a dir whose sizes fall in one of the [from, to) ranges. Compactions list with this, so files
+     * outside the tiers being merged are left alone.
+     */
+    static class SizeRangePathLister implements PathLister {
+        PathLister _lister;
+        long[] _bounds;
+
+        SizeRangePathLister(PathLister lister, long[] bounds) {
+            _lister = lister;
+            _bounds = bounds;
+        }
+
+        boolean contains(long len) {
+            for(int i=0; i<_bounds.length; i+=2) {
+                if(len >= _bounds[i] && len < _bounds[i + 1]) return true;
+            }
+            return false;
+        }
+
+        public List<Path> getFiles(FileSystem fs, String path) {
+            try {
+                List<Path> ret = new ArrayList<Path>();
+                for(FileStatus status: getFileStatuses(fs, path)) {
+                    ret.add(status.getPath());
+                }
+                return ret;
+            } catch(IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public List<Path> getSidecars(Path file) {
+            return _lister.getSidecars(file);
+        }
+
+        @Override
+        public List<FileStatus> getFileStatuses(FileSystem fs, String path) throws IOException {
+            List<FileStatus> ret = new ArrayList<FileStatus>();
+            for(FileStatus status: _lister.getFileStatuses(fs, path)) {
+                if(contains(status.getLen())) ret.add(status);
+            }
+            return ret;
+        }
+    }
+
+    public BucketCompactor setTargetSize(long bytes) {
+        if(bytes <= 0) throw new IllegalArgumentException("Target size must be positive, got " + bytes);
+        _targetSize = bytes;
+        return this;
+    }
+
+    /**
+     * Files under this size are small, and are the lowest tier.
+     */
+    public BucketCompactor setSmallFileBytes(long bytes) {
+        if(bytes <= 0) throw new IllegalArgumentException("Small file size must be positive, got " + bytes);
+        _smallFileBytes = bytes;
+        return this;
+    }
+
+    /**
+     * A dir with at least this many small files is compacted.
+     */
+    public BucketCompactor setMinSmallFiles(int files) {
+        if(files < 2) throw new IllegalArgumentException("Need at least 2 small files to compact, got " + files);
+        _minSmallFiles = files;
+        return this;
+    }
+
+    /**
+     * A dir is compacted when more than this fraction of its files under the target size would go away if they
+     * were packed perfectly.
+     */
+    public BucketCompactor setMaxFragmentation(double fraction) {
+        if(fraction <= 0 || fraction >= 1) throw new IllegalArgumentException("Fragmentation must be in (0, 1), got " + fraction);
+        _maxFragmentation = fraction;
+        return this;
+    }
+
+    public BucketCompactor setTierFanout(int fanout) {
+        if(fanout < 2) throw new IllegalArgumentException("Tier fanout must be at least 2, got " + fanout);
+        _tierFanout = fanout;
+        return this;
+    }
+
+    /**
+     * Fewest files a tier needs to be merged.
+     */
+    public BucketCompactor setMinTierFiles(int files) {
+        if(files < 2) throw new IllegalArgumentException("Need at least 2 files to merge a tier, got " + files);
+        _minTierFiles = files;
+        return this;
+    }
+
+    public synchronized BucketCompactor setMaxConcurrent(int compactions) {
+        if(compactions <= 0) throw new IllegalArgumentException("Need at least one concurrent compaction, got " + compactions);
+        if(_workers!=null) throw new IllegalStateException("Compactions have already started");
+        _maxConcurrent = compactions;
+        return this;
+    }
+
+    /**
+     * Limits the bytes compactions rewrite, averaged over time. 0 for no limit.
+     */
+    public BucketCompactor setMaxBytesPerSecond(long bytes) {
+        if(bytes < 0) throw new IllegalArgumentException("Rate must not be negative, got " + bytes);
+        _maxBytesPerSecond = bytes;
+        return this;
+    }
+
+    public BucketCompactor setCheckIntervalMs(long ms) {
+        if(ms <= 0) throw new IllegalArgumentException("Check interval must be positive, got " + ms);
+        _checkIntervalMs = ms;
+        return this;
+    }
+
+    /**
+     * executor of null picks one with JobExecutor#fromConf for each compaction.
+     */
+    public BucketCompactor setJobExecutor(JobExecutor executor) {
+        _executor = executor;
+        return this;
+    }
+
+    public void register(Bucket<?> bucket) {
+        _buckets.add(bucket);
+    }
+
+    public void unregister(Bucket<?> bucket) {
+        _buckets.remove(bucket);
+    }
+
+    public long getCompactions() {
+        return _compactions.get();
+    }
+
+    public long getBytesCompacted() {
+        return _bytesCompacted.get();
+    }
+
+    /**
+     * Checks the registered buckets every check interval until closed.
+     */
+    public synchronized void start() {
+        if(_closed) throw new IllegalStateException("Compactor is closed");
+        if(_scheduler!=null) throw new IllegalStateException("Already started");
+        _scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("bucket-compactor-check"));
+        _scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                //an exception would cancel the schedule
+                try {
+                    check();
+                } catch(RuntimeException e) {
+                    LOG.warn("Compaction check failed", e);
+                }
+            }
+        }, 0, _checkIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    private synchronized ExecutorService getWorkers() {
+        if(_closed) throw new IllegalStateException("Compactor is closed");
+        if(_workers==null) _workers = Executors.newFixedThreadPool(_maxConcurrent, daemonThreads("bucket-compactor"));
+        return _workers;
+    }
+
+    /**
+     * Lists every registered bucket and queues compactions for the dirs that need them and aren't already
+     * queued. Each future gives the bytes its compaction rewrote.
+     */
+    public List<Future<Long>> check() {
+        List<Future<Long>> ret = new ArrayList<Future<Long>>();
+        for(Bucket<?> bucket: _buckets) {
+            try {
+                for(String dir: bucket.getConsolidationDirs()) {
+                    String fullPath = bucket.toFullPath(dir);
+                    if(_pending.contains(fullPath)) continue;
+                    List<FileStatus> files = new Bucket.BucketPathLister(false).getFileStatuses(bucket.getFileSystem(), fullPath);
+                    long[] bounds = planTiers(files);
+                    if(bounds.length==0) continue;
+                    if(_pending.add(fullPath)) ret.add(getWorkers().submit(compaction(bucket, dir, fullPath, bounds, files)));
+                }
+            } catch(IOException e) {
+                LOG.warn("Could not check " + bucket.getInstanceRoot() + " for compaction", e);
+            }
+        }
+        return ret;
+    }
+
+    private Callable<Long> compaction(final Bucket<?> bucket, final String dir, final String fullPath, long[] bounds, List<FileStatus> files) {
+        //largest tier first: merging a tier only makes files for the tiers above it, which are done by then
+        final List<SizeRangePathLister> tiers = new ArrayList<SizeRangePathLister>();
+        final List<Long> tierBytes = new ArrayList<Long>();
+        for(int i=bounds.length-2; i>=0; i-=2) {
+            SizeRangePathLister lister = new SizeRangePathLister(new Bucket.BucketPathLister(false), new long[] {bounds[i], bounds[i + 1]});
+            long bytes = 0;
+            for(FileStatus f: files) {
+                if(lister.contains(f.getLen())) bytes += f.getLen();
+            }
+            tiers.add(lister);
+            tierBytes.add(bytes);
+        }
+        return new Callable<Long>() {
+            public Long call() throws Exception {
+                try {
+                    long total = 0;
+                    for(int i=0; i<tiers.size(); i++) {
+                        long bytes = tierBytes.get(i);
+                        throttle(bytes);
+                        LOG.info("Compacting " + bytes + " bytes in " + fullPath);
+                        bucket.consolidate(Collections.singletonList(dir), tiers.get(i), _targetSize, _executor);
+                        _bytesCompacted.addAndGet(bytes);
+                        total += bytes;
+                    }
+                    _compactions.incrementAndGet();
+                    return total;
+                } catch(Exception e) {
+                    LOG.warn("Compacting " + fullPath + " failed", e);
+                    throw e;
+                } finally {
+                    _pending.remove(fullPath);
+                }
+            }
+        };
+    }
+
+    /**
+     * Waits until the rate limit lets bytes more be rewritten, returning how long that took in milliseconds.
+     */
+    long throttle(long bytes) throws InterruptedException {
+        if(_maxBytesPerSecond <= 0) return 0;
+        long wait;
+        synchronized(_rateLock) {
+            long now = System.currentTimeMillis();
+            long start = Math.max(now, _nextStart);
+            _nextStart = start + bytes * 1000 / _maxBytesPerSecond;
+            wait = start - now;
+        }
+        if(wait > 0) Thread.sleep(wait);
+        return Math.max(wait, 0);
+    }
+
+    private int tier(long len) {
+        int ret = 0;
+        for(long bound = _smallFileBytes; len >= bound && bound < _targetSize; bound *= _tierFanout) {
+            ret++;
+        }
+        return ret;
+    }
+
+    /**
+     * The [from, to) size ranges of the tiers to merge among files, flattened, or none if they don't need
+     * compacting. When the dir is due but no tier has enough files, every file under the target size is merged.
+     */
+    long[] planTiers(List<FileStatus> files) {
+        TreeMap<Integer, Integer> tiers = new TreeMap<Integer, Integer>();
+        int under = 0;
+        int small = 0;
+        long underBytes = 0;
+        for(FileStatus f: files) {
+            long len = f.getLen();
+            if(len >= _targetSize) continue;
+            under++;
+            underBytes += len;
+            if(len < _smallFileBytes) small++;
+            int t = tier(len);
+            Integer count = tiers.get(t);
+            tiers.put(t, count==null ? 1 : count + 1);
+        }
+        if(under < 2) return new long[0];
+        double fragmentation = 1 - (double) ((underBytes + _targetSize - 1) / _targetSize) / under;
+        if(small < _minSmallFiles && (under < _minTierFiles || fragmentation <= _maxFragmentation)) return new long[0];
+
+        List<Long> bounds = new ArrayList<Long>();
+        for(int t: tiers.keySet()) {
+            if(tiers.get(t) < _minTierFiles) continue;
+            long from = 0;
+            long to = _smallFileBytes;
+            for(int i=0; i<t; i++) {
+                from = to;
+                to *= _tierFanout;
+            }
+            bounds.add(from);
+            bounds.add(Math.min(to, _targetSize));
+        }
+        if(bounds.isEmpty()) {
+            bounds.add(0L);
+            bounds.add(_targetSize);
+        }
+        long[] ret = new long[bounds.size()];
+        for(int i=0; i<ret.length; i++) {
+            ret[i] = bounds.get(i);
+        }
+        return ret;
+    }
+
+    /**
+     * Stops checking and waits for queued compactions to finish.
+     */
+    public void close() throws IOException {
+        ExecutorService workers;
+        synchronized(this) {
+            _closed = true;
+            if(_scheduler!=null) _scheduler.shutdownNow();
+            workers = _workers;
+        }
+        if(workers!=null) {
+            workers.shutdown();
+            try {
+                workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for compactions", e);
+            }
+        }
+    }
+}
@@ -1,8 +1,35 @@
 package ca.gristle.hadoop.bucket;
 
+import ca.gristle.hadoop.formats.RecordInputStream;
 import ca.gristle.hadoop.formats.RecordStreamFactory;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapred.InputFormat;
 
+import java.io.IOException;
+
 public interface BucketFormat extends RecordStreamFactory {
     public Class<? extends InputFormat> getInputFormatClass();
+
+    /**
+     * Reads the pieces of path, a file of the given length, that sampler picks. Formats that can seek to a
+     * record boundary should pick among chunks of bytes first and only open the file if any are picked; this
+     * reads the whole file and picks among its records.
+     */
+    default RecordInputStream getSampleInputStream(FileSystem fs, Path path, long length, final BucketSampler sampler) throws IOException {
+        final RecordInputStream is = getInputStream(fs, path);
+        return new RecordInputStream() {
+            public byte[] readRawRecord() throws IOException {
+                byte[] record;
+                while((record = is.readRawRecord())!=null) {
+                    if(sampler.take()) return record;
+                }
+                return null;
+            }
+
+            public void close() throws IOException {
+                is.close();
+            }
+        };
+    }
 }
@@ -1,16 +1,23 @@
 package ca.gristle.hadoop.bucket;
 
 import ca.gristle.support.Utils;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapred.JobConf;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class BucketFormatFactory {
     public static final String SEQUENCE_FILE = "SequenceFile";
+    public static final String BLOCK_FILE = "BlockFile";
+    public static final String SORTED_FILE = "SortedFile";
 
     public static final String BUCKET_PATH_LISTER = "bucket.path.lister";
 
@@ -24,6 +31,31 @@ public class BucketFormatFactory {
         return lister.getPaths(p);
     }
 
+    /**
+     * Statuses of the files getBucketPaths lists, stat'ed in parallel.
+     */
+    public static FileStatus[] getBucketFileStatuses(Bucket p, JobConf conf) throws IOException {
+        FileSystem fs = p.getFileSystem();
+        List<Path> paths = new ArrayList<Path>();
+        for(Path path: getBucketPaths(p, conf)) {
+            paths.add(path.makeQualified(fs));
+        }
+        FileStatus[] ret = Utils.getFileStatuses(fs, paths);
+        for(int i=0; i<ret.length; i++) {
+            if(ret[i]==null) throw new FileNotFoundException(paths.get(i) + " was listed but does not exist");
+        }
+        return ret;
+    }
+
+    /**
+     * Hosts holding the start of [start, start + length) of file, for a split of it.
+     */
+    static String[] getSplitHosts(FileSystem fs, FileStatus file, long start, long length) throws IOException {
+        BlockLocation[] locations = fs.getFileBlockLocations(file, start, length);
+        if(locations==null || locations.length==0) return new String[0];
+        return locations[0].getHosts();
+    }
+
     public static BucketSpec getDefaultCopy() {
         return new BucketSpec(BucketFormatFactory.SEQUENCE_FILE);
     }
@@ -35,6 +67,10 @@ public class BucketFormatFactory {
         if(args==null) args = new HashMap<String, Object>();
         if(format.equals(SEQUENCE_FILE)) {
             return new SequenceFileFormat(args);
+        } else if(format.equals(BLOCK_FILE)) {
+            return new BlockFileFormat(args);
+        } else if(format.equals(SORTED_FILE)) {
+            return new SortedFileFormat(args, spec.getStructure());
         } else {
             try {
                 return (BucketFormat) Class.forName(format).newInstance();
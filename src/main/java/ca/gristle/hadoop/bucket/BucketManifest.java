@@ -0,0 +1,508 @@
+package ca.gristle.hadoop.bucket;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Record of every committed bucketfile in a bucket, stored next to bucket.meta so that listing a bucket
+ * is a single read instead of a walk over every attribute directory.
+ *
+ * Names are relative to the bucket root and have no extension. Updates don't rewrite the manifest: each one
+ * is written as a small numbered log file, and readers apply the log in order on top of the manifest. Once
+ * the log holds more than COMPACT_LOGS files it's folded into a new manifest, so a listing reads the manifest
+ * and at most COMPACT_LOGS small files, and the manifest is rewritten once per COMPACT_LOGS updates. A new
+ * manifest replaces the old one by renaming the old one aside first; readers fall back to it until the new
+ * one is in place. A reader that finds the log files it needs deleted by a compaction starts over from the
+ * new manifest.
+ *
+ * Updates are serialized within a JVM; writers in separate processes must not update the same manifest
+ * concurrently, and files committed behind the bucket's back (e.g. by BucketOutputFormat jobs) only show up
+ * after Bucket#rebuildManifest.
+ *
+ * Entries also hold the number of records in each file when it's known, so counts don't open any files. A
+ * count is kept as long as its file keeps the same size, so a file replaced by one of exactly the same size
+ * keeps the old count until the manifest is rebuilt.
+ */
+public class BucketManifest {
+    public static final String MANIFEST = "bucket.manifest";
+    public static final String MANIFEST_TEMP = "bucket.manifesttmp";
+    public static final String MANIFEST_OLD = "bucket.manifestold";
+    public static final String MANIFEST_LOG = "bucket.manifestlog.";
+    private static final int VERSION = 3;
+    static final int COMPACT_LOGS = 8;
+    //reads that keep losing races with compactions give up eventually
+    private static final int MAX_READ_ATTEMPTS = 10;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_RECORDS = 3;
+
+    //held by the threads using a manifest, and dropped when the last one is done
+    private static class Lock {
+        Path path;
+        int users = 0;
+    }
+
+    private static final Map<Path, Lock> LOCKS = new HashMap<Path, Lock>();
+
+    private static class Op {
+        byte type;
+        String name;
+        long size;
+        long records;
+
+        Op(byte type, String name, long size, long records) {
+            this.type = type;
+            this.name = name;
+            this.size = size;
+            this.records = records;
+        }
+    }
+
+    //the entries with the log applied, and the number of the first log file that's missing
+    private static class Snapshot {
+        SortedMap<String, Entry> entries = new TreeMap<String, Entry>();
+        long nextLog;
+    }
+
+    public static class Entry {
+        private String attrPath;
+        private String name;
+        private long size;
+        private long records;
+
+        public Entry(String attrPath, String name, long size) {
+            this(attrPath, name, size, -1);
+        }
+
+        public Entry(String attrPath, String name, long size, long records) {
+            this.attrPath = attrPath;
+            this.name = name;
+            this.size = size;
+            this.records = records;
+        }
+
+        public static Entry fromUserFileName(String userfilename, long size, long records) {
+            int idx = userfilename.lastIndexOf('/');
+            if(idx < 0) return new Entry("", userfilename, size, records);
+            return new Entry(userfilename.substring(0, idx), userfilename.substring(idx + 1), size, records);
+        }
+
+        public String getAttrPath() {
+            return attrPath;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Number of records in the file, or -1 if it isn't known.
+         */
+        public long getRecords() {
+            return records;
+        }
+
+        public String getUserFileName() {
+            return join(attrPath, name);
+        }
+
+        static String join(String attrPath, String name) {
+            if(attrPath.length()==0) return name;
+            else return attrPath + "/" + name;
+        }
+
+        public boolean isWithin(String attrPrefix, boolean recursive) {
+            if(attrPrefix.length()==0) return recursive || attrPath.length()==0;
+            if(attrPath.equals(attrPrefix)) return true;
+            return recursive && attrPath.startsWith(attrPrefix + "/");
+        }
+    }
+
+    private static synchronized Lock acquire(Path path) {
+        Lock lock = LOCKS.get(path);
+        if(lock==null) {
+            lock = new Lock();
+            lock.path = path;
+            LOCKS.put(path, lock);
+        }
+        lock.users++;
+        return lock;
+    }
+
+    private static synchronized void release(Lock lock) {
+        if(--lock.users==0) LOCKS.remove(lock.path);
+    }
+
+    static synchronized int getLockCount() {
+        return LOCKS.size();
+    }
+
+    private FileSystem _fs;
+    private Path _root;
+    private Path _path;
+    private Path _tmpPath;
+    private Path _oldPath;
+    //where the next log file probably goes, or -1 if it has to be found
+    private long _nextLog = -1;
+
+    public BucketManifest(FileSystem fs, String root) {
+        _fs = fs;
+        _root = new Path(root).makeQualified(fs);
+        _path = new Path(root, MANIFEST).makeQualified(fs);
+        _tmpPath = new Path(root, MANIFEST_TEMP).makeQualified(fs);
+        _oldPath = new Path(root, MANIFEST_OLD).makeQualified(fs);
+    }
+
+    public Path getPath() {
+        return _path;
+    }
+
+    public boolean exists() throws IOException {
+        return _fs.exists(_path) || _fs.exists(_oldPath);
+    }
+
+    private Path logPath(long seq) {
+        return new Path(_root, MANIFEST_LOG + seq);
+    }
+
+    //the manifest, or the one renamed aside if a new one isn't in place yet
+    private FSDataInputStream openManifest() throws IOException {
+        try {
+            return _fs.open(_path);
+        } catch(FileNotFoundException e) {
+        }
+        try {
+            return _fs.open(_oldPath);
+        } catch(FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    //returns the first log file that applies and the number of entries
+    private static long[] readHeader(FSDataInputStream is, Path path) throws IOException {
+        int version = is.readInt();
+        if(version!=VERSION) throw new IOException("Unsupported manifest version " + version + " in " + path);
+        return new long[] {WritableUtils.readVLong(is), WritableUtils.readVInt(is)};
+    }
+
+    //the first log file the current manifest applies, or -1 if there's no manifest
+    private long readFirstLog() throws IOException {
+        FSDataInputStream is = openManifest();
+        if(is==null) return -1;
+        try {
+            return readHeader(is, _path)[0];
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Returns null if the manifest has not been written.
+     */
+    public SortedMap<String, Entry> read() throws IOException {
+        Snapshot ret = readSnapshot();
+        return ret==null ? null : ret.entries;
+    }
+
+    private Snapshot readSnapshot() throws IOException {
+        for(int attempt=0; attempt<MAX_READ_ATTEMPTS; attempt++) {
+            Snapshot ret = readSnapshotOnce();
+            if(ret==null) return null;
+            //the log stops at the first missing file, which is only its end if no compaction deleted it meanwhile
+            long firstLog = readFirstLog();
+            if(firstLog <= ret.nextLog) return ret;
+        }
+        throw new IOException("Manifest " + _path + " was compacted during each of " + MAX_READ_ATTEMPTS + " reads");
+    }
+
+    private Snapshot readSnapshotOnce() throws IOException {
+        FSDataInputStream is = openManifest();
+        if(is==null) return null;
+        Snapshot ret = new Snapshot();
+        try {
+            long[] header = readHeader(is, _path);
+            for(int i=0; i<header[1]; i++) {
+                Entry e = new Entry(WritableUtils.readString(is), WritableUtils.readString(is), WritableUtils.readVLong(is));
+                //stored plus one, so unknown counts are 0
+                e.records = WritableUtils.readVLong(is) - 1;
+                ret.entries.put(e.getUserFileName(), e);
+            }
+            ret.nextLog = header[0];
+        } finally {
+            is.close();
+        }
+        while(applyLog(ret.entries, ret.nextLog)) {
+            ret.nextLog++;
+        }
+        return ret;
+    }
+
+    private boolean applyLog(SortedMap<String, Entry> entries, long seq) throws IOException {
+        FSDataInputStream is;
+        try {
+            is = _fs.open(logPath(seq));
+        } catch(FileNotFoundException e) {
+            return false;
+        }
+        try {
+            int version = is.readInt();
+            if(version!=VERSION) throw new IOException("Unsupported manifest log version " + version + " in " + logPath(seq));
+            int count = WritableUtils.readVInt(is);
+            for(int i=0; i<count; i++) {
+                byte op = is.readByte();
+                String name = Entry.join(WritableUtils.readString(is), WritableUtils.readString(is));
+                if(op==OP_REMOVE) {
+                    entries.remove(name);
+                    continue;
+                }
+                long size = WritableUtils.readVLong(is);
+                long records = WritableUtils.readVLong(is) - 1;
+                Entry old = entries.get(name);
+                if(op==OP_ADD) {
+                    //a file that kept its size is assumed to be the one that was counted
+                    if(records < 0 && old!=null && old.size==size) records = old.records;
+                    entries.put(name, Entry.fromUserFileName(name, size, records));
+                } else if(op==OP_RECORDS) {
+                    if(old!=null && old.size==size) old.records = records;
+                } else {
+                    throw new IOException("Corrupt manifest log " + logPath(seq));
+                }
+            }
+        } finally {
+            is.close();
+        }
+        return true;
+    }
+
+    /**
+     * Entries at or below attrPrefix, or null if the manifest has not been written.
+     */
+    public List<Entry> getEntries(String attrPrefix) throws IOException {
+        SortedMap<String, Entry> all = read();
+        if(all==null) return null;
+        List<Entry> ret = new ArrayList<Entry>();
+        for(Entry e: all.values()) {
+            if(e.isWithin(attrPrefix, true)) ret.add(e);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns false without writing anything if the manifest doesn't exist yet, since it can't be
+     * updated incrementally.
+     */
+    public boolean update(Map<String, Long> committed, Collection<String> removed) throws IOException {
+        return update(committed, Collections.<String, Long>emptyMap(), removed);
+    }
+
+    /**
+     * Like update, also recording the number of records in committed files. Files missing from records keep
+     * the count of an entry of the same size already in the manifest, and otherwise get an unknown count.
+     */
+    public boolean update(Map<String, Long> committed, Map<String, Long> records, Collection<String> removed) throws IOException {
+        List<Op> ops = new ArrayList<Op>();
+        for(String name: removed) {
+            ops.add(new Op(OP_REMOVE, name, 0, -1));
+        }
+        for(Map.Entry<String, Long> c: committed.entrySet()) {
+            Long count = records.get(c.getKey());
+            ops.add(new Op(OP_ADD, c.getKey(), c.getValue(), count==null ? -1 : count));
+        }
+        return log(ops);
+    }
+
+    /**
+     * Records the number of records in files that are already in the manifest and still have the given size.
+     * Returns false if the manifest doesn't exist.
+     */
+    public boolean setRecords(Map<String, Long> sizes, Map<String, Long> records) throws IOException {
+        List<Op> ops = new ArrayList<Op>();
+        for(Map.Entry<String, Long> r: records.entrySet()) {
+            Long size = sizes.get(r.getKey());
+            if(size!=null) ops.add(new Op(OP_RECORDS, r.getKey(), size, r.getValue()));
+        }
+        return log(ops);
+    }
+
+    private boolean log(List<Op> ops) throws IOException {
+        if(ops.isEmpty()) return exists();
+        Lock lock = acquire(_path);
+        try {
+            synchronized(lock) {
+                FSDataInputStream is = openManifest();
+                if(is==null) return false;
+                long[] header;
+                try {
+                    header = readHeader(is, _path);
+                } finally {
+                    is.close();
+                }
+                long seq = findNextLog(header[0]);
+                writeLog(seq, ops);
+                _nextLog = seq + 1;
+                if(_nextLog - header[0] > COMPACT_LOGS) compact();
+                return true;
+            }
+        } finally {
+            release(lock);
+        }
+    }
+
+    //log files are numbered without gaps from the manifest's first one, since readers stop at the first gap
+    private long findNextLog(long firstLog) throws IOException {
+        long seq = firstLog;
+        if(_nextLog > firstLog && _fs.exists(logPath(_nextLog - 1))) seq = _nextLog;
+        while(_fs.exists(logPath(seq))) {
+            seq++;
+        }
+        return seq;
+    }
+
+    private void writeLog(long seq, List<Op> ops) throws IOException {
+        FSDataOutputStream os = _fs.create(logPath(seq), false);
+        try {
+            os.writeInt(VERSION);
+            WritableUtils.writeVInt(os, ops.size());
+            for(Op op: ops) {
+                Entry e = Entry.fromUserFileName(op.name, 0, -1);
+                os.writeByte(op.type);
+                WritableUtils.writeString(os, e.getAttrPath());
+                WritableUtils.writeString(os, e.getName());
+                if(op.type!=OP_REMOVE) {
+                    WritableUtils.writeVLong(os, op.size);
+                    WritableUtils.writeVLong(os, op.records + 1);
+                }
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+    //folds the log into a new manifest
+    private void compact() throws IOException {
+        Snapshot current = readSnapshot();
+        write(current.entries, current.nextLog);
+    }
+
+    /**
+     * Replaces every entry in attrPaths (and below them if recursive) with the given contents.
+     */
+    public void replace(Collection<String> attrPaths, boolean recursive, Map<String, Long> contents) throws IOException {
+        Lock lock = acquire(_path);
+        try {
+            synchronized(lock) {
+                Snapshot current = readSnapshot();
+                if(current==null) {
+                    current = new Snapshot();
+                    //logs left by a deleted manifest mustn't apply to this one
+                    current.nextLog = 1 + deleteLogs(Long.MAX_VALUE);
+                }
+                SortedMap<String, Entry> entries = current.entries;
+                Map<String, Entry> previous = new HashMap<String, Entry>(entries);
+                Iterator<Entry> it = entries.values().iterator();
+                while(it.hasNext()) {
+                    Entry e = it.next();
+                    for(String attrPath: attrPaths) {
+                        if(e.isWithin(attrPath, recursive)) {
+                            it.remove();
+                            break;
+                        }
+                    }
+                }
+                for(Map.Entry<String, Long> c: contents.entrySet()) {
+                    //a file that kept its size is assumed to be the one that was counted
+                    Entry old = previous.get(c.getKey());
+                    long records = old!=null && old.size==c.getValue() ? old.records : -1;
+                    Entry e = Entry.fromUserFileName(c.getKey(), c.getValue(), records);
+                    entries.put(e.getUserFileName(), e);
+                }
+                write(entries, current.nextLog);
+            }
+        } finally {
+            release(lock);
+        }
+    }
+
+    public void delete() throws IOException {
+        Lock lock = acquire(_path);
+        try {
+            synchronized(lock) {
+                _fs.delete(_path, false);
+                _fs.delete(_oldPath, false);
+                deleteLogs(Long.MAX_VALUE);
+                _nextLog = -1;
+            }
+        } finally {
+            release(lock);
+        }
+    }
+
+    //deletes the log files numbered below before, returning the highest number seen
+    private long deleteLogs(long before) throws IOException {
+        long highest = 0;
+        FileStatus[] logs = _fs.globStatus(new Path(_root, MANIFEST_LOG + "*"));
+        if(logs==null) return highest;
+        for(FileStatus log: logs) {
+            long seq;
+            try {
+                seq = Long.parseLong(log.getPath().getName().substring(MANIFEST_LOG.length()));
+            } catch(NumberFormatException e) {
+                continue;
+            }
+            highest = Math.max(highest, seq);
+            if(seq < before) _fs.delete(log.getPath(), false);
+        }
+        return highest;
+    }
+
+    //writes a manifest that the log applies to from firstLog on
+    private void write(SortedMap<String, Entry> entries, long firstLog) throws IOException {
+        FSDataOutputStream os = _fs.create(_tmpPath, true);
+        try {
+            os.writeInt(VERSION);
+            WritableUtils.writeVLong(os, firstLog);
+            WritableUtils.writeVInt(os, entries.size());
+            for(Entry e: entries.values()) {
+                WritableUtils.writeString(os, e.getAttrPath());
+                WritableUtils.writeString(os, e.getName());
+                WritableUtils.writeVLong(os, e.getSize());
+                WritableUtils.writeVLong(os, e.getRecords() + 1);
+            }
+        } finally {
+            os.close();
+        }
+        //renames don't replace, so the old manifest is moved aside and readers use it until the new one is in place
+        if(_fs.exists(_path)) {
+            _fs.delete(_oldPath, false);
+            if(!_fs.rename(_path, _oldPath)) throw new IOException("Unable to move old manifest aside " + _path.toString());
+        }
+        if(!_fs.rename(_tmpPath, _path)) {
+            _fs.rename(_oldPath, _path);
+            throw new IOException("Unable to rename manifest into place " + _tmpPath.toString());
+        }
+        _fs.delete(_oldPath, false);
+        deleteLogs(firstLog);
+        _nextLog = firstLog;
+    }
+}
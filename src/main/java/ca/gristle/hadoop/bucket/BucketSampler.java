@@ -0,0 +1,113 @@
+package ca.gristle.hadoop.bucket;
+
+import org.apache.hadoop.conf.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Picks each of a sequence of units (blocks, chunks of bytes or records) independently with probability
+ * fraction. Gaps between picks are drawn directly, so the cost is proportional to the number of units picked.
+ * Successive calls continue one sequence, so picking over many files is the same as picking over their
+ * concatenation, and the same seed always picks the same units.
+ */
+public class BucketSampler {
+    /**
+     * Fraction of each bucket a job reads. Set with setSampling.
+     */
+    public static final String FRACTION = "bucket.sample.fraction";
+    public static final String SEED = "bucket.sample.seed";
+
+    /**
+     * Size of the byte ranges formats without a block index are sampled in. Defaults to 64KB.
+     */
+    public static final String CHUNK_BYTES = "bucket.sample.chunk.bytes";
+    public static final long DEFAULT_CHUNK_BYTES = 64 * 1024;
+
+    private double _fraction;
+    private Random _rand;
+    //units to pass over before the next pick
+    private long _skip;
+
+    public BucketSampler(double fraction, long seed) {
+        if(fraction <= 0 || fraction > 1) throw new IllegalArgumentException("Sample fraction must be in (0, 1], got " + fraction);
+        _fraction = fraction;
+        _rand = new Random(seed);
+        _skip = nextSkip();
+    }
+
+    public static void setSampling(Configuration conf, double fraction, long seed) {
+        conf.setFloat(FRACTION, (float) fraction);
+        conf.setLong(SEED, seed);
+    }
+
+    /**
+     * The sampler jobs configured with setSampling use, or null if they read everything.
+     */
+    public static BucketSampler fromConf(Configuration conf) {
+        float fraction = conf.getFloat(FRACTION, 0);
+        if(fraction <= 0) return null;
+        return new BucketSampler(fraction, conf.getLong(SEED, 0));
+    }
+
+    public static long getChunkBytes(Configuration conf) {
+        return conf.getLong(CHUNK_BYTES, DEFAULT_CHUNK_BYTES);
+    }
+
+    public double getFraction() {
+        return _fraction;
+    }
+
+    private long nextSkip() {
+        if(_fraction >= 1) return 0;
+        //geometric: the number of failures before the first success
+        double u = 1 - _rand.nextDouble();
+        return (long) Math.floor(Math.log(u) / Math.log(1 - _fraction));
+    }
+
+    /**
+     * Whether the next unit is picked.
+     */
+    public boolean take() {
+        if(_skip > 0) {
+            _skip--;
+            return false;
+        }
+        _skip = nextSkip();
+        return true;
+    }
+
+    /**
+     * Indexes of the next units units that are picked, in order.
+     */
+    public List<Long> pick(long units) {
+        List<Long> ret = new ArrayList<Long>();
+        long pos = _skip;
+        while(pos < units) {
+            ret.add(pos);
+            pos += 1 + nextSkip();
+        }
+        _skip = pos - units;
+        return ret;
+    }
+
+    /**
+     * Picks among the chunkBytes sized chunks of [0, length), returning the picked chunks as [start, end)
+     * ranges with adjacent chunks merged.
+     */
+    public List<long[]> pickRanges(long length, long chunkBytes) {
+        List<long[]> ret = new ArrayList<long[]>();
+        for(long chunk: pick((length + chunkBytes - 1) / chunkBytes)) {
+            long start = chunk * chunkBytes;
+            long end = Math.min(length, start + chunkBytes);
+            long[] last = ret.isEmpty() ? null : ret.get(ret.size() - 1);
+            if(last!=null && last[1]==start) {
+                last[1] = end;
+            } else {
+                ret.add(new long[] {start, end});
+            }
+        }
+        return ret;
+    }
+}
@@ -17,6 +17,7 @@ public class BucketSpec implements Writable, Serializable {
     private String name;
     private Map<String, Object> args;
     private BucketStructure structure;
+    private boolean manifest = false;
 
     private static final BucketStructure DEFAULT_STRUCTURE = new DefaultBucketStructure();
 
@@ -51,6 +52,11 @@ public class BucketSpec implements Writable, Serializable {
         return this;
     }
 
+    public BucketSpec setManifest(boolean manifest) {
+        this.manifest = manifest;
+        return this;
+    }
+
     public BucketSpec setArg(String arg, Object val) {
         this.args.put(arg, val);
         return this;
@@ -88,6 +94,10 @@ public class BucketSpec implements Writable, Serializable {
         else return structure;
     }
 
+    public boolean hasManifest() {
+        return manifest;
+    }
+
 
     public static BucketSpec readFromFileSystem(FileSystem fs, Path path) throws IOException {
         FSDataInputStream is = fs.open(path);
@@ -116,7 +126,9 @@ public class BucketSpec implements Writable, Serializable {
         String name = (String) format.get("format");
         Map<String, Object> args = (Map<String, Object>) format.get("args");
         String structClass = (String) format.get("structure");
-        return new BucketSpec(name, args, getStructureFromClass(structClass));
+        Boolean manifest = (Boolean) format.get("manifest");
+        return new BucketSpec(name, args, getStructureFromClass(structClass))
+                .setManifest(manifest!=null && manifest);
     }
 
     public void writeToStream(OutputStream os) {
@@ -130,6 +142,9 @@ public class BucketSpec implements Writable, Serializable {
         if(structure!=null) {
             format.put("structure", structure.getClass().getName());
         }
+        if(manifest) {
+            format.put("manifest", true);
+        }
         return format;
     }
 
@@ -148,5 +163,6 @@ public class BucketSpec implements Writable, Serializable {
         BucketSpec spec = parseFromMap(new Yaml().load(WritableUtils.readString(di)));
         this.name = spec.name;
         this.args = spec.args;
+        this.manifest = spec.manifest;
     }
 }
@@ -1,5 +1,6 @@
 package ca.gristle.hadoop.bucket;
 
+import ca.gristle.hadoop.JobExecutor;
 import org.apache.hadoop.conf.Configuration;
 
 public class CopyArgs {
@@ -7,12 +8,15 @@ public class CopyArgs {
     public boolean copyMetadata = true;
     public boolean force = false;
     public Configuration configuration = new Configuration();
+    //runs the copy job. null picks one from configuration
+    public JobExecutor executor = null;
 
     public CopyArgs(CopyArgs other) {
         this.renameMode = other.renameMode;
         this.copyMetadata = other.copyMetadata;
         this.force = other.force;
         this.configuration = other.configuration;
+        this.executor = other.executor;
     }
 
     public CopyArgs() {
@@ -0,0 +1,148 @@
+package ca.gristle.hadoop.bucket;
+
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Record count, uncompressed record bytes and the min and max of each stat field for one bucketfile.
+ */
+public class FileStats {
+    private long _records = 0;
+    private long _bytes = 0;
+    private List<String> _fields;
+    private byte[][] _min;
+    private byte[][] _max;
+
+    public FileStats(List<String> fields) {
+        _fields = fields;
+        _min = new byte[fields.size()][];
+        _max = new byte[fields.size()][];
+    }
+
+    public static int compare(byte[] a, byte[] b) {
+        return WritableComparator.compareBytes(a, 0, a.length, b, 0, b.length);
+    }
+
+    /**
+     * Big-endian with the sign bit flipped, so longs compare in order as unsigned bytes.
+     */
+    public static byte[] sortable(long value) {
+        long v = value ^ Long.MIN_VALUE;
+        byte[] ret = new byte[8];
+        for(int i=7; i>=0; i--) {
+            ret[i] = (byte) v;
+            v >>>= 8;
+        }
+        return ret;
+    }
+
+    /**
+     * Counts a record of length bytes. values are its stat field values, or null if it has none.
+     */
+    public void add(int length, byte[][] values) {
+        _records++;
+        _bytes += length;
+        if(values==null) return;
+        for(int i=0; i<_min.length; i++) {
+            byte[] v = values[i];
+            if(v==null) continue;
+            if(_min[i]==null || compare(v, _min[i]) < 0) _min[i] = v;
+            if(_max[i]==null || compare(v, _max[i]) > 0) _max[i] = v;
+        }
+    }
+
+    public long getRecords() {
+        return _records;
+    }
+
+    public long getBytes() {
+        return _bytes;
+    }
+
+    public byte[] getMin(String field) {
+        int i = _fields.indexOf(field);
+        return i < 0 ? null : _min[i];
+    }
+
+    public byte[] getMax(String field) {
+        int i = _fields.indexOf(field);
+        return i < 0 ? null : _max[i];
+    }
+
+    /**
+     * False if no record in the file can satisfy every predicate. Predicates on fields that weren't recorded
+     * can't rule anything out.
+     */
+    public boolean mightMatch(RangePredicate... predicates) {
+        for(RangePredicate p: predicates) {
+            int i = _fields.indexOf(p.getField());
+            if(i < 0) continue;
+            //no record had a value for the field
+            if(_min[i]==null) return false;
+            if(!p.overlaps(_min[i], _max[i])) return false;
+        }
+        return true;
+    }
+
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        WritableUtils.writeVLong(out, _records);
+        WritableUtils.writeVLong(out, _bytes);
+        WritableUtils.writeVInt(out, _fields.size());
+        for(int i=0; i<_fields.size(); i++) {
+            WritableUtils.writeString(out, _fields.get(i));
+            writeValue(out, _min[i]);
+            writeValue(out, _max[i]);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    public static FileStats fromBytes(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        long records = WritableUtils.readVLong(in);
+        long size = WritableUtils.readVLong(in);
+        int count = WritableUtils.readVInt(in);
+        List<String> fields = new ArrayList<String>(count);
+        byte[][] min = new byte[count][];
+        byte[][] max = new byte[count][];
+        for(int i=0; i<count; i++) {
+            fields.add(WritableUtils.readString(in));
+            min[i] = readValue(in);
+            max[i] = readValue(in);
+        }
+        FileStats ret = new FileStats(fields);
+        ret._records = records;
+        ret._bytes = size;
+        ret._min = min;
+        ret._max = max;
+        return ret;
+    }
+
+    //length + 1 so 0 can mean null
+    private static void writeValue(DataOutputStream out, byte[] value) throws IOException {
+        if(value==null) {
+            WritableUtils.writeVInt(out, 0);
+        } else {
+            WritableUtils.writeVInt(out, value.length + 1);
+            out.write(value);
+        }
+    }
+
+    private static byte[] readValue(DataInputStream in) throws IOException {
+        int length = WritableUtils.readVInt(in);
+        if(length==0) return null;
+        byte[] ret = new byte[length - 1];
+        in.readFully(ret);
+        return ret;
+    }
+}
@@ -0,0 +1,8 @@
+package ca.gristle.hadoop.bucket;
+
+/**
+ * A structure whose records have a sort key, for the SortedFile format. Keys compare as unsigned bytes.
+ */
+public interface KeyedBucketStructure<T> extends BucketStructure<T> {
+    public byte[] getKey(T object);
+}
@@ -0,0 +1,32 @@
+package ca.gristle.hadoop.bucket;
+
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lists the bucketfiles whose stats don't rule out every predicate, so jobs only read files that might match.
+ */
+public class PrunedBucketPathLister implements BucketPathLister {
+    private AttrPredicate _attrs;
+    private RangePredicate[] _predicates;
+
+    public PrunedBucketPathLister(RangePredicate... predicates) {
+        this(null, predicates);
+    }
+
+    public PrunedBucketPathLister(AttrPredicate attrs, RangePredicate... predicates) {
+        _attrs = attrs;
+        _predicates = predicates;
+    }
+
+    public List<Path> getPaths(Bucket p) throws IOException {
+        List<Path> ret = new ArrayList<Path>();
+        for(String name: (List<String>) p.getUserFileNames(_attrs, _predicates)) {
+            ret.add(p.toStoredPath(name));
+        }
+        return ret;
+    }
+}
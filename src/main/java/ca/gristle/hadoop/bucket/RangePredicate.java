@@ -0,0 +1,45 @@
+package ca.gristle.hadoop.bucket;
+
+import java.io.Serializable;
+
+/**
+ * An inclusive range of values of a stat field. Either end may be null for an open range. Used to skip
+ * bucketfiles whose recorded min and max put them outside the range; records in files that can't be ruled
+ * out aren't filtered.
+ */
+public class RangePredicate implements Serializable {
+    private String _field;
+    private byte[] _min;
+    private byte[] _max;
+
+    public RangePredicate(String field, byte[] min, byte[] max) {
+        _field = field;
+        _min = min;
+        _max = max;
+    }
+
+    public static RangePredicate between(String field, long min, long max) {
+        return new RangePredicate(field, FileStats.sortable(min), FileStats.sortable(max));
+    }
+
+    public static RangePredicate atLeast(String field, long min) {
+        return new RangePredicate(field, FileStats.sortable(min), null);
+    }
+
+    public static RangePredicate atMost(String field, long max) {
+        return new RangePredicate(field, null, FileStats.sortable(max));
+    }
+
+    public String getField() {
+        return _field;
+    }
+
+    /**
+     * Whether some value in [fileMin, fileMax] is in the range.
+     */
+    public boolean overlaps(byte[] fileMin, byte[] fileMax) {
+        if(_min!=null && FileStats.compare(fileMax, _min) < 0) return false;
+        if(_max!=null && FileStats.compare(fileMin, _max) > 0) return false;
+        return true;
+    }
+}
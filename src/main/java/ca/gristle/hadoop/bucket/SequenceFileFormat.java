@@ -77,6 +77,17 @@ public class SequenceFileFormat implements BucketFormat {
             return new SequenceFileOutputStream(fs, path, type, codec);
     }
 
+    /**
+     * Picks among chunks of BucketSampler#CHUNK_BYTES bytes, reading each picked chunk from the sync mark
+     * after its start. Files without a picked chunk aren't opened.
+     */
+    @Override
+    public RecordInputStream getSampleInputStream(FileSystem fs, Path path, long length, BucketSampler sampler) throws IOException {
+        List<long[]> ranges = sampler.pickRanges(length, BucketSampler.getChunkBytes(fs.getConf()));
+        if(ranges.isEmpty()) return RecordInputStream.EMPTY;
+        return new SequenceFileInputStream(fs, path, length, ranges);
+    }
+
     public Class<? extends InputFormat> getInputFormatClass() {
         return SequenceFileBucketInputFormat.class;
     }
@@ -180,7 +191,8 @@ public class SequenceFileFormat implements BucketFormat {
             Path[] roots = FileInputFormat.getInputPaths(job);
             for(int i=0; i < roots.length; i++) {
                 _currBucket = new Bucket(roots[i].toString());
-                InputSplit[] splits = super.getSplits(job, numSplits);
+                BucketSampler sampler = BucketSampler.fromConf(job);
+                InputSplit[] splits = sampler==null ? super.getSplits(job, numSplits) : getSampleSplits(job, sampler);
                 for(InputSplit split: splits) {
                     ret.add(new BucketInputSplit(_currBucket.getFileSystem(), _currBucket.getInstanceRoot(), _currBucket.getSpec(), job, (FileSplit) split));
                 }
@@ -188,15 +200,23 @@ public class SequenceFileFormat implements BucketFormat {
             return ret.toArray(new InputSplit[ret.size()]);
         }
 
-        @Override
-        protected FileStatus[] listStatus(JobConf job) throws IOException {
-            List<Path> paths = BucketFormatFactory.getBucketPaths(_currBucket, job);
+        //one split per run of picked chunks, which the record reader reads from sync mark to sync mark
+        private InputSplit[] getSampleSplits(JobConf job, BucketSampler sampler) throws IOException {
+            List<InputSplit> ret = new ArrayList<InputSplit>();
+            long chunkBytes = BucketSampler.getChunkBytes(job);
             FileSystem fs = _currBucket.getFileSystem();
-            FileStatus[] ret = new FileStatus[paths.size()];
-            for(int i=0; i<paths.size(); i++) {
-                ret[i] = fs.getFileStatus(paths.get(i).makeQualified(fs));
+            for(FileStatus file: listStatus(job)) {
+                for(long[] range: sampler.pickRanges(file.getLen(), chunkBytes)) {
+                    long length = range[1] - range[0];
+                    ret.add(new FileSplit(file.getPath(), range[0], length, BucketFormatFactory.getSplitHosts(fs, file, range[0], length)));
+                }
             }
-            return ret;
+            return ret.toArray(new InputSplit[ret.size()]);
+        }
+
+        @Override
+        protected FileStatus[] listStatus(JobConf job) throws IOException {
+            return BucketFormatFactory.getBucketFileStatuses(_currBucket, job);
         }
 
         @Override
@@ -0,0 +1,267 @@
+package ca.gristle.hadoop.bucket;
+
+import ca.gristle.hadoop.formats.BlockFile;
+import ca.gristle.hadoop.formats.BlockFileInputStream;
+import ca.gristle.hadoop.formats.BlockFileOutputStream;
+import ca.gristle.hadoop.formats.MappedFileInputStream;
+import ca.gristle.hadoop.formats.RecordOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Block files whose records are sorted by the key of a KeyedBucketStructure. The index of each file holds the
+ * first and last key of every block, so lookups only read the blocks whose key range covers the key. A file's
+ * records are buffered in memory, up to sortBufferBytes, and sorted when it's closed. Past that the buffer is
+ * sorted and spilled as a run to a local temp file, and the runs are merged when the file is closed.
+ */
+public class SortedFileFormat extends BlockFileFormat {
+    private static class Entry {
+        byte[] key;
+        byte[] record;
+
+        Entry(byte[] key, byte[] record) {
+            this.key = key;
+            this.record = record;
+        }
+    }
+
+    private static final Comparator<Entry> BY_KEY = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            return compareKeys(a.key, b.key);
+        }
+    };
+
+    //a spilled run being merged, holding its next record
+    private static class Run implements Closeable {
+        int index;
+        long remaining;
+        DataInputStream in;
+        Entry head;
+
+        Run(int index, File file, long records) throws IOException {
+            this.index = index;
+            this.remaining = records;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+
+        boolean advance() throws IOException {
+            if(remaining==0) {
+                head = null;
+                return false;
+            }
+            remaining--;
+            byte[] key = new byte[WritableUtils.readVInt(in)];
+            in.readFully(key);
+            byte[] record = new byte[WritableUtils.readVInt(in)];
+            in.readFully(record);
+            head = new Entry(key, record);
+            return true;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    //earlier runs hold earlier records, so equal keys keep the order they were written in
+    private static final Comparator<Run> BY_HEAD = new Comparator<Run>() {
+        public int compare(Run a, Run b) {
+            int cmp = compareKeys(a.head.key, b.head.key);
+            if(cmp!=0) return cmp;
+            return a.index - b.index;
+        }
+    };
+
+    public static final String SORT_BUFFER_ARG = "sortBufferBytes";
+    public static final long DEFAULT_SORT_BUFFER_BYTES = 64L * 1024 * 1024;
+    //roughly what a buffered record costs beyond its key and bytes
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private KeyedBucketStructure _structure;
+    private long _sortBufferBytes;
+
+    public SortedFileFormat(Map<String, Object> args, BucketStructure structure) {
+        super(withoutSortArgs(args));
+        if(!(structure instanceof KeyedBucketStructure)) {
+            throw new IllegalArgumentException("The SortedFile format needs a KeyedBucketStructure, got " + (structure==null ? null : structure.getClass().getName()));
+        }
+        _structure = (KeyedBucketStructure) structure;
+        Object sortBuffer = args.get(SORT_BUFFER_ARG);
+        _sortBufferBytes = sortBuffer==null ? DEFAULT_SORT_BUFFER_BYTES : Long.parseLong(sortBuffer.toString());
+        if(_sortBufferBytes <= 0) throw new IllegalArgumentException("Sort buffer size must be positive: " + _sortBufferBytes);
+    }
+
+    private static Map<String, Object> withoutSortArgs(Map<String, Object> args) {
+        Map<String, Object> ret = new HashMap<String, Object>(args);
+        ret.remove(SORT_BUFFER_ARG);
+        return ret;
+    }
+
+    public static int compareKeys(byte[] a, byte[] b) {
+        return WritableComparator.compareBytes(a, 0, a.length, b, 0, b.length);
+    }
+
+    public byte[] getKey(byte[] record) {
+        return _structure.getKey(_structure.deserialize(record));
+    }
+
+    /**
+     * Joined files wouldn't be sorted.
+     */
+    @Override
+    public boolean canConcat() {
+        return false;
+    }
+
+    @Override
+    public RecordOutputStream getOutputStream(FileSystem fs, Path path) throws IOException {
+        final BlockFileOutputStream out = createBlockFileOutputStream(fs, path);
+        return new RecordOutputStream() {
+            private List<Entry> _entries = new ArrayList<Entry>();
+            private long _buffered = 0;
+            private List<File> _runs = new ArrayList<File>();
+            private List<Long> _runRecords = new ArrayList<Long>();
+
+            public void writeRaw(byte[] record) throws IOException {
+                writeRaw(record, 0, record.length);
+            }
+
+            public void writeRaw(byte[] record, int start, int length) throws IOException {
+                byte[] copy = Arrays.copyOfRange(record, start, start + length);
+                Entry e = new Entry(getKey(copy), copy);
+                _entries.add(e);
+                _buffered += e.key.length + e.record.length + ENTRY_OVERHEAD;
+                if(_buffered >= _sortBufferBytes) spill();
+            }
+
+            private void spill() throws IOException {
+                //stable, so records with equal keys keep the order they were written in
+                Collections.sort(_entries, BY_KEY);
+                File run = File.createTempFile("sortrun", null);
+                _runs.add(run);
+                DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)));
+                try {
+                    for(Entry e: _entries) {
+                        WritableUtils.writeVInt(os, e.key.length);
+                        os.write(e.key);
+                        WritableUtils.writeVInt(os, e.record.length);
+                        os.write(e.record);
+                    }
+                } finally {
+                    os.close();
+                }
+                _runRecords.add((long) _entries.size());
+                _entries.clear();
+                _buffered = 0;
+            }
+
+            public void close() throws IOException {
+                try {
+                    if(_runs.isEmpty()) {
+                        Collections.sort(_entries, BY_KEY);
+                        for(Entry e: _entries) {
+                            out.writeKeyed(e.key, e.record, 0, e.record.length);
+                        }
+                    } else {
+                        if(!_entries.isEmpty()) spill();
+                        merge();
+                    }
+                } finally {
+                    _entries = null;
+                    for(File run: _runs) {
+                        run.delete();
+                    }
+                }
+                out.close();
+            }
+
+            private void merge() throws IOException {
+                List<Run> runs = new ArrayList<Run>();
+                PriorityQueue<Run> heads = new PriorityQueue<Run>(_runs.size(), BY_HEAD);
+                try {
+                    for(int i=0; i<_runs.size(); i++) {
+                        Run run = new Run(i, _runs.get(i), _runRecords.get(i));
+                        runs.add(run);
+                        if(run.advance()) heads.add(run);
+                    }
+                    while(!heads.isEmpty()) {
+                        Run run = heads.poll();
+                        out.writeKeyed(run.head.key, run.head.record, 0, run.head.record.length);
+                        if(run.advance()) heads.add(run);
+                    }
+                } finally {
+                    for(Run run: runs) {
+                        run.close();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Writes records as they come, without keys. For files in the bucket that aren't bucketfiles.
+     */
+    public RecordOutputStream getUnsortedOutputStream(FileSystem fs, Path path) throws IOException {
+        return super.getOutputStream(fs, path);
+    }
+
+    /**
+     * Whether any block's key range covers key. Files written without keys might contain anything.
+     */
+    public static boolean mightContain(List<BlockFile.BlockInfo> blocks, byte[] key) {
+        for(BlockFile.BlockInfo block: blocks) {
+            if(block.getFirstKey()==null || covers(block, key)) return true;
+        }
+        return false;
+    }
+
+    private static boolean covers(BlockFile.BlockInfo block, byte[] key) {
+        return compareKeys(key, block.getFirstKey()) >= 0 && compareKeys(key, block.getLastKey()) <= 0;
+    }
+
+    /**
+     * Returns the records of path with the given key, reading only the blocks that might hold it. blocks is the
+     * file's index, as read by BlockFile#readIndex.
+     */
+    public List<byte[]> lookup(FileSystem fs, Path path, List<BlockFile.BlockInfo> blocks, byte[] key) throws IOException {
+        List<byte[]> ret = new ArrayList<byte[]>();
+        long length = -1;
+        for(BlockFile.BlockInfo block: blocks) {
+            if(block.getFirstKey()==null) throw new IOException(path + " was not written with keys");
+            if(!covers(block, key)) continue;
+            if(length < 0) length = fs.getFileStatus(path).getLen();
+            BlockFileInputStream is = new BlockFileInputStream(MappedFileInputStream.open(fs, path), fs.getConf(), length, block.getOffset(), block.getOffset() + 1);
+            try {
+                byte[] record;
+                while((record = is.readRawRecord())!=null) {
+                    int cmp = compareKeys(getKey(record), key);
+                    if(cmp==0) ret.add(record);
+                    else if(cmp > 0) break;
+                }
+            } finally {
+                is.close();
+            }
+        }
+        return ret;
+    }
+}
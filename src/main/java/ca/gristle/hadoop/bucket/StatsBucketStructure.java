@@ -0,0 +1,16 @@
+package ca.gristle.hadoop.bucket;
+
+import java.util.List;
+
+/**
+ * A structure with fields whose min and max are recorded for every bucketfile, so range predicates can skip
+ * files. Values compare as unsigned bytes; FileStats#sortable encodes longs that way.
+ */
+public interface StatsBucketStructure<T> extends BucketStructure<T> {
+    public List<String> getStatFields();
+
+    /**
+     * Values of the stat fields in the order of getStatFields. A null value is left out of the min and max.
+     */
+    public byte[][] getStatValues(T object);
+}
@@ -8,8 +8,11 @@ import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.security.AccessControlException;
 
-import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
@@ -234,15 +237,19 @@ public class VersionedStore {
     }
 
     private void createNewFile(String path) throws IOException {
-        if(fs instanceof LocalFileSystem)
-            new File(path).createNewFile();
-        else
+        if(fs instanceof LocalFileSystem) {
+            try {
+                Files.createFile(toLocal(path));
+            } catch(FileAlreadyExistsException e) {
+                //same as FileSystem#createNewFile
+            }
+        } else
             fs.createNewFile(new Path(path));
     }
 
     private void mkdirs(String path) throws IOException {
         if(fs instanceof LocalFileSystem)
-            new File(path).mkdirs();
+            Files.createDirectories(toLocal(path));
         else {
             try {
                 fs.mkdirs(new Path(path));
@@ -256,8 +263,13 @@ public class VersionedStore {
     private List<Path> listDir(String dir) throws IOException {
         List<Path> ret = new ArrayList<Path>();
         if(fs instanceof LocalFileSystem) {
-            for(File f: new File(dir).listFiles()) {
-                ret.add(new Path(f.getAbsolutePath()));
+            DirectoryStream<java.nio.file.Path> contents = Files.newDirectoryStream(toLocal(dir));
+            try {
+                for(java.nio.file.Path f: contents) {
+                    ret.add(new Path(f.toAbsolutePath().toString()));
+                }
+            } finally {
+                contents.close();
             }
         } else {
             for(FileStatus status: fs.listStatus(new Path(dir))) {
@@ -266,4 +278,8 @@ public class VersionedStore {
         }
         return ret;
     }
+
+    private static java.nio.file.Path toLocal(String path) {
+        return Paths.get(new Path(path).toUri().getPath());
+    }
 }
@@ -0,0 +1,183 @@
+package ca.gristle.hadoop.formats;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Copies records into a ring of buffers that a background thread drains into the wrapped stream, so
+ * writers only pay for the copy. A failure in the background thread is rethrown by the next write that
+ * hands off a buffer, or by close.
+ */
+public class AsyncRecordOutputStream implements RecordOutputStream {
+    private static class Batch {
+        byte[] data;
+        int[] offsets = new int[1025];
+        int count = 0;
+
+        Batch(int bytes) {
+            data = new byte[bytes];
+        }
+
+        int length() {
+            return offsets[count];
+        }
+
+        void add(byte[] record, int start, int length) {
+            int end = length() + length;
+            if(end > data.length) data = Arrays.copyOf(data, Math.max(end, data.length * 2));
+            if(count + 1 >= offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            System.arraycopy(record, start, data, length(), length);
+            offsets[++count] = end;
+        }
+
+        void reset() {
+            count = 0;
+        }
+    }
+
+    private static final Batch END = new Batch(0);
+
+    private RecordOutputStream _delegate;
+    private int _bufferBytes;
+    private BlockingQueue<Batch> _free;
+    private BlockingQueue<Batch> _full;
+    private Batch _curr;
+    private Thread _drainer;
+    private volatile Throwable _error = null;
+    private boolean _closed = false;
+
+    public AsyncRecordOutputStream(RecordOutputStream delegate, int buffers, int bufferBytes) {
+        if(buffers < 2) throw new IllegalArgumentException("Need at least 2 buffers to write asynchronously, got " + buffers);
+        _delegate = delegate;
+        _bufferBytes = bufferBytes;
+        _free = new ArrayBlockingQueue<Batch>(buffers);
+        _full = new ArrayBlockingQueue<Batch>(buffers);
+        _curr = new Batch(bufferBytes);
+        for(int i=1; i<buffers; i++) {
+            _free.add(new Batch(bufferBytes));
+        }
+        _drainer = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "bucket-writer");
+        _drainer.setDaemon(true);
+        _drainer.start();
+    }
+
+    private void drain() {
+        try {
+            while(true) {
+                Batch batch = _full.take();
+                if(batch==END) return;
+                //after a failure keep recycling buffers so the writer never blocks waiting for one
+                if(_error==null) {
+                    try {
+                        _delegate.writeRawBatch(batch.data, batch.offsets, batch.count);
+                    } catch(Throwable t) {
+                        _error = t;
+                    }
+                }
+                batch.reset();
+                _free.put(batch);
+            }
+        } catch(InterruptedException e) {
+            fail(new InterruptedIOException("Interrupted writing records"));
+        }
+    }
+
+    public void writeRaw(byte[] record) throws IOException {
+        writeRaw(record, 0, record.length);
+    }
+
+    public void writeRaw(byte[] record, int start, int length) throws IOException {
+        if(_closed) checkClosed();
+        _curr.add(record, start, length);
+        if(_curr.length() >= _bufferBytes) handOff();
+    }
+
+    @Override
+    public void writeRawBatch(byte[] packed, int[] offsets, int count) throws IOException {
+        if(_closed) checkClosed();
+        for(int i=0; i<count; i++) {
+            _curr.add(packed, offsets[i], offsets[i+1] - offsets[i]);
+        }
+        if(_curr.length() >= _bufferBytes) handOff();
+    }
+
+    private void handOff() throws IOException {
+        checkError();
+        try {
+            _full.put(_curr);
+            _curr = _free.take();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            //the hand-off may be half done, so the stream can't be written to any more
+            throw fail(new InterruptedIOException("Interrupted handing off records to the writer thread"));
+        }
+    }
+
+    private void checkClosed() throws IOException {
+        checkError();
+        throw new IOException("Stream is closed");
+    }
+
+    //keeps the first failure, which every later write and close rethrows
+    private IOException fail(IOException e) {
+        if(_error==null) _error = e;
+        return e;
+    }
+
+    private void checkError() throws IOException {
+        if(_error!=null) {
+            if(_error instanceof IOException) throw (IOException) _error;
+            if(_error instanceof RuntimeException) throw (RuntimeException) _error;
+            throw new IOException(_error);
+        }
+    }
+
+    /**
+     * Flushes the remaining records, waits for the writer thread and closes the wrapped stream. The wrapped stream
+     * is closed even if this fails or is interrupted, and a close that failed fails again when retried.
+     */
+    public void close() throws IOException {
+        if(_closed) {
+            checkError();
+            return;
+        }
+        _closed = true;
+        boolean done = false;
+        try {
+            if(_curr.count > 0) _full.put(_curr);
+            _full.put(END);
+            _drainer.join();
+            checkError();
+            done = true;
+        } catch(InterruptedException e) {
+            _drainer.interrupt();
+            try {
+                _drainer.join();
+            } catch(InterruptedException e2) {
+                //closing the delegate under the writer thread at worst fails that thread's last write
+            }
+            Thread.currentThread().interrupt();
+            throw fail(new InterruptedIOException("Interrupted waiting for the writer thread"));
+        } finally {
+            if(!done) {
+                try {
+                    _delegate.close();
+                } catch(IOException e) {
+                    //the first failure is the one worth reporting
+                }
+            }
+        }
+        try {
+            _delegate.close();
+        } catch(IOException e) {
+            throw fail(e);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package ca.gristle.hadoop.formats;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Layout of block files. A file is one or more segments, each of which is
+ *
+ *   header:  TAG_HEADER, MAGIC, VERSION, codec class name ("" for uncompressed)
+ *   blocks:  TAG_BLOCK, vint record count, vint raw length, vint stored length, stored bytes
+ *   index:   TAG_INDEX, vint block count, then per block a vlong offset from the segment start and a vint record count
+ *            or TAG_KEYED_INDEX, which follows each block's entry with its first and last record keys as byte arrays
+ *   trailer: long segment length, long index offset from the segment start, END_MAGIC
+ *
+ * Records within a raw block are a vint length followed by the record bytes. Since every offset is relative to
+ * its own segment, files can be concatenated byte for byte and still read and split correctly.
+ */
+public class BlockFile {
+    public static final byte TAG_HEADER = 1;
+    public static final byte TAG_BLOCK = 2;
+    public static final byte TAG_INDEX = 3;
+    public static final byte TAG_KEYED_INDEX = 4;
+    public static final byte[] MAGIC = new byte[] {'B', 'L', 'K', 'F'};
+    public static final byte[] END_MAGIC = new byte[] {'B', 'L', 'K', 'E'};
+    public static final byte VERSION = 1;
+    public static final int TRAILER_LENGTH = 8 + 8 + END_MAGIC.length;
+
+    public static class BlockInfo {
+        private long offset;
+        private int records;
+        private byte[] firstKey;
+        private byte[] lastKey;
+
+        public BlockInfo(long offset, int records) {
+            this(offset, records, null, null);
+        }
+
+        public BlockInfo(long offset, int records, byte[] firstKey, byte[] lastKey) {
+            this.offset = offset;
+            this.records = records;
+            this.firstKey = firstKey;
+            this.lastKey = lastKey;
+        }
+
+        /**
+         * Position of the block's tag. Indexes read with readIndex hold positions within the whole file, while the
+         * writer's entries are relative to the segment being written, as they're stored.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getRecords() {
+            return records;
+        }
+
+        /**
+         * Key of the block's first record, or null if the file wasn't written with keys.
+         */
+        public byte[] getFirstKey() {
+            return firstKey;
+        }
+
+        public byte[] getLastKey() {
+            return lastKey;
+        }
+    }
+
+    /**
+     * Reads the body of an index whose tag has already been read. Offsets are made absolute with segmentStart.
+     */
+    public static List<BlockInfo> readIndexEntries(DataInput in, byte tag, long segmentStart) throws IOException {
+        int count = WritableUtils.readVInt(in);
+        List<BlockInfo> blocks = new ArrayList<BlockInfo>(count);
+        for(int i=0; i<count; i++) {
+            long offset = segmentStart + WritableUtils.readVLong(in);
+            int records = WritableUtils.readVInt(in);
+            if(tag==TAG_KEYED_INDEX) {
+                byte[] firstKey = readKey(in);
+                blocks.add(new BlockInfo(offset, records, firstKey, readKey(in)));
+            } else {
+                blocks.add(new BlockInfo(offset, records));
+            }
+        }
+        return blocks;
+    }
+
+    static void writeKey(DataOutput out, byte[] key) throws IOException {
+        WritableUtils.writeVInt(out, key.length);
+        out.write(key);
+    }
+
+    private static byte[] readKey(DataInput in) throws IOException {
+        byte[] ret = new byte[WritableUtils.readVInt(in)];
+        in.readFully(ret);
+        return ret;
+    }
+
+    /**
+     * Reads the index of every segment, walking back from the end of the file. Blocks are returned in file order.
+     */
+    public static List<BlockInfo> readIndex(FileSystem fs, Path path) throws IOException {
+        long length = fs.getFileStatus(path).getLen();
+        FSDataInputStream in = fs.open(path);
+        try {
+            return readIndex(in, length, path);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Like readIndex(fs, path), through an open stream of a file of the given length. path is only for errors.
+     */
+    public static List<BlockInfo> readIndex(FSDataInputStream in, long length, Path path) throws IOException {
+        long end = length;
+        List<List<BlockInfo>> segments = new ArrayList<List<BlockInfo>>();
+        while(end > 0) {
+            long[] trailer = readTrailer(in, end);
+            long segmentStart = end - trailer[0];
+            in.seek(segmentStart + trailer[1]);
+            byte tag = in.readByte();
+            if(tag!=TAG_INDEX && tag!=TAG_KEYED_INDEX) throw new IOException("Missing block index at " + (segmentStart + trailer[1]) + " in " + path);
+            segments.add(readIndexEntries(in, tag, segmentStart));
+            end = segmentStart;
+        }
+        Collections.reverse(segments);
+        List<BlockInfo> ret = new ArrayList<BlockInfo>();
+        for(List<BlockInfo> blocks: segments) {
+            ret.addAll(blocks);
+        }
+        return ret;
+    }
+
+    /**
+     * Start of the segment containing offset, found by walking back through the trailers from length.
+     */
+    public static long findSegmentStart(FSDataInputStream in, long length, long offset) throws IOException {
+        long end = length;
+        while(end > 0) {
+            long segmentStart = end - readTrailer(in, end)[0];
+            if(segmentStart <= offset) return segmentStart;
+            end = segmentStart;
+        }
+        return 0;
+    }
+
+    /**
+     * Codec class name of each segment ("" for uncompressed), in file order.
+     */
+    public static List<String> readCodecNames(FileSystem fs, Path path) throws IOException {
+        long end = fs.getFileStatus(path).getLen();
+        List<String> ret = new ArrayList<String>();
+        FSDataInputStream in = fs.open(path);
+        try {
+            while(end > 0) {
+                long segmentStart = end - readTrailer(in, end)[0];
+                in.seek(segmentStart);
+                if(in.readByte()!=TAG_HEADER) throw new IOException("Missing block file header at " + segmentStart + " in " + path);
+                ret.add(readHeader(in));
+                end = segmentStart;
+            }
+        } finally {
+            in.close();
+        }
+        Collections.reverse(ret);
+        return ret;
+    }
+
+    /**
+     * Reads the body of a header whose tag has already been read, returning its codec class name.
+     */
+    public static String readHeader(DataInput in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if(!Arrays.equals(magic, MAGIC)) throw new IOException("Not a block file");
+        byte version = in.readByte();
+        if(version!=VERSION) throw new IOException("Unsupported block file version " + version);
+        return WritableUtils.readString(in);
+    }
+
+    //returns the segment length and index offset of the segment ending at end
+    private static long[] readTrailer(FSDataInputStream in, long end) throws IOException {
+        if(end < TRAILER_LENGTH) throw new IOException("Truncated block file");
+        in.seek(end - TRAILER_LENGTH);
+        long segmentLength = in.readLong();
+        long indexOffset = in.readLong();
+        byte[] magic = new byte[END_MAGIC.length];
+        in.readFully(magic);
+        if(!Arrays.equals(magic, END_MAGIC) || segmentLength > end) {
+            throw new IOException("Corrupt block file trailer at " + (end - TRAILER_LENGTH));
+        }
+        return new long[] {segmentLength, indexOffset};
+    }
+}
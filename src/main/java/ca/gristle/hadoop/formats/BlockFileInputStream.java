@@ -0,0 +1,221 @@
+package ca.gristle.hadoop.formats;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class BlockFileInputStream implements RecordInputStream {
+
+    private FSDataInputStream _in;
+    private MappedFileInputStream _mapped;
+    private Configuration _conf;
+    private long _length;
+    private long _end;
+    private String _codecName = null;
+    private CompressionCodec _codec = null;
+    private Decompressor _decompressor = null;
+    private byte[] _stored = new byte[0];
+    private byte[] _block = new byte[0];
+    private int _blockLength = 0;
+    private int _pos = 0;
+    private ByteBuffer _view = null;
+
+    public BlockFileInputStream(FSDataInputStream in, Configuration conf) throws IOException {
+        this(in, conf, 0, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads the blocks that start in [start, end). start must be 0 or the offset of a block, and length the length
+     * of the whole file.
+     */
+    public BlockFileInputStream(FSDataInputStream in, Configuration conf, long length, long start, long end) throws IOException {
+        _in = in;
+        _mapped = in.getWrappedStream() instanceof MappedFileInputStream ? (MappedFileInputStream) in.getWrappedStream() : null;
+        _conf = conf;
+        _length = length;
+        seek(start, end);
+    }
+
+    /**
+     * Moves on to the blocks that start in [start, end), dropping the rest of the current block. Lets one
+     * stream read several ranges of a file.
+     */
+    public void seek(long start, long end) throws IOException {
+        _end = end;
+        _blockLength = 0;
+        _pos = 0;
+        //blocks don't say how they're compressed, so the header of the segment holding start has to be read first
+        long segmentStart = start > 0 ? BlockFile.findSegmentStart(_in, _length, start) : 0;
+        _in.seek(segmentStart);
+        if(_in.readByte()!=BlockFile.TAG_HEADER) throw new IOException("Not a block file");
+        readHeader();
+        if(start > 0) _in.seek(start);
+    }
+
+    private void readHeader() throws IOException {
+        String codecName = BlockFile.readHeader(_in);
+        if(codecName.equals(_codecName)) return;
+        releaseDecompressor();
+        _codecName = codecName;
+        if(codecName.length()==0) {
+            _codec = null;
+        } else {
+            try {
+                _codec = (CompressionCodec) ReflectionUtils.newInstance(Class.forName(codecName), _conf);
+            } catch(ClassNotFoundException e) {
+                throw new IOException("Unknown codec " + codecName, e);
+            }
+            _decompressor = CodecPool.getDecompressor(_codec);
+        }
+    }
+
+    /**
+     * Position of the next unread block, index or header.
+     */
+    public long getPos() throws IOException {
+        return _in.getPos();
+    }
+
+    private boolean nextBlock() throws IOException {
+        while(true) {
+            if(_in.getPos() >= _end) return false;
+            byte tag;
+            try {
+                tag = _in.readByte();
+            } catch(EOFException e) {
+                return false;
+            }
+            if(tag==BlockFile.TAG_BLOCK) {
+                readBlock();
+                return true;
+            } else if(tag==BlockFile.TAG_INDEX || tag==BlockFile.TAG_KEYED_INDEX) {
+                BlockFile.readIndexEntries(_in, tag, 0);
+                _in.readFully(new byte[BlockFile.TRAILER_LENGTH]);
+            } else if(tag==BlockFile.TAG_HEADER) {
+                //start of a concatenated segment
+                readHeader();
+            } else {
+                throw new IOException("Corrupt block file: unexpected tag " + tag + " at " + (_in.getPos() - 1));
+            }
+        }
+    }
+
+    private void readBlock() throws IOException {
+        WritableUtils.readVInt(_in);
+        int rawLength = WritableUtils.readVInt(_in);
+        int storedLength = WritableUtils.readVInt(_in);
+        if(_block.length < rawLength) _block = new byte[Math.max(rawLength, _block.length * 2)];
+        if(_codec==null) {
+            _in.readFully(_block, 0, rawLength);
+        } else {
+            InputStream stored = storedStream(storedLength);
+            if(_decompressor!=null) _decompressor.reset();
+            CompressionInputStream cis = _decompressor==null ?
+                    _codec.createInputStream(stored) :
+                    _codec.createInputStream(stored, _decompressor);
+            int read = 0;
+            while(read < rawLength) {
+                int n = cis.read(_block, read, rawLength - read);
+                if(n < 0) throw new EOFException("Block decompressed to " + read + " bytes, expected " + rawLength);
+                read += n;
+            }
+        }
+        _blockLength = rawLength;
+        _pos = 0;
+    }
+
+    //decompresses straight out of the mapping when the file is mapped
+    private InputStream storedStream(int storedLength) throws IOException {
+        if(_mapped!=null) {
+            long pos = _in.getPos();
+            ByteBuffer slice = _mapped.slice(pos, storedLength);
+            if(slice!=null) {
+                _in.seek(pos + storedLength);
+                return new ByteBufferInputStream(slice);
+            }
+        }
+        if(_stored.length < storedLength) _stored = new byte[Math.max(storedLength, _stored.length * 2)];
+        _in.readFully(_stored, 0, storedLength);
+        return new ByteArrayInputStream(_stored, 0, storedLength);
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private ByteBuffer _buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            _buf = buf;
+        }
+
+        public int read() {
+            return _buf.hasRemaining() ? _buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if(len==0) return 0;
+            if(!_buf.hasRemaining()) return -1;
+            len = Math.min(len, _buf.remaining());
+            _buf.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return _buf.remaining();
+        }
+    }
+
+    //same encoding as WritableUtils#readVLong
+    private int readVInt() {
+        byte first = _block[_pos++];
+        int size = WritableUtils.decodeVIntSize(first);
+        if(size==1) return first;
+        long ret = 0;
+        for(int i=0; i<size-1; i++) {
+            ret = (ret << 8) | (_block[_pos++] & 0xFF);
+        }
+        return (int) (WritableUtils.isNegativeVInt(first) ? (ret ^ -1L) : ret);
+    }
+
+    public ByteBuffer readRecord() throws IOException {
+        while(_pos >= _blockLength) {
+            if(!nextBlock()) return null;
+        }
+        int length = readVInt();
+        if(_view==null || _view.array()!=_block) _view = ByteBuffer.wrap(_block);
+        _view.limit(_pos + length);
+        _view.position(_pos);
+        _pos += length;
+        return _view;
+    }
+
+    public byte[] readRawRecord() throws IOException {
+        ByteBuffer record = readRecord();
+        if(record==null) return null;
+        return Arrays.copyOfRange(record.array(), record.position(), record.limit());
+    }
+
+    private void releaseDecompressor() {
+        if(_decompressor!=null) {
+            CodecPool.returnDecompressor(_decompressor);
+            _decompressor = null;
+        }
+    }
+
+    public void close() throws IOException {
+        releaseDecompressor();
+        _in.close();
+    }
+}
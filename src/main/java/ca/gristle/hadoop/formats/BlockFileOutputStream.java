@@ -0,0 +1,193 @@
+package ca.gristle.hadoop.formats;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BlockFileOutputStream implements RecordOutputStream {
+
+    private FSDataOutputStream _out;
+    private CompressionCodec _codec;
+    private Compressor _compressor;
+    private int _blockSize;
+    private long _segmentStart;
+    private DataOutputBuffer _raw = new DataOutputBuffer();
+    private DataOutputBuffer _stored = new DataOutputBuffer();
+    private int _records = 0;
+    //offsets from _segmentStart, as written to the index
+    private List<BlockFile.BlockInfo> _index = new ArrayList<BlockFile.BlockInfo>();
+    private Boolean _keyed = null;
+    private byte[] _firstKey = null;
+    private byte[] _lastKey = null;
+    private byte[] _copyBuffer = null;
+
+    /**
+     * codec may be null to store blocks uncompressed. blockSize is the uncompressed size at which a block is
+     * closed off.
+     */
+    public BlockFileOutputStream(FSDataOutputStream out, CompressionCodec codec, int blockSize) throws IOException {
+        _out = out;
+        _codec = codec;
+        _blockSize = blockSize;
+        if(_codec!=null) _compressor = CodecPool.getCompressor(_codec);
+        _segmentStart = _out.getPos();
+        _out.writeByte(BlockFile.TAG_HEADER);
+        _out.write(BlockFile.MAGIC);
+        _out.writeByte(BlockFile.VERSION);
+        WritableUtils.writeString(_out, _codec==null ? "" : _codec.getClass().getName());
+    }
+
+    public void writeRaw(byte[] record) throws IOException {
+        writeRaw(record, 0, record.length);
+    }
+
+    public void writeRaw(byte[] record, int start, int length) throws IOException {
+        checkKeyed(false);
+        append(record, start, length);
+    }
+
+    /**
+     * Writes a record along with its key, so the index records the first and last key of each block. A file is
+     * either written entirely with keys or entirely without. Keys aren't stored with the records and aren't
+     * checked for order.
+     */
+    public void writeKeyed(byte[] key, byte[] record, int start, int length) throws IOException {
+        checkKeyed(true);
+        if(_records==0) _firstKey = key;
+        _lastKey = key;
+        append(record, start, length);
+    }
+
+    private void checkKeyed(boolean keyed) {
+        if(_keyed==null) _keyed = keyed;
+        else if(_keyed!=keyed) throw new IllegalStateException("Can't mix keyed and unkeyed records in a block file");
+    }
+
+    private void append(byte[] record, int start, int length) throws IOException {
+        WritableUtils.writeVInt(_raw, length);
+        _raw.write(record, start, length);
+        _records++;
+        if(_raw.getLength() >= _blockSize) flushBlock();
+    }
+
+    private void flushBlock() throws IOException {
+        if(_records==0) return;
+        byte[] stored;
+        int storedLength;
+        if(_codec==null) {
+            stored = _raw.getData();
+            storedLength = _raw.getLength();
+        } else {
+            _stored.reset();
+            if(_compressor!=null) _compressor.reset();
+            CompressionOutputStream cos = _compressor==null ? _codec.createOutputStream(_stored) : _codec.createOutputStream(_stored, _compressor);
+            cos.write(_raw.getData(), 0, _raw.getLength());
+            cos.finish();
+            stored = _stored.getData();
+            storedLength = _stored.getLength();
+        }
+        _index.add(new BlockFile.BlockInfo(_out.getPos() - _segmentStart, _records, _firstKey, _lastKey));
+        _out.writeByte(BlockFile.TAG_BLOCK);
+        WritableUtils.writeVInt(_out, _records);
+        WritableUtils.writeVInt(_out, _raw.getLength());
+        WritableUtils.writeVInt(_out, storedLength);
+        _out.write(stored, 0, storedLength);
+        _raw.reset();
+        _records = 0;
+    }
+
+    /**
+     * Copies the file's blocks as they're stored when every segment of it uses this stream's codec. Keys aren't
+     * carried over, so this only works on streams written without keys.
+     */
+    @Override
+    public boolean appendStored(FileSystem fs, Path path) throws IOException {
+        if(_keyed!=null && _keyed) return false;
+        String codecName = _codec==null ? "" : _codec.getClass().getName();
+        for(String name: BlockFile.readCodecNames(fs, path)) {
+            if(!name.equals(codecName)) return false;
+        }
+        checkKeyed(false);
+        flushBlock();
+        if(_copyBuffer==null) _copyBuffer = new byte[128*1024];
+        FSDataInputStream in = fs.open(path);
+        try {
+            while(true) {
+                byte tag;
+                try {
+                    tag = in.readByte();
+                } catch(EOFException e) {
+                    return true;
+                }
+                if(tag==BlockFile.TAG_BLOCK) {
+                    copyBlock(in);
+                } else if(tag==BlockFile.TAG_INDEX || tag==BlockFile.TAG_KEYED_INDEX) {
+                    BlockFile.readIndexEntries(in, tag, 0);
+                    in.readFully(_copyBuffer, 0, BlockFile.TRAILER_LENGTH);
+                } else if(tag==BlockFile.TAG_HEADER) {
+                    BlockFile.readHeader(in);
+                } else {
+                    throw new IOException("Corrupt block file " + path + ": unexpected tag " + tag + " at " + (in.getPos() - 1));
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void copyBlock(FSDataInputStream in) throws IOException {
+        int records = WritableUtils.readVInt(in);
+        int rawLength = WritableUtils.readVInt(in);
+        int storedLength = WritableUtils.readVInt(in);
+        _index.add(new BlockFile.BlockInfo(_out.getPos() - _segmentStart, records));
+        _out.writeByte(BlockFile.TAG_BLOCK);
+        WritableUtils.writeVInt(_out, records);
+        WritableUtils.writeVInt(_out, rawLength);
+        WritableUtils.writeVInt(_out, storedLength);
+        while(storedLength > 0) {
+            int n = Math.min(storedLength, _copyBuffer.length);
+            in.readFully(_copyBuffer, 0, n);
+            _out.write(_copyBuffer, 0, n);
+            storedLength -= n;
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            flushBlock();
+            long indexOffset = _out.getPos() - _segmentStart;
+            boolean keyed = _keyed!=null && _keyed;
+            _out.writeByte(keyed ? BlockFile.TAG_KEYED_INDEX : BlockFile.TAG_INDEX);
+            WritableUtils.writeVInt(_out, _index.size());
+            for(BlockFile.BlockInfo block: _index) {
+                WritableUtils.writeVLong(_out, block.getOffset());
+                WritableUtils.writeVInt(_out, block.getRecords());
+                if(keyed) {
+                    BlockFile.writeKey(_out, block.getFirstKey());
+                    BlockFile.writeKey(_out, block.getLastKey());
+                }
+            }
+            _out.writeLong(_out.getPos() - _segmentStart + BlockFile.TRAILER_LENGTH);
+            _out.writeLong(indexOffset);
+            _out.write(BlockFile.END_MAGIC);
+            _out.close();
+        } finally {
+            if(_compressor!=null) {
+                CodecPool.returnCompressor(_compressor);
+                _compressor = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package ca.gristle.hadoop.formats;
+
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.fs.Seekable;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a local file through memory mappings, skipping the checksummed stream stack of LocalFileSystem. Files
+ * are mapped lazily in segments so large files don't need a single mapping and splits only map what they read.
+ */
+public class MappedFileInputStream extends InputStream implements Seekable, PositionedReadable, ByteBufferReadable {
+    /**
+     * Whether reads of files on the local filesystem go through memory mappings. Defaults to false, since mapped
+     * reads don't verify .crc checksums.
+     */
+    public static final String ENABLED = "bucket.read.mmap";
+
+    /**
+     * Size of each mapping. Defaults to 1GB.
+     */
+    public static final String SEGMENT_BYTES = "bucket.read.mmap.segment.bytes";
+    public static final int DEFAULT_SEGMENT_BYTES = 1 << 30;
+
+    /**
+     * Opens path through a mapping when fs is local and mapping is enabled, and through fs otherwise.
+     */
+    public static FSDataInputStream open(FileSystem fs, Path path) throws IOException {
+        File file = toLocalFile(fs, path);
+        if(file==null) return fs.open(path);
+        return new FSDataInputStream(new MappedFileInputStream(file, fs.getConf().getInt(SEGMENT_BYTES, DEFAULT_SEGMENT_BYTES)));
+    }
+
+    private static File toLocalFile(FileSystem fs, Path path) {
+        if(!fs.getConf().getBoolean(ENABLED, false)) return null;
+        if(fs instanceof LocalFileSystem) return ((LocalFileSystem) fs).pathToFile(path);
+        if(fs instanceof RawLocalFileSystem) return ((RawLocalFileSystem) fs).pathToFile(path);
+        return null;
+    }
+
+    private FileChannel _channel;
+    private MappedByteBuffer[] _segments;
+    private int _segmentBytes;
+    private long _length;
+    private long _pos = 0;
+
+    public MappedFileInputStream(File file, int segmentBytes) throws IOException {
+        if(segmentBytes <= 0) throw new IllegalArgumentException("Segment size must be positive: " + segmentBytes);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        _channel = raf.getChannel();
+        _segmentBytes = segmentBytes;
+        _length = _channel.size();
+        _segments = new MappedByteBuffer[(int) ((_length + segmentBytes - 1) / segmentBytes)];
+    }
+
+    public long getLength() {
+        return _length;
+    }
+
+    private MappedByteBuffer segment(int i) throws IOException {
+        if(_segments==null) throw new IOException("Stream is closed");
+        if(_segments[i]==null) {
+            long start = (long) i * _segmentBytes;
+            _segments[i] = _channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(_segmentBytes, _length - start));
+        }
+        return _segments[i];
+    }
+
+    /**
+     * Returns length bytes at position without copying, or null when they cross a segment boundary. The buffer
+     * is only valid until the stream is closed.
+     */
+    public ByteBuffer slice(long position, int length) throws IOException {
+        if(position < 0 || position + length > _length) throw new EOFException("Can't slice " + length + " bytes at " + position + " of " + _length);
+        int i = (int) (position / _segmentBytes);
+        int offset = (int) (position % _segmentBytes);
+        if(offset + length > _segmentBytes) return null;
+        ByteBuffer ret = segment(i).duplicate();
+        ret.position(offset);
+        ret.limit(offset + length);
+        return ret.slice();
+    }
+
+    public int read() throws IOException {
+        if(_pos >= _length) return -1;
+        int ret = segment((int) (_pos / _segmentBytes)).get((int) (_pos % _segmentBytes)) & 0xFF;
+        _pos++;
+        return ret;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = read(_pos, b, off, len);
+        if(n > 0) _pos += n;
+        return n;
+    }
+
+    public int read(ByteBuffer buf) throws IOException {
+        int len = (int) Math.min(buf.remaining(), _length - _pos);
+        if(len <= 0) return buf.remaining()==0 ? 0 : -1;
+        int done = 0;
+        while(done < len) {
+            ByteBuffer src = segment((int) (_pos / _segmentBytes)).duplicate();
+            int offset = (int) (_pos % _segmentBytes);
+            int n = Math.min(len - done, _segmentBytes - offset);
+            src.position(offset);
+            src.limit(offset + n);
+            buf.put(src);
+            done += n;
+            _pos += n;
+        }
+        return len;
+    }
+
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        if(len==0) return 0;
+        if(position >= _length) return -1;
+        len = (int) Math.min(len, _length - position);
+        int done = 0;
+        while(done < len) {
+            ByteBuffer src = segment((int) (position / _segmentBytes)).duplicate();
+            int offset = (int) (position % _segmentBytes);
+            int n = Math.min(len - done, _segmentBytes - offset);
+            src.position(offset);
+            src.get(b, off + done, n);
+            done += n;
+            position += n;
+        }
+        return len;
+    }
+
+    public void readFully(long position, byte[] b, int off, int len) throws IOException {
+        if(position + len > _length) throw new EOFException("Can't read " + len + " bytes at " + position + " of " + _length);
+        read(position, b, off, len);
+    }
+
+    public void readFully(long position, byte[] b) throws IOException {
+        readFully(position, b, 0, b.length);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = Math.max(0, Math.min(n, _length - _pos));
+        _pos += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, _length - _pos);
+    }
+
+    public void seek(long pos) throws IOException {
+        if(pos < 0 || pos > _length) throw new EOFException("Can't seek to " + pos + " of " + _length);
+        _pos = pos;
+    }
+
+    public long getPos() throws IOException {
+        return _pos;
+    }
+
+    public boolean seekToNewSource(long targetPos) throws IOException {
+        return false;
+    }
+
+    /**
+     * Closes the channel. The mappings are released when they're garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        _segments = null;
+        _channel.close();
+    }
+}
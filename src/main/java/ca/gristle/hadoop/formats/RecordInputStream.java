@@ -1,9 +1,32 @@
 package ca.gristle.hadoop.formats;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public interface RecordInputStream {
+    /**
+     * A stream with no records.
+     */
+    public static final RecordInputStream EMPTY = new RecordInputStream() {
+        public byte[] readRawRecord() {
+            return null;
+        }
+
+        public void close() {
+        }
+    };
+
     //return null at end
     public byte[] readRawRecord() throws IOException;
     public void close() throws IOException;
+
+    /**
+     * Returns the next record as the remaining bytes of an array-backed buffer, or null at end. The buffer
+     * may be reused, so it's only valid until the next read.
+     */
+    default ByteBuffer readRecord() throws IOException {
+        byte[] record = readRawRecord();
+        if(record==null) return null;
+        return ByteBuffer.wrap(record);
+    }
 }
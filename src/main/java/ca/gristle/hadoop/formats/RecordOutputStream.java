@@ -1,5 +1,8 @@
 package ca.gristle.hadoop.formats;
 
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
 import java.io.IOException;
 
 
@@ -7,4 +10,22 @@ public interface RecordOutputStream {
     public void writeRaw(byte[] record) throws IOException;
     public void writeRaw(byte[] record, int start, int length) throws IOException;
     public void close() throws IOException;
+
+    /**
+     * Writes count records packed into one array, where record i spans offsets[i] to offsets[i+1].
+     */
+    default void writeRawBatch(byte[] packed, int[] offsets, int count) throws IOException {
+        for(int i=0; i<count; i++) {
+            writeRaw(packed, offsets[i], offsets[i+1] - offsets[i]);
+        }
+    }
+
+    /**
+     * Appends every record of the file at path by copying it in its stored form, without decoding the records.
+     * Returns false, having written nothing, if the file isn't stored in a form this stream can copy, say because
+     * it was compressed differently. Callers then fall back to reading the records.
+     */
+    default boolean appendStored(FileSystem fs, Path path) throws IOException {
+        return false;
+    }
 }
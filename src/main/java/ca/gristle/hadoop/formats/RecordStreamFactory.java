@@ -9,4 +9,11 @@ import java.io.Serializable;
 public interface RecordStreamFactory extends Serializable {
     public RecordInputStream getInputStream(FileSystem fs, Path path) throws IOException;
     public RecordOutputStream getOutputStream(FileSystem fs, Path path) throws IOException;
+
+    /**
+     * Whether files written by this factory can be joined byte for byte and read back as one file.
+     */
+    default boolean canConcat() {
+        return false;
+    }
 }
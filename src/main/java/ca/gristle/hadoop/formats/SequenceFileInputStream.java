@@ -1,6 +1,7 @@
 package ca.gristle.hadoop.formats;
 
 import ca.gristle.support.Utils;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
@@ -8,24 +9,82 @@ import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.SequenceFile;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 public class SequenceFileInputStream implements RecordInputStream {
 
     private SequenceFile.Reader _reader;
     private BytesWritable writable = new BytesWritable();
+    private ByteBuffer view = null;
+    private List<long[]> _ranges = null;
+    private int _range = 0;
+    private long _end = -1;
 
     public SequenceFileInputStream(FileSystem fs, Path path) throws IOException {
-        _reader = new SequenceFile.Reader(fs, path, fs.getConf());
+        this(fs, path, fs.getFileStatus(path).getLen());
+    }
+
+    /**
+     * Reads path, which the caller knows to be length bytes long.
+     */
+    public SequenceFileInputStream(FileSystem fs, Path path, long length) throws IOException {
+        FSDataInputStream in = MappedFileInputStream.open(fs, path);
+        try {
+            _reader = new SequenceFile.Reader(fs.getConf(), SequenceFile.Reader.stream(in), SequenceFile.Reader.length(length));
+        } catch(IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads only the records in the given [start, end) byte ranges, which must be in order and not overlap.
+     * Like splits, a range holds the records from the first sync mark after its start up to the first sync
+     * mark at or after its end.
+     */
+    public SequenceFileInputStream(FileSystem fs, Path path, long length, List<long[]> ranges) throws IOException {
+        this(fs, path, length);
+        _ranges = ranges;
+    }
+
+    private boolean next() throws IOException {
+        if(_ranges==null) return _reader.next(writable, NullWritable.get());
+        while(true) {
+            if(_end < 0) {
+                if(_range==_ranges.size()) return false;
+                long[] range = _ranges.get(_range++);
+                _reader.sync(range[0]);
+                _end = range[1];
+            }
+            long pos = _reader.getPosition();
+            boolean gotnew = _reader.next(writable, NullWritable.get());
+            if(gotnew && !(pos >= _end && _reader.syncSeen())) return true;
+            _end = -1;
+        }
     }
 
     public byte[] readRawRecord() throws IOException {
-        boolean gotnew = _reader.next(writable, NullWritable.get());
-        if (!gotnew) {
+        if (!next()) {
             return null;
         }
         return Utils.getBytes(writable);
     }
 
+    @Override
+    public ByteBuffer readRecord() throws IOException {
+        if (!next()) {
+            return null;
+        }
+        //the writable only reallocates when a record outgrows it
+        if(view==null || view.array()!=writable.getBytes()) {
+            view = ByteBuffer.wrap(writable.getBytes());
+        }
+        view.clear();
+        view.limit(writable.getLength());
+        return view;
+    }
+
     public void close() throws IOException {
         _reader.close();
     }
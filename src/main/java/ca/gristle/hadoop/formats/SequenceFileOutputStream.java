@@ -3,24 +3,44 @@ package ca.gristle.hadoop.formats;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.SequenceFile.CompressionType;
 import org.apache.hadoop.io.compress.CompressionCodec;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 
 public class SequenceFileOutputStream implements RecordOutputStream {
 
+    private static final SequenceFile.ValueBytes NULL_VALUE = new SequenceFile.ValueBytes() {
+        public void writeUncompressedBytes(DataOutputStream outStream) {
+        }
+
+        public void writeCompressedBytes(DataOutputStream outStream) {
+        }
+
+        public int getSize() {
+            return 0;
+        }
+    };
+
     private SequenceFile.Writer _writer;
+    private CompressionType _type;
+    private CompressionCodec _codec;
     private BytesWritable writable = new BytesWritable();
+    private DataOutputBuffer rawKey = new DataOutputBuffer();
 
     public SequenceFileOutputStream(FileSystem fs, Path path) throws IOException {
         _writer = SequenceFile.createWriter(fs, fs.getConf(), path, BytesWritable.class, NullWritable.class, CompressionType.NONE);
+        _type = CompressionType.NONE;
     }
 
     public SequenceFileOutputStream(FileSystem fs, Path path, CompressionType type, CompressionCodec codec) throws IOException {
         _writer = SequenceFile.createWriter(fs, fs.getConf(), path, BytesWritable.class, NullWritable.class, type, codec);
+        _type = type;
+        _codec = codec;
     }
 
     public void writeRaw(byte[] record) throws IOException {
@@ -32,6 +52,55 @@ public class SequenceFileOutputStream implements RecordOutputStream {
         _writer.append(writable, NullWritable.get());
     }
 
+    /**
+     * Appends the serialized form of each key directly. Record-compressed files compress every value, even
+     * an empty one, so they go through the regular path.
+     */
+    @Override
+    public void writeRawBatch(byte[] packed, int[] offsets, int count) throws IOException {
+        if(_type==CompressionType.RECORD) {
+            RecordOutputStream.super.writeRawBatch(packed, offsets, count);
+            return;
+        }
+        for(int i=0; i<count; i++) {
+            int length = offsets[i+1] - offsets[i];
+            rawKey.reset();
+            //same layout as BytesWritable#write
+            rawKey.writeInt(length);
+            rawKey.write(packed, offsets[i], length);
+            _writer.appendRaw(rawKey.getData(), 0, rawKey.getLength(), NULL_VALUE);
+        }
+    }
+
+    /**
+     * Copies keys and values with nextRaw and appendRaw when the file is compressed the same way. Record-compressed
+     * values are copied still compressed. Block-compressed files are decompressed a block at a time and their records
+     * recompressed into this file's blocks, since SequenceFile has no way to copy a block between files, but no record
+     * is deserialized.
+     */
+    @Override
+    public boolean appendStored(FileSystem fs, Path path) throws IOException {
+        SequenceFile.Reader reader = new SequenceFile.Reader(fs.getConf(), SequenceFile.Reader.file(path));
+        try {
+            if(!sameLayout(reader)) return false;
+            SequenceFile.ValueBytes value = reader.createValueBytes();
+            rawKey.reset();
+            while(reader.nextRawKey(rawKey) >= 0) {
+                reader.nextRawValue(value);
+                _writer.appendRaw(rawKey.getData(), 0, rawKey.getLength(), value);
+                rawKey.reset();
+            }
+            return true;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private boolean sameLayout(SequenceFile.Reader reader) {
+        if(reader.getKeyClass()!=BytesWritable.class || reader.getValueClass()!=NullWritable.class) return false;
+        if(reader.getCompressionType()!=_type) return false;
+        return _type==CompressionType.NONE || reader.getCompressionCodec().getClass()==_codec.getClass();
+    }
 
     public void close() throws IOException {
         _writer.close();
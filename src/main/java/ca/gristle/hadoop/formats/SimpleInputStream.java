@@ -4,11 +4,13 @@ import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 
 public class SimpleInputStream implements RecordInputStream {
 
     DataInputStream _in;
+    private ByteBuffer _buffer = ByteBuffer.allocate(0);
 
     public SimpleInputStream(InputStream in) {
         _in = new DataInputStream(in);
@@ -25,6 +27,23 @@ public class SimpleInputStream implements RecordInputStream {
         }
     }
 
+    @Override
+    public ByteBuffer readRecord() throws IOException {
+        int size;
+        try {
+            size = _in.readInt();
+        } catch(EOFException e) {
+            return null;
+        }
+        if(_buffer.capacity() < size) {
+            _buffer = ByteBuffer.allocate(Math.max(size, _buffer.capacity() * 2));
+        }
+        _in.readFully(_buffer.array(), 0, size);
+        _buffer.clear();
+        _buffer.limit(size);
+        return _buffer;
+    }
+
     public void close() throws IOException {
         _in.close();
     }
@@ -0,0 +1,83 @@
+package ca.gristle.support;
+
+import org.apache.hadoop.util.hash.Hash;
+import org.apache.hadoop.util.hash.MurmurHash;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A bloom filter over 64-bit key hashes, probed with double hashing.
+ */
+public class BloomFilter {
+    private static final Hash MURMUR = MurmurHash.getInstance();
+
+    private long[] _bits;
+    private int _numBits;
+    private int _numHashes;
+
+    public BloomFilter(int numBits, int numHashes) {
+        if(numBits <= 0 || numHashes <= 0) throw new IllegalArgumentException("Need a positive number of bits and hashes, got " + numBits + " and " + numHashes);
+        _numBits = numBits;
+        _numHashes = numHashes;
+        _bits = new long[(numBits + 63) / 64];
+    }
+
+    /**
+     * Sizes a filter for items keys with the given false positive probability.
+     */
+    public static BloomFilter create(long items, double fpp) {
+        if(fpp <= 0 || fpp >= 1) throw new IllegalArgumentException("False positive probability must be between 0 and 1, got " + fpp);
+        long bits = (long) Math.ceil(-Math.max(items, 1) * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int numBits = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, bits));
+        int numHashes = (int) Math.max(1, Math.round((double) numBits / Math.max(items, 1) * Math.log(2)));
+        return new BloomFilter(numBits, numHashes);
+    }
+
+    public static long hash(byte[] key) {
+        return ((long) MURMUR.hash(key, key.length, 0) << 32) | (MURMUR.hash(key, key.length, 0x5bd1e995) & 0xFFFFFFFFL);
+    }
+
+    public void add(long hash) {
+        int h1 = (int) (hash >>> 32);
+        int h2 = (int) hash;
+        for(int i=0; i<_numHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % _numBits;
+            _bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(long hash) {
+        int h1 = (int) (hash >>> 32);
+        int h2 = (int) hash;
+        for(int i=0; i<_numHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % _numBits;
+            if((_bits[bit >>> 6] & (1L << bit))==0) return false;
+        }
+        return true;
+    }
+
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + _bits.length * 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(_numBits);
+        out.writeInt(_numHashes);
+        for(long word: _bits) {
+            out.writeLong(word);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    public static BloomFilter fromBytes(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        BloomFilter ret = new BloomFilter(in.readInt(), in.readInt());
+        for(int i=0; i<ret._bits.length; i++) {
+            ret._bits[i] = in.readLong();
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,70 @@
+package ca.gristle.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Buffers writes into a direct buffer and writes it to a FileChannel when full. With sync set, close forces
+ * the data to disk before closing the channel.
+ */
+public class ChannelOutputStream extends OutputStream {
+    private FileChannel _channel;
+    private ByteBuffer _buffer;
+    private boolean _sync;
+    private boolean _closed = false;
+
+    public ChannelOutputStream(FileChannel channel, int bufferBytes, boolean sync) {
+        if(bufferBytes <= 0) throw new IllegalArgumentException("Buffer size must be positive: " + bufferBytes);
+        _channel = channel;
+        _buffer = ByteBuffer.allocateDirect(bufferBytes);
+        _sync = sync;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if(!_buffer.hasRemaining()) drain();
+        _buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws IOException {
+        //large writes skip the buffer rather than being copied through it in pieces
+        if(len >= _buffer.capacity()) {
+            drain();
+            ByteBuffer src = ByteBuffer.wrap(buf, off, len);
+            while(src.hasRemaining()) {
+                _channel.write(src);
+            }
+            return;
+        }
+        if(len > _buffer.remaining()) drain();
+        _buffer.put(buf, off, len);
+    }
+
+    private void drain() throws IOException {
+        _buffer.flip();
+        while(_buffer.hasRemaining()) {
+            _channel.write(_buffer);
+        }
+        _buffer.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(_closed) return;
+        _closed = true;
+        try {
+            drain();
+            if(_sync) _channel.force(true);
+        } finally {
+            _channel.close();
+        }
+    }
+}
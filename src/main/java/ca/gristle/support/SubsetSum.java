@@ -1,9 +1,15 @@
 package ca.gristle.support;
 
+import org.apache.hadoop.conf.Configuration;
+
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class SubsetSum {
 
@@ -11,6 +17,80 @@ public class SubsetSum {
         public long getValue();
     }
 
+    /**
+     * How pack fills bins. GREEDY is the original split: repeated greedy passes over what's left, quadratic in
+     * the number of items. The decreasing strategies place items largest first, each in O(log n): first fit in
+     * the earliest bin with room, best fit in the bin it leaves least room in.
+     */
+    public enum Strategy {
+        GREEDY,
+        FIRST_FIT_DECREASING,
+        BEST_FIT_DECREASING;
+
+        /**
+         * The strategy named by key in conf, in any case. Defaults to BEST_FIT_DECREASING.
+         */
+        public static Strategy fromConf(Configuration conf, String key) {
+            String name = conf.get(key);
+            if(name==null) return BEST_FIT_DECREASING;
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch(IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown packing strategy " + name + " for " + key);
+            }
+        }
+    }
+
+    /**
+     * Bins produced by pack, along with how well they're filled.
+     */
+    public static class Packing<T extends Value> {
+        private List<List<T>> _bins;
+        private long _targetSize;
+        private int _oversized;
+        private long _packedSize;
+
+        Packing(List<List<T>> bins, long targetSize, int oversized, long packedSize) {
+            _bins = bins;
+            _targetSize = targetSize;
+            _oversized = oversized;
+            _packedSize = packedSize;
+        }
+
+        public List<List<T>> getBins() {
+            return _bins;
+        }
+
+        /**
+         * Items at least the target size, which get a bin each.
+         */
+        public int getOversized() {
+            return _oversized;
+        }
+
+        /**
+         * Fewest bins the items smaller than the target could possibly fit in.
+         */
+        public long getLowerBound() {
+            return (_packedSize + _targetSize - 1) / _targetSize;
+        }
+
+        /**
+         * Fraction of the capacity of the bins holding items smaller than the target that's used. 1 if there are none.
+         */
+        public double getEfficiency() {
+            int bins = _bins.size() - _oversized;
+            if(bins==0) return 1;
+            return (double) _packedSize / ((double) bins * _targetSize);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d bins (%d oversized), %.1f%% full, at least %d needed",
+                _bins.size(), _oversized, getEfficiency() * 100, getLowerBound() + _oversized);
+        }
+    }
+
     private static <T extends Value> long greedy(List<T> input, long targetSize, List<T> ret, List<T> left) {
         long sum = 0;
         for (T p : input) {
@@ -50,13 +130,117 @@ public class SubsetSum {
         return ret;
     }
 
-    //things that are too big get their own set
-    public static <T extends Value> List<List<T>> split(List<T> input, long targetSize) {
+    /**
+     * Packs input into bins whose values add up to at most targetSize. Items at least targetSize get a bin each.
+     * input is left as it was.
+     */
+    public static <T extends Value> Packing<T> pack(List<T> input, long targetSize, Strategy strategy) {
+        if(targetSize <= 0) throw new IllegalArgumentException("Target size must be positive: " + targetSize);
+        List<List<T>> ret = new ArrayList<List<T>>();
+        List<T> smaller = new ArrayList<T>();
+        long packedSize = 0;
+        for(T v: input) {
+            if(v.getValue() >= targetSize) {
+                List<T> elem = new ArrayList<T>();
+                elem.add(v);
+                ret.add(elem);
+            } else {
+                smaller.add(v);
+                packedSize += v.getValue();
+            }
+        }
+        int oversized = ret.size();
+        if(strategy==Strategy.GREEDY) {
+            sortAscending(smaller);
+            while(smaller.size()>0) {
+                ret.add(removeBestSubset(smaller, targetSize));
+            }
+        } else {
+            Collections.sort(smaller, new Comparator<Value>() {
+                public int compare(Value o1, Value o2) {
+                    return Long.compare(o2.getValue(), o1.getValue());
+                }
+            });
+            if(strategy==Strategy.FIRST_FIT_DECREASING) {
+                ret.addAll(firstFit(smaller, targetSize));
+            } else {
+                ret.addAll(bestFit(smaller, targetSize));
+            }
+        }
+        return new Packing<T>(ret, targetSize, oversized, packedSize);
+    }
+
+    public static <T extends Value> List<List<T>> split(List<T> input, long targetSize, Strategy strategy) {
+        return pack(input, targetSize, strategy).getBins();
+    }
+
+    //items must be sorted largest first and smaller than targetSize
+    private static <T extends Value> List<List<T>> firstFit(List<T> items, long targetSize) {
+        List<List<T>> bins = new ArrayList<List<T>>();
+        //a max tree over the room left in each bin, with unopened bins at targetSize, so the leftmost bin with
+        //room for an item is found by walking down from the root
+        int leaves = 1;
+        while(leaves < items.size()) leaves <<= 1;
+        long[] room = new long[2 * leaves];
+        Arrays.fill(room, targetSize);
+        for(T item: items) {
+            long v = item.getValue();
+            int node = 1;
+            while(node < leaves) {
+                node = room[2 * node] >= v ? 2 * node : 2 * node + 1;
+            }
+            int bin = node - leaves;
+            if(bin==bins.size()) bins.add(new ArrayList<T>());
+            bins.get(bin).add(item);
+            room[node] -= v;
+            for(node >>= 1; node >= 1; node >>= 1) {
+                room[node] = Math.max(room[2 * node], room[2 * node + 1]);
+            }
+        }
+        return bins;
+    }
+
+    //items must be sorted largest first and smaller than targetSize
+    private static <T extends Value> List<List<T>> bestFit(List<T> items, long targetSize) {
+        List<List<T>> bins = new ArrayList<List<T>>();
+        //open bins by the room they have left
+        TreeMap<Long, ArrayDeque<Integer>> byRoom = new TreeMap<Long, ArrayDeque<Integer>>();
+        long[] room = new long[items.size()];
+        for(T item: items) {
+            long v = item.getValue();
+            Map.Entry<Long, ArrayDeque<Integer>> fit = byRoom.ceilingEntry(v);
+            int bin;
+            if(fit==null) {
+                bin = bins.size();
+                bins.add(new ArrayList<T>());
+                room[bin] = targetSize;
+            } else {
+                bin = fit.getValue().poll();
+                if(fit.getValue().isEmpty()) byRoom.remove(fit.getKey());
+            }
+            bins.get(bin).add(item);
+            room[bin] -= v;
+            ArrayDeque<Integer> same = byRoom.get(room[bin]);
+            if(same==null) {
+                same = new ArrayDeque<Integer>();
+                byRoom.put(room[bin], same);
+            }
+            same.add(bin);
+        }
+        return bins;
+    }
+
+    private static void sortAscending(List<? extends Value> input) {
         Collections.sort(input, new Comparator<Value>() {
             public int compare(Value o1, Value o2) {
                 return new Long(o1.getValue()).compareTo(new Long(o2.getValue()));
             }
         });
+    }
+
+    //things that are too big get their own set
+    public static <T extends Value> List<List<T>> split(List<T> input, long targetSize) {
+        sortAscending(input);
         List<T> smaller = new ArrayList<T>();
         List<T> bigger = new ArrayList<T>();
         for(T v: input) {
@@ -2,6 +2,7 @@ package ca.gristle.support;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
@@ -12,12 +13,24 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 
 public class Utils {
     public static final int DAY_SECS = 60*60*24;
     public static final int WEEK_TIME_SECS = DAY_SECS*7;
 
+    /**
+     * How many files getFileStatuses stats at once. Defaults to 16.
+     */
+    public static final String STAT_THREADS = "gristle.stat.threads";
+    public static final int DEFAULT_STAT_THREADS = 16;
+
     public static int toWeek(int secs) {
         return secs / WEEK_TIME_SECS;
     }
@@ -163,6 +176,7 @@ public class Utils {
         try {
             Thread.sleep(millis);
         } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
         }
     }
@@ -212,6 +226,57 @@ public class Utils {
         return new Path(path).getFileSystem(conf);
     }
 
+    /**
+     * Stats each of paths, STAT_THREADS at a time. Paths that don't exist get a null status.
+     */
+    public static FileStatus[] getFileStatuses(final FileSystem fs, List<Path> paths) throws IOException {
+        FileStatus[] ret = new FileStatus[paths.size()];
+        int threads = Math.min(paths.size(), fs.getConf().getInt(STAT_THREADS, DEFAULT_STAT_THREADS));
+        if(threads <= 1) {
+            for(int i=0; i<ret.length; i++) {
+                ret[i] = getFileStatusOrNull(fs, paths.get(i));
+            }
+            return ret;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "file-stat");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            List<Future<FileStatus>> stats = new ArrayList<Future<FileStatus>>(paths.size());
+            for(final Path p: paths) {
+                stats.add(pool.submit(new Callable<FileStatus>() {
+                    public FileStatus call() throws IOException {
+                        return getFileStatusOrNull(fs, p);
+                    }
+                }));
+            }
+            for(int i=0; i<ret.length; i++) {
+                ret[i] = stats.get(i).get();
+            }
+            return ret;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static FileStatus getFileStatusOrNull(FileSystem fs, Path p) throws IOException {
+        try {
+            return fs.getFileStatus(p);
+        } catch(FileNotFoundException e) {
+            return null;
+        }
+    }
+
     public static String stripExtension(String str, String extension) {
         if(!str.endsWith(extension)) {
             throw new IllegalArgumentException("Cannot strip extension " + str + " : " + extension);
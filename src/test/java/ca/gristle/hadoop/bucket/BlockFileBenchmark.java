@@ -0,0 +1,56 @@
+package ca.gristle.hadoop.bucket;
+
+import ca.gristle.hadoop.formats.RecordInputStream;
+import ca.gristle.hadoop.formats.RecordOutputStream;
+import ca.gristle.support.TestUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Compares writing and reading small records with BlockFile against block compressed SequenceFile on the local
+ * filesystem. Not run by the build:
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=ca.gristle.hadoop.bucket.BlockFileBenchmark -Dexec.args="2000000 3"
+ *
+ * Arguments are the record count (default 2000000) and the number of timed rounds after a warmup (default 3).
+ */
+public class BlockFileBenchmark {
+    public static void main(String[] args) throws Exception {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        FileSystem fs = FileSystem.getLocal(new Configuration());
+        BucketSpec[] specs = new BucketSpec[] {
+            new BucketSpec("BlockFile").setArg("compressionCodec", "default"),
+            new BucketSpec("SequenceFile").setArg("compressionType", "block").setArg("compressionCodec", "default")
+        };
+        for(BucketSpec spec: specs) {
+            BucketFormat format = BucketFormatFactory.create(spec);
+            Path path = new Path(TestUtils.getTmpPath(fs, "benchmark"), "data");
+            //first round warms up the jit and isn't reported
+            for(int round=0; round<=rounds; round++) {
+                fs.delete(path, false);
+                long start = System.nanoTime();
+                RecordOutputStream os = format.getOutputStream(fs, path);
+                for(int i=0; i<records; i++) {
+                    os.writeRaw(("record-" + i).getBytes());
+                }
+                os.close();
+                long written = System.nanoTime();
+                RecordInputStream is = format.getInputStream(fs, path);
+                int read = 0;
+                while(is.readRawRecord()!=null) {
+                    read++;
+                }
+                is.close();
+                long done = System.nanoTime();
+                if(read!=records) throw new IllegalStateException("read " + read + " of " + records + " records");
+                if(round > 0) {
+                    System.out.println(String.format("%s round %d: write %dms, read %dms, %d bytes", spec.getName(), round,
+                        (written - start) / 1000000, (done - written) / 1000000, fs.getFileStatus(path).getLen()));
+                }
+            }
+            fs.delete(path.getParent(), true);
+        }
+    }
+}
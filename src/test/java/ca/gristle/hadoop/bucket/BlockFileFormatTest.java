@@ -0,0 +1,118 @@
+package ca.gristle.hadoop.bucket;
+
+import ca.gristle.hadoop.formats.BlockFile;
+import ca.gristle.hadoop.formats.BlockFileInputStream;
+import ca.gristle.hadoop.formats.RecordInputStream;
+import ca.gristle.hadoop.formats.RecordOutputStream;
+import ca.gristle.support.TestUtils;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class BlockFileFormatTest extends BucketFormatTester {
+
+    public BlockFileFormatTest() throws Exception {
+        super();
+    }
+
+    @Override
+    protected BucketSpec getSpec() {
+        //small blocks so the test files span plenty of splits
+        return new BucketSpec("BlockFile").setArg("compressionCodec", "default").setArg("blockSize", 4096);
+    }
+
+    @Test
+    public void testConcatenatedFiles() throws Exception {
+        String path = TestUtils.getTmpPath(local, "blockfile");
+        BucketFormat uncompressed = BucketFormatFactory.create(new BucketSpec("BlockFile").setArg("compressionCodec", "none").setArg("blockSize", 100));
+        List<String> expected = new ArrayList<String>();
+        Path[] parts = new Path[] {new Path(path, "1"), new Path(path, "2")};
+        for(int p=0; p<parts.length; p++) {
+            BucketFormat f = p==0 ? format : uncompressed;
+            RecordOutputStream os = f.getOutputStream(local, parts[p]);
+            for(int i=0; i<500; i++) {
+                String record = "part" + p + "-" + i;
+                os.writeRaw(record.getBytes());
+                expected.add(record);
+            }
+            os.close();
+        }
+        Path joined = new Path(path, "joined");
+        FSDataOutputStream out = local.create(joined);
+        for(Path part: parts) {
+            FSDataInputStream in = local.open(part);
+            IOUtils.copyBytes(in, out, 4096, false);
+            in.close();
+        }
+        out.close();
+
+        List<BlockFile.BlockInfo> blocks = BlockFile.readIndex(local, joined);
+        int records = 0;
+        for(BlockFile.BlockInfo b: blocks) records += b.getRecords();
+        Assertions.assertEquals(1000, records);
+        Assertions.assertEquals(BlockFile.readIndex(local, parts[0]).size() + BlockFile.readIndex(local, parts[1]).size(), blocks.size());
+
+        Assertions.assertEquals(expected, readAll(format.getInputStream(local, joined)));
+
+        //splits on either side of a block in the second file, which uses a different codec than the first
+        List<String> split = new ArrayList<String>();
+        long length = local.getFileStatus(joined).getLen();
+        long[] bounds = new long[] {0, blocks.get(blocks.size() / 2 + 1).getOffset(), length};
+        for(int i=0; i<2; i++) {
+            split.addAll(readAll(new BlockFileInputStream(local.open(joined), local.getConf(), length, bounds[i], bounds[i+1])));
+        }
+        Assertions.assertEquals(expected, split);
+
+        //one stream seeks between ranges, back into a segment with another codec
+        BlockFileInputStream is = new BlockFileInputStream(local.open(joined), local.getConf(), length, bounds[1], bounds[2]);
+        List<String> seeked = new ArrayList<String>();
+        is.readRawRecord();
+        is.seek(0, bounds[1]);
+        byte[] record;
+        while((record = is.readRawRecord())!=null) {
+            seeked.add(new String(record));
+        }
+        is.close();
+        Assertions.assertEquals(split.subList(0, seeked.size()), seeked);
+        Assertions.assertTrue(seeked.size() > 500);
+
+        //blocks can only be copied between files compressed the same way
+        RecordOutputStream os = format.getOutputStream(local, new Path(path, "copy"));
+        Assertions.assertTrue(os.appendStored(local, parts[0]));
+        Assertions.assertFalse(os.appendStored(local, parts[1]));
+        Assertions.assertFalse(os.appendStored(local, joined));
+        os.close();
+        Assertions.assertEquals(expected.subList(0, 500), readAll(format.getInputStream(local, new Path(path, "copy"))));
+    }
+
+    @Test
+    public void testPickBlocks() {
+        List<BlockFile.BlockInfo> blocks = new ArrayList<BlockFile.BlockInfo>();
+        for(long offset: new long[] {10, 50, 60, 200, 390}) {
+            blocks.add(new BlockFile.BlockInfo(offset, 1));
+        }
+        //blocks starting in picked chunks, with consecutive ones merged and the last running to the end
+        List<long[]> runs = BlockFileFormat.pickBlocks(blocks, 500, Arrays.asList(new long[] {0, 100}, new long[] {300, 400}));
+        Assertions.assertEquals(2, runs.size());
+        Assertions.assertArrayEquals(new long[] {10, 200}, runs.get(0));
+        Assertions.assertArrayEquals(new long[] {390, 500}, runs.get(1));
+        //a picked chunk without a block start picks nothing
+        Assertions.assertEquals(0, BlockFileFormat.pickBlocks(blocks, 500, Arrays.asList(new long[] {100, 200})).size());
+    }
+
+    private static List<String> readAll(RecordInputStream is) throws Exception {
+        List<String> ret = new ArrayList<String>();
+        byte[] record;
+        while((record = is.readRawRecord())!=null) {
+            ret.add(new String(record));
+        }
+        is.close();
+        return ret;
+    }
+}
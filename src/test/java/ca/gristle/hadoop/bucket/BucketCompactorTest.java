@@ -0,0 +1,219 @@
+package ca.gristle.hadoop.bucket;
+
+import ca.gristle.hadoop.JobExecutor;
+import ca.gristle.hadoop.LocalJobExecutor;
+import ca.gristle.hadoop.formats.RecordOutputStream;
+import ca.gristle.support.FSTestCase;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import static ca.gristle.support.TestUtils.*;
+
+public class BucketCompactorTest extends FSTestCase {
+    private void writeStrings(Bucket bucket, String userfile, String... strs) throws IOException {
+        RecordOutputStream os = bucket.openWrite(userfile);
+        for(String s: strs) {
+            os.writeRaw(s.getBytes());
+        }
+        os.close();
+    }
+
+    private Set<String> read(Bucket<byte[]> bucket) {
+        Set<String> ret = new HashSet<String>();
+        for(byte[] b: bucket) {
+            ret.add(new String(b));
+        }
+        return ret;
+    }
+
+    private static List<FileStatus> sizes(long... lens) {
+        List<FileStatus> ret = new ArrayList<FileStatus>();
+        for(int i=0; i<lens.length; i++) {
+            ret.add(new FileStatus(lens[i], false, 0, 0, 0, new Path("/f" + i)));
+        }
+        return ret;
+    }
+
+    @Test
+    public void testPlanTiers() {
+        BucketCompactor compactor = new BucketCompactor().setTargetSize(1000).setSmallFileBytes(10)
+            .setTierFanout(10).setMinSmallFiles(5).setMinTierFiles(3);
+        //too few small files and nothing to gain from packing
+        Assertions.assertEquals(0, compactor.planTiers(sizes(1, 2, 900, 950)).length);
+        //enough small files: only the small tier is merged
+        Assertions.assertArrayEquals(new long[] {0, 10}, compactor.planTiers(sizes(1, 2, 3, 4, 5, 50, 500, 2000)));
+        //fragmented, with the middle tiers full enough
+        Assertions.assertArrayEquals(new long[] {10, 100, 100, 1000}, compactor.planTiers(sizes(20, 30, 40, 200, 300, 400, 5000)));
+        //fragmented but spread over tiers: everything under the target
+        Assertions.assertArrayEquals(new long[] {0, 1000}, compactor.planTiers(sizes(5, 50, 60, 150, 200)));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        Bucket<byte[]> bucket = Bucket.create(local, getTmpPath(local, "bucket"));
+        Set<String> expected = new HashSet<String>();
+        for(int i=0; i<20; i++) {
+            writeStrings(bucket, "f" + i, "r" + i);
+            expected.add("r" + i);
+        }
+        StringBuilder big = new StringBuilder();
+        for(int i=0; i<2000; i++) {
+            big.append(i);
+        }
+        writeStrings(bucket, "big", big.toString());
+        expected.add(big.toString());
+
+        BucketCompactor compactor = new BucketCompactor().setTargetSize(4096).setSmallFileBytes(1024)
+            .setMinSmallFiles(8).setMaxBytesPerSecond(0).setJobExecutor(new LocalJobExecutor(2));
+        compactor.register(bucket);
+        List<Future<Long>> compactions = compactor.check();
+        Assertions.assertEquals(1, compactions.size());
+        Assertions.assertTrue(compactions.get(0).get() > 0);
+
+        List<String> names = bucket.getUserFileNames();
+        Assertions.assertTrue(names.size() < 5, names.toString());
+        //at the target size already, so left alone
+        Assertions.assertTrue(names.contains("big"));
+        Assertions.assertEquals(expected, read(bucket));
+        Assertions.assertEquals(0, compactor.check().size());
+        compactor.close();
+    }
+
+    @Test
+    public void testDaemon() throws Exception {
+        Bucket<byte[]> bucket = Bucket.create(local, getTmpPath(local, "bucket"));
+        for(int i=0; i<10; i++) {
+            writeStrings(bucket, "f" + i, "r" + i);
+        }
+        BucketCompactor compactor = new BucketCompactor().setMinSmallFiles(5).setCheckIntervalMs(50)
+            .setMaxConcurrent(1).setJobExecutor(new LocalJobExecutor(1));
+        compactor.register(bucket);
+        compactor.start();
+        long deadline = System.currentTimeMillis() + 30000;
+        while(compactor.getCompactions()==0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        compactor.close();
+        Assertions.assertEquals(1, bucket.getUserFileNames().size());
+        Assertions.assertEquals(10, read(bucket).size());
+        try {
+            compactor.start();
+            Assertions.fail("closed compactors can't start");
+        } catch(IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        BucketCompactor compactor = new BucketCompactor().setMaxBytesPerSecond(1000);
+        Assertions.assertEquals(0, compactor.throttle(500));
+        //the first 500 bytes take half a second of the budget
+        long waited = compactor.throttle(500);
+        Assertions.assertTrue(waited > 400 && waited <= 500, waited + "ms");
+        long start = System.currentTimeMillis();
+        compactor.throttle(0);
+        Assertions.assertTrue(System.currentTimeMillis() - start >= 400);
+        Assertions.assertEquals(0, new BucketCompactor().setMaxBytesPerSecond(0).throttle(1000000));
+    }
+
+    //runs jobs locally, slowly, keeping track of how many run at once
+    static class CountingExecutor implements JobExecutor {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger most = new AtomicInteger();
+
+        public void execute(JobConf conf) throws IOException {
+            int now = running.incrementAndGet();
+            for(int m = most.get(); now > m && !most.compareAndSet(m, now); m = most.get()) {
+            }
+            try {
+                Thread.sleep(200);
+                new LocalJobExecutor(1).execute(conf);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrencyCap() throws Exception {
+        CountingExecutor executor = new CountingExecutor();
+        BucketCompactor compactor = new BucketCompactor().setMinSmallFiles(3).setMaxConcurrent(2)
+            .setMaxBytesPerSecond(0).setJobExecutor(executor);
+        List<Bucket<byte[]>> buckets = new ArrayList<Bucket<byte[]>>();
+        for(int b=0; b<5; b++) {
+            Bucket<byte[]> bucket = Bucket.create(local, getTmpPath(local, "bucket" + b));
+            for(int i=0; i<4; i++) {
+                writeStrings(bucket, "f" + i, "r" + i);
+            }
+            compactor.register(bucket);
+            buckets.add(bucket);
+        }
+        List<Future<Long>> compactions = compactor.check();
+        Assertions.assertEquals(5, compactions.size());
+        //queued dirs aren't queued again
+        Assertions.assertEquals(0, compactor.check().size());
+        for(Future<Long> f: compactions) {
+            f.get();
+        }
+        compactor.close();
+        Assertions.assertEquals(2, executor.most.get());
+        for(Bucket<byte[]> bucket: buckets) {
+            Assertions.assertEquals(1, bucket.getUserFileNames().size());
+            Assertions.assertEquals(4, read(bucket).size());
+        }
+    }
+
+    @Test
+    public void testManifestKeepsConcurrentCommits() throws Exception {
+        String path = getTmpPath(local, "bucket");
+        final Bucket<byte[]> bucket = Bucket.create(local, path,
+            new BucketSpec(BucketFormatFactory.SEQUENCE_FILE).setManifest(true));
+        for(int i=0; i<6; i++) {
+            writeStrings(bucket, "f" + i, "r" + i);
+        }
+        //a writer commits while the consolidation runs, and the merged files aren't listed until their
+        //sources can go
+        final List<String> listedDuringJob = new ArrayList<String>();
+        JobExecutor executor = new JobExecutor() {
+            public void execute(JobConf conf) throws IOException {
+                new LocalJobExecutor(1).execute(conf);
+                writeStrings(bucket, "late", "late");
+                for(Path p: bucket.getStoredFiles()) {
+                    Assertions.assertTrue(local.exists(p), p.toString());
+                }
+                listedDuringJob.addAll(bucket.getUserFileNames());
+            }
+        };
+        BucketCompactor compactor = new BucketCompactor().setMinSmallFiles(5).setMaxBytesPerSecond(0)
+            .setJobExecutor(executor);
+        compactor.register(bucket);
+        for(Future<Long> f: compactor.check()) {
+            f.get();
+        }
+        compactor.close();
+        Set<String> manifest = new HashSet<String>(new BucketManifest(local, path).read().keySet());
+        Assertions.assertTrue(manifest.contains("late"), manifest.toString());
+        Assertions.assertEquals(2, manifest.size(), manifest.toString());
+        Assertions.assertEquals(7, listedDuringJob.size(), listedDuringJob.toString());
+        for(Path p: bucket.getStoredFiles()) {
+            Assertions.assertTrue(local.exists(p), p.toString());
+        }
+        bucket.disableManifest();
+        Assertions.assertEquals(manifest, new HashSet<String>(bucket.getUserFileNames()));
+        Assertions.assertEquals(7, read(bucket).size());
+    }
+}
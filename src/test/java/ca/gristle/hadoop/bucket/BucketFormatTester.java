@@ -1,11 +1,16 @@
 package ca.gristle.hadoop.bucket;
 
+import ca.gristle.hadoop.formats.RecordInputStream;
+import ca.gristle.hadoop.formats.RecordOutputStream;
 import ca.gristle.support.TestUtils;
 import ca.gristle.support.Utils;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -33,7 +38,7 @@ public abstract class BucketFormatTester {
     @Test
     public void testInputFormat() throws Exception {
         String path = TestUtils.getTmpPath(local, "bucket");
-        Bucket bucket = Bucket.create(local, path);
+        Bucket bucket = Bucket.create(local, path, getSpec());
         Multimap<String, String> expected = HashMultimap.create();
 
         List<String> builder = new ArrayList<String>();
@@ -84,6 +89,145 @@ public abstract class BucketFormatTester {
 
     }
 
+    @Test
+    public void testReadRecordReusesBuffer() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket bucket = Bucket.create(local, path, getSpec());
+        List<String> records = new ArrayList<String>();
+        for(int i=0; i<200; i++) {
+            StringBuilder record = new StringBuilder();
+            //sizes go up and down so the buffer has to grow and then be reused for shorter records
+            for(int j=0; j<(i * 37) % 500; j++) record.append((char) ('a' + j % 26));
+            records.add(record.toString());
+        }
+        TestUtils.emitToBucket(bucket, "a", records);
+
+        RecordInputStream is = bucket.openRead("a");
+        for(String expected: records) {
+            ByteBuffer record = is.readRecord();
+            Assertions.assertEquals(expected, new String(record.array(), record.arrayOffset() + record.position(), record.remaining()));
+        }
+        Assertions.assertNull(is.readRecord());
+        is.close();
+    }
+
+    @Test
+    public void testWriteRawBatch() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket bucket = Bucket.create(local, path, getSpec());
+        List<String> records = new ArrayList<String>();
+        int[] offsets = new int[101];
+        StringBuilder packed = new StringBuilder();
+        for(int i=0; i<100; i++) {
+            String record = i % 7 == 0 ? "" : "record" + i;
+            records.add(record);
+            packed.append(record);
+            offsets[i+1] = packed.length();
+        }
+        RecordOutputStream os = bucket.openWrite("a");
+        os.writeRawBatch(packed.toString().getBytes(), offsets, 100);
+        os.writeRaw("last".getBytes());
+        os.close();
+        records.add("last");
+
+        RecordInputStream is = bucket.openRead("a");
+        for(String expected: records) {
+            Assertions.assertEquals(expected, new String(is.readRawRecord()));
+        }
+        Assertions.assertNull(is.readRawRecord());
+        is.close();
+    }
+
+    @Test
+    public void testAppendStored() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        List<String> expected = new ArrayList<String>();
+        Path[] parts = new Path[] {new Path(path, "1"), new Path(path, "2")};
+        for(int p=0; p<parts.length; p++) {
+            RecordOutputStream os = format.getOutputStream(local, parts[p]);
+            for(int i=0; i<3000; i++) {
+                String record = "part" + p + "-" + i;
+                os.writeRaw(record.getBytes());
+                expected.add(record);
+            }
+            os.close();
+        }
+        Path joined = new Path(path, "joined");
+        RecordOutputStream os = format.getOutputStream(local, joined);
+        os.writeRaw("first".getBytes());
+        for(Path part: parts) {
+            Assertions.assertTrue(os.appendStored(local, part));
+        }
+        os.writeRaw("last".getBytes());
+        os.close();
+        expected.add(0, "first");
+        expected.add("last");
+
+        List<String> results = new ArrayList<String>();
+        RecordInputStream is = format.getInputStream(local, joined);
+        byte[] record;
+        while((record = is.readRawRecord())!=null) {
+            results.add(new String(record));
+        }
+        is.close();
+        Assertions.assertEquals(expected, results);
+    }
+
+    @Test
+    public void testSample() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket bucket = Bucket.create(local, path, getSpec());
+        Set<String> all = new HashSet<String>();
+        for(String file: new String[] {"a", "b"}) {
+            List<String> records = new ArrayList<String>();
+            for(int i=0; i<50000; i++) {
+                records.add(file + "-record-" + i + "-" + (i * 7919 % 1000));
+            }
+            all.addAll(records);
+            TestUtils.emitToBucket(bucket, file, records);
+        }
+
+        //picking everything reads every record exactly once
+        Assertions.assertEquals(all, toSet(bucket.sample(1.0, 1)));
+        Assertions.assertEquals(all.size(), bucket.sample(1.0, 1).size());
+
+        List<byte[]> sample = bucket.sample(0.3, 17);
+        Set<String> sampled = toSet(sample);
+        Assertions.assertEquals(sample.size(), sampled.size());
+        Assertions.assertTrue(all.containsAll(sampled));
+        Assertions.assertTrue(sampled.size() < all.size());
+        Assertions.assertEquals(sampled, toSet(bucket.sample(0.3, 17)));
+
+        List<byte[]> some = bucket.sampleN(100, 5);
+        Assertions.assertEquals(100, some.size());
+        Assertions.assertTrue(all.containsAll(toSet(some)));
+        Assertions.assertEquals(all.size(), bucket.sampleN(1000000, 5).size());
+
+        //jobs configured to sample read the same pieces
+        InputFormat informat = format.getInputFormatClass().newInstance();
+        JobConf conf = new JobConf();
+        FileInputFormat.addInputPath(conf, new Path(path));
+        BucketSampler.setSampling(conf, 0.3, 17);
+        Set<String> results = new HashSet<String>();
+        for(InputSplit split: informat.getSplits(conf, 1)) {
+            RecordReader<Text, BytesWritable> rr = informat.getRecordReader(split, conf, Reporter.NULL);
+            Text t = new Text();
+            BytesWritable b = new BytesWritable();
+            while(rr.next(t, b)) {
+                results.add(new String(Utils.getBytes(b)));
+            }
+            rr.close();
+        }
+        Assertions.assertEquals(sampled, results);
+    }
+
+    private static Set<String> toSet(List<byte[]> records) {
+        Set<String> ret = new HashSet<String>();
+        for(byte[] r: records) {
+            ret.add(new String(r));
+        }
+        return ret;
+    }
 
     protected abstract BucketSpec getSpec();
 }
@@ -2,6 +2,11 @@ package ca.gristle.hadoop.bucket;
 
 import ca.gristle.hadoop.formats.RecordInputStream;
 import ca.gristle.hadoop.formats.RecordOutputStream;
+import ca.gristle.hadoop.AutoJobExecutor;
+import ca.gristle.hadoop.Consolidator;
+import ca.gristle.hadoop.JobExecutor;
+import ca.gristle.hadoop.LocalJobExecutor;
+import ca.gristle.hadoop.MapReduceJobExecutor;
 import ca.gristle.hadoop.RenameMode;
 import ca.gristle.support.FSTestCase;
 import java.io.IOException;
@@ -13,6 +18,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -120,6 +126,45 @@ public class BucketOpsTest extends FSTestCase {
         Assertions.assertEquals(expected, results);
     }
 
+    @Test
+    public void testExecutors() throws Exception {
+        Configuration conf = new Configuration();
+        Assertions.assertTrue(JobExecutor.fromConf(conf) instanceof AutoJobExecutor);
+        conf.set(JobExecutor.EXECUTOR, JobExecutor.EXECUTOR_MAPREDUCE);
+        Assertions.assertTrue(JobExecutor.fromConf(conf) instanceof MapReduceJobExecutor);
+        conf.set(JobExecutor.EXECUTOR, JobExecutor.EXECUTOR_LOCAL);
+        Assertions.assertTrue(JobExecutor.fromConf(conf) instanceof LocalJobExecutor);
+        conf.set(JobExecutor.EXECUTOR, "nope");
+        try {
+            JobExecutor.fromConf(conf);
+            Assertions.fail("should reject unknown executors");
+        } catch(IllegalArgumentException e) {
+        }
+
+        for(JobExecutor executor: Arrays.asList(new MapReduceJobExecutor(), new LocalJobExecutor(2))) {
+            Bucket data = Bucket.create(local, getTmpPath(local, "data"));
+            for(int i=0; i<12; i++) {
+                writeStrings(data, "d" + (i % 3) + "/f" + i, "r" + i, "s" + i);
+            }
+            Bucket into = Bucket.create(local, getTmpPath(local, "into"));
+            writeStrings(into, "d0/existing", "x");
+            CopyArgs args = new CopyArgs();
+            args.executor = executor;
+            into.copyAppend(data, args);
+            Set<String> expected = new HashSet<String>(Arrays.asList("x"));
+            for(int i=0; i<12; i++) {
+                expected.add("r" + i);
+                expected.add("s" + i);
+            }
+            Assertions.assertEquals(expected, new HashSet<String>(readWithIt(into)));
+            Assertions.assertEquals(13, into.getUserFileNames().size());
+
+            into.consolidate(Consolidator.DEFAULT_CONSOLIDATION_SIZE, executor);
+            Assertions.assertEquals(1, into.getUserFileNames().size());
+            Assertions.assertEquals(expected, new HashSet<String>(readWithIt(into)));
+        }
+    }
+
     @Test
     public void testConsolidateStructured() throws Exception {
         String path = getTmpPath(fs, "bucket");
@@ -145,6 +190,44 @@ public class BucketOpsTest extends FSTestCase {
         assertBucketContents(bucket.getSubBucket("z/a"), "za1", "za2", "za3");
     }
 
+    private void assertManifestMatches(Bucket bucket) throws IOException {
+        Set<String> manifested = new HashSet<String>();
+        for(BucketManifest.Entry e: new BucketManifest(bucket.getFileSystem(), bucket.getRoot()).getEntries("")) {
+            manifested.add(e.getUserFileName());
+        }
+        Assertions.assertEquals(new Bucket(bucket.getFileSystem(), bucket.getRoot()).scanUserFiles("", true).keySet(), manifested);
+    }
+
+    @Test
+    public void testManifestMaintenance() throws Exception {
+        String path1 = getTmpPath(fs, "bucket");
+        String path2 = getTmpPath(fs, "bucket2");
+        Bucket<String> p1 = Bucket.create(fs, path1, BucketFormatFactory.getDefaultCopy().setStructure(new TestStructure()).setManifest(true));
+        Bucket<String> p2 = Bucket.create(fs, path2, BucketFormatFactory.getDefaultCopy().setStructure(new TestStructure()).setManifest(true));
+        emitObjectsToBucket(p1, "a1", "b1", "za1");
+        emitObjectsToBucket(p1, "a2", "zb1");
+        emitObjectsToBucket(p2, "a3", "c1");
+        assertManifestMatches(p1);
+
+        p1.consolidate();
+        assertManifestMatches(p1);
+        Assertions.assertEquals(4, p1.getUserFileNames().size());
+        assertBucketContents(p1, "a1", "b1", "za1", "a2", "zb1");
+
+        p1.moveAppend(p2);
+        assertManifestMatches(p1);
+        assertManifestMatches(p2);
+        Assertions.assertEquals(0, p2.getUserFileNames().size());
+        assertBucketContents(p1, "a1", "b1", "za1", "a2", "zb1", "a3", "c1");
+
+        String path3 = getTmpPath(fs, "bucket3");
+        Bucket<String> p3 = Bucket.create(fs, path3, BucketFormatFactory.getDefaultCopy().setStructure(new TestStructure()));
+        emitObjectsToBucket(p3, "a4", "zb2");
+        p1.copyAppend(p3);
+        assertManifestMatches(p1);
+        assertBucketContents(p1, "a1", "b1", "za1", "a2", "zb1", "a3", "c1", "a4", "zb2");
+    }
+
     protected static interface AppendOperation {
         public void append(Bucket into, Bucket data, int renameMode) throws IOException;
         public void append(Bucket into, Bucket data, CopyArgs args) throws IOException;
@@ -3,18 +3,35 @@ package ca.gristle.hadoop.bucket;
 import ca.gristle.hadoop.formats.RecordInputStream;
 import ca.gristle.hadoop.formats.RecordOutputStream;
 import ca.gristle.support.TestUtils;
+import ca.gristle.support.Utils;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
@@ -146,6 +163,71 @@ public class BucketTest {
         Assertions.assertEquals(records, returned);
     }
 
+    @Test
+    public void testPrefetchingIterator() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket<byte[]> bucket = Bucket.create(local, path);
+        for(int i=0; i<10; i++) {
+            List<String> strs = new ArrayList<String>();
+            for(int j=0; j<50; j++) strs.add(i + "-" + j);
+            writeStrings(bucket, "f" + i, strs);
+        }
+        List<String> serial = readWithIt(bucket);
+        Assertions.assertEquals(500, serial.size());
+
+        Configuration conf = new Configuration();
+        conf.setInt(Bucket.READ_PREFETCH_RECORDS, 4);
+        FileSystem smallQueueFs = FileSystem.newInstance(conf);
+        try {
+            Bucket<byte[]> prefetching = new Bucket<byte[]>(smallQueueFs, path);
+            Assertions.assertEquals(serial, readWithIt(prefetching.setReadPrefetch(3)));
+
+            Bucket<byte[]>.BucketIterator it = prefetching.iterator(3);
+            try {
+                for(int i=0; i<7; i++) {
+                    Assertions.assertEquals(serial.get(i), new String(it.next()));
+                }
+            } finally {
+                it.close();
+            }
+            Assertions.assertFalse(it.hasNext());
+            it.close();
+        } finally {
+            smallQueueFs.close();
+        }
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket<byte[]> bucket = Bucket.create(local, path);
+        for(int i=0; i<8; i++) {
+            List<String> strs = new ArrayList<String>();
+            for(int j=0; j<=i*10; j++) strs.add(i + "-" + j);
+            writeStrings(bucket, "a/f" + i, strs);
+        }
+        List<String> expected = readWithIt(bucket);
+
+        List<String> sequential = new ArrayList<String>();
+        for(byte[] b: bucket.stream().collect(Collectors.<byte[]>toList())) sequential.add(new String(b));
+        Assertions.assertEquals(expected, sequential);
+
+        List<String> parallel = new ArrayList<String>();
+        for(byte[] b: bucket.parallelStream().collect(Collectors.<byte[]>toList())) parallel.add(new String(b));
+        Assertions.assertEquals(expected, parallel);
+
+        Spliterator<byte[]> all = bucket.spliterator();
+        long total = all.estimateSize();
+        Spliterator<byte[]> firstHalf = all.trySplit();
+        Assertions.assertNotNull(firstHalf);
+        Assertions.assertEquals(total, firstHalf.estimateSize() + all.estimateSize());
+        Assertions.assertTrue(firstHalf.estimateSize() > 0 && all.estimateSize() > 0);
+
+        Stream<byte[]> partial = bucket.stream();
+        Assertions.assertEquals(expected.get(0), new String(partial.findFirst().get()));
+        partial.close();
+    }
+
     @Test
     public void testAtomicity() throws Exception {
         String path = TestUtils.getTmpPath(local, "bucket");
@@ -186,6 +268,323 @@ public class BucketTest {
         checkStoredFiles(bucket, path + "/a/b/c", path + "/e", path + "/100aaa", path + "/101/202/303");
     }
 
+    @Test
+    public void testManifest() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket bucket = Bucket.create(local, path, new BucketSpec(BucketFormatFactory.SEQUENCE_FILE).setManifest(true));
+        Assertions.assertTrue(bucket.hasManifest());
+        Assertions.assertTrue(local.exists(new Path(path, BucketManifest.MANIFEST)));
+        emitToBucket(bucket, "a/b/c", new byte[] {1});
+        emitToBucket(bucket, "e", new byte[] {1, 2});
+        checkUserFiles(bucket, "a/b/c", "e");
+        checkUserFiles(bucket.getSubBucket("a"), "b/c");
+        checkStoredFiles(bucket.getSubBucket("a/b"), path + "/a/b/c");
+
+        List<BucketManifest.Entry> entries = new BucketManifest(local, path).getEntries("");
+        Assertions.assertEquals(2, entries.size());
+        Assertions.assertEquals("a/b", entries.get(0).getAttrPath());
+        Assertions.assertEquals("c", entries.get(0).getName());
+        Assertions.assertEquals(local.getFileStatus(bucket.toStoredPath("a/b/c")).getLen(), entries.get(0).getSize());
+
+        //files moved behind the bucket's back aren't seen until the manifest is rebuilt
+        local.rename(bucket.toStoredPath("e"), bucket.toStoredPath("f"));
+        checkUserFiles(bucket, "a/b/c", "e");
+        bucket.rebuildManifest();
+        checkUserFiles(bucket, "a/b/c", "f");
+
+        bucket = new Bucket(local, path);
+        Assertions.assertTrue(bucket.hasManifest());
+        bucket.delete("f");
+        checkUserFiles(bucket, "a/b/c");
+        Bucket a = bucket.getSubBucket("a");
+        emitToBucket(a, "d", new byte[] {3});
+        checkUserFiles(bucket, "a/b/c", "a/d");
+        a.clear();
+        checkUserFiles(bucket);
+    }
+
+    @Test
+    public void testManifestReadRetriesAfterCompaction() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        final BucketManifest writer = new BucketManifest(local, path);
+        writer.replace(Collections.<String>emptyList(), false, Collections.singletonMap("a", 1L));
+        for(int i=0; i<4; i++) {
+            writer.update(Collections.singletonMap("f" + i, 1L), Collections.<String>emptyList());
+        }
+        //another process compacts the log just as this reader gets to its third file
+        final String third = BucketManifest.MANIFEST_LOG + 3;
+        final AtomicInteger compactions = new AtomicInteger();
+        FileSystem fs = new FilterFileSystem(local) {
+            @Override
+            public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+                if(f.getName().equals(third) && compactions.getAndIncrement()==0) {
+                    writer.replace(Collections.<String>emptyList(), false, Collections.singletonMap("g", 1L));
+                }
+                return super.open(f, bufferSize);
+            }
+        };
+        fs.setConf(local.getConf());
+        Assertions.assertEquals(Arrays.asList("a", "f0", "f1", "f2", "f3", "g"),
+            new ArrayList<String>(new BucketManifest(fs, path).read().keySet()));
+        Assertions.assertEquals(1, compactions.get());
+    }
+
+    @Test
+    public void testManifestLog() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket bucket = Bucket.create(local, path, new BucketSpec(BucketFormatFactory.SEQUENCE_FILE).setManifest(true));
+        for(int i=0; i<100; i++) {
+            emitToBucket(bucket, "d" + (i % 10) + "/f" + i, new byte[] {1});
+        }
+        //commits go to the log, which is folded into the manifest before it grows past COMPACT_LOGS files
+        FileStatus[] logs = local.globStatus(new Path(path, BucketManifest.MANIFEST_LOG + "*"));
+        Assertions.assertTrue(logs.length > 0 && logs.length <= BucketManifest.COMPACT_LOGS, logs.length + " log files");
+        bucket.delete("d0/f0");
+        SortedMap<String, BucketManifest.Entry> entries = new BucketManifest(local, path).read();
+        Assertions.assertEquals(99, entries.size());
+        Assertions.assertEquals(1, entries.get("d9/f99").getRecords());
+        Assertions.assertEquals(99, new Bucket(local, path).count());
+        Assertions.assertEquals(0, BucketManifest.getLockCount());
+
+        //a manifest moved aside by an interrupted rewrite is still read, log and all
+        local.rename(new Path(path, BucketManifest.MANIFEST), new Path(path, BucketManifest.MANIFEST_OLD));
+        Assertions.assertEquals(entries.keySet(), new BucketManifest(local, path).read().keySet());
+        bucket.rebuildManifest();
+        Assertions.assertFalse(local.exists(new Path(path, BucketManifest.MANIFEST_OLD)));
+        Assertions.assertEquals(0, local.globStatus(new Path(path, BucketManifest.MANIFEST_LOG + "*")).length);
+        Assertions.assertEquals(entries.keySet(), new BucketManifest(local, path).read().keySet());
+
+        //a fresh manifest ignores logs left by a deleted one
+        bucket.disableManifest();
+        Assertions.assertFalse(local.exists(new Path(path, BucketManifest.MANIFEST)));
+        bucket.enableManifest();
+        emitToBucket(bucket, "g", new byte[] {1});
+        Assertions.assertEquals(100, new BucketManifest(local, path).read().size());
+    }
+
+    @Test
+    public void testStoredFileStatuses() throws Exception {
+        for(boolean manifest: new boolean[] {false, true}) {
+            String path = TestUtils.getTmpPath(local, "bucket");
+            Bucket bucket = Bucket.create(local, path, new BucketSpec(BucketFormatFactory.SEQUENCE_FILE).setManifest(manifest));
+            emitToBucket(bucket, "a/b/c", new byte[] {1});
+            emitToBucket(bucket, "e", new byte[] {1, 2});
+            bucket.writeMetadata("a/meta", "m");
+
+            List<Path> stored = bucket.getStoredFiles();
+            List<FileStatus> stats = bucket.getStoredFileStatuses();
+            Assertions.assertEquals(stored.size(), stats.size());
+            for(int i=0; i<stats.size(); i++) {
+                Assertions.assertEquals(stored.get(i), stats.get(i).getPath());
+                Assertions.assertEquals(local.getFileStatus(stored.get(i)).getLen(), stats.get(i).getLen());
+            }
+
+            Set<Path> withMeta = new HashSet<Path>();
+            for(FileStatus stat: bucket.getStoredFileStatusesAndMetadata()) {
+                withMeta.add(stat.getPath());
+            }
+            Assertions.assertEquals(new HashSet<Path>(bucket.getStoredFilesAndMetadata()), withMeta);
+        }
+
+        FileStatus[] stats = Utils.getFileStatuses(local, Arrays.asList(new Path("/tmp"), new Path("/tmp/does/not/exist")));
+        Assertions.assertTrue(stats[0].isDirectory());
+        Assertions.assertNull(stats[1]);
+    }
+
+    @Test
+    public void testCounts() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket bucket = Bucket.create(local, path, new BucketSpec(BucketFormatFactory.SEQUENCE_FILE).setManifest(true));
+        emitToBucket(bucket, "a/b/c", new byte[] {1}, new byte[] {2});
+        emitToBucket(bucket, "a/d", new byte[] {1});
+        emitToBucket(bucket, "e", new byte[] {1, 2}, new byte[] {3}, new byte[] {4});
+        emitToBucket(bucket, "f");
+        Assertions.assertEquals(2, new BucketManifest(local, path).read().get("a/b/c").getRecords());
+
+        //a fresh bucket answers from the manifest alone
+        bucket = new Bucket(local, path);
+        Assertions.assertEquals(6, bucket.count());
+        Map<String, Long> expected = new HashMap<String, Long>();
+        expected.put("", 3L);
+        expected.put("a", 1L);
+        expected.put("a/b", 2L);
+        Assertions.assertEquals(expected, bucket.countByAttrPath());
+        Assertions.assertEquals(3, bucket.getSubBucket("a").count());
+        long size = 0;
+        for(String name: new String[] {"a/b/c", "a/d", "e"}) {
+            size += local.getFileStatus(bucket.toStoredPath(name)).getLen();
+        }
+        Assertions.assertEquals(size, bucket.sizeBytes());
+        Assertions.assertEquals(local.getFileStatus(bucket.toStoredPath("a/d")).getLen(), (long) bucket.sizeBytesByAttrPath().get("a"));
+
+        //files added behind the bucket's back are counted by reading them, and the counts are saved
+        Bucket other = Bucket.create(local, TestUtils.getTmpPath(local, "bucket2"), new BucketSpec(BucketFormatFactory.SEQUENCE_FILE));
+        emitToBucket(other, "g", new byte[] {1}, new byte[] {2});
+        local.rename(other.toStoredPath("g"), bucket.toStoredPath("g"));
+        bucket.rebuildManifest();
+        Assertions.assertEquals(-1, new BucketManifest(local, path).read().get("g").getRecords());
+        Assertions.assertEquals(3, new BucketManifest(local, path).read().get("e").getRecords());
+        Assertions.assertEquals(8, new Bucket(local, path).count());
+        Assertions.assertEquals(2, new BucketManifest(local, path).read().get("g").getRecords());
+
+        bucket.delete("e");
+        Assertions.assertEquals(5, bucket.count());
+
+        //without a manifest files are counted once per Bucket
+        bucket.disableManifest();
+        bucket = new Bucket(local, path);
+        Assertions.assertEquals(5, bucket.count());
+        Assertions.assertFalse(bucket.isEmpty());
+    }
+
+    @Test
+    public void testEnableManifest() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket bucket = Bucket.create(local, path);
+        emitToBucket(bucket, "a/b/c", new byte[] {1});
+        emitToBucket(bucket, "e", new byte[] {1, 2});
+        Assertions.assertFalse(bucket.hasManifest());
+        bucket.getSubBucket("a").enableManifest();
+
+        bucket = new Bucket(local, path);
+        Assertions.assertTrue(bucket.hasManifest());
+        checkUserFiles(bucket, "a/b/c", "e");
+        emitToBucket(bucket, "g", new byte[] {1});
+        Assertions.assertEquals(3, new BucketManifest(local, path).getEntries("").size());
+
+        bucket.disableManifest();
+        Assertions.assertFalse(local.exists(new Path(path, BucketManifest.MANIFEST)));
+        checkUserFiles(new Bucket(local, path), "a/b/c", "e", "g");
+    }
+
+    @Test
+    public void testParallelListing() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket bucket = Bucket.create(local, path);
+        for(int week=0; week<5; week++) {
+            for(int slice=0; slice<4; slice++) {
+                emitToBucket(bucket, week + "/" + slice + "/file" + slice, new byte[] {1});
+            }
+        }
+        emitToBucket(bucket, "top", new byte[] {1});
+        FSDataOutputStream hidden = local.create(new Path(path, "_temporary/0/hidden" + Bucket.EXTENSION));
+        hidden.write(new byte[] {1, 2, 3});
+        hidden.close();
+
+        List<String> serial = bucket.getUserFileNames();
+        Assertions.assertEquals(21, serial.size());
+        Assertions.assertEquals(serial, new Bucket(local, path).setListingThreads(8).getUserFileNames());
+        Assertions.assertEquals(bucket.getSubBucket("1").getUserFileNames(),
+                bucket.setListingThreads(3).getSubBucket("1").getUserFileNames());
+
+        Configuration conf = new Configuration();
+        conf.setBoolean(Bucket.LISTING_FLAT, true);
+        FileSystem flatFs = FileSystem.newInstance(conf);
+        try {
+            //the local filesystem's flat listing has no order of its own to put in walk order
+            Assertions.assertEquals(new HashSet<String>(serial), new HashSet<String>(new Bucket(flatFs, path).getUserFileNames()));
+            Assertions.assertEquals(new HashSet<String>(Arrays.asList("0/file0", "1/file1", "2/file2", "3/file3")),
+                    new HashSet<String>(new Bucket(flatFs, path + "/0").getUserFileNames()));
+            Assertions.assertEquals(new HashSet<String>(serial), new HashSet<String>(drain(new Bucket(flatFs, path).iterateUserFileNames())));
+        } finally {
+            flatFs.close();
+        }
+        //key order puts "a-b" first, a walk puts everything in "a" first
+        Assertions.assertTrue(AbstractBucket.comparePaths("a/x", "a-b") < 0);
+        Assertions.assertTrue(AbstractBucket.comparePaths("a-b", "a") > 0);
+        //so a streamed "a-b" waits while an "a" directory can still be listed, and nothing else does
+        Assertions.assertTrue(AbstractBucket.isHeldBack("a-b", "a-c"));
+        Assertions.assertTrue(AbstractBucket.isHeldBack("a-b", "a/x"));
+        Assertions.assertFalse(AbstractBucket.isHeldBack("a-b", "a0"));
+        Assertions.assertFalse(AbstractBucket.isHeldBack("a/x", "a/y"));
+    }
+
+    @Test
+    public void testKeyOrderedFlatListing() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket bucket = Bucket.create(local, path);
+        for(String name: new String[] {"a", "a-b/x", "a.c", "a/x", "a/y-z", "a/y/z", "a0", "b"}) {
+            emitToBucket(bucket, name, new byte[] {1});
+        }
+        List<String> walked = bucket.getUserFileNames();
+        Assertions.assertEquals(Arrays.asList("a/x", "a/y/z", "a/y-z", "a-b/x", "a", "a.c", "a0", "b"), walked);
+        //object stores list every key below a prefix in one call, in key order
+        Bucket keyOrdered = new Bucket(local, path) {
+            @Override
+            protected RemoteIterator<LocatedFileStatus> listFilesRecursive(Path dir) throws IOException {
+                final List<LocatedFileStatus> files = drain(local.listFiles(dir, true));
+                Collections.sort(files, new Comparator<LocatedFileStatus>() {
+                    public int compare(LocatedFileStatus a, LocatedFileStatus b) {
+                        return a.getPath().toString().compareTo(b.getPath().toString());
+                    }
+                });
+                return new RemoteIterator<LocatedFileStatus>() {
+                    private int _pos = 0;
+
+                    public boolean hasNext() {
+                        return _pos < files.size();
+                    }
+
+                    public LocatedFileStatus next() {
+                        return files.get(_pos++);
+                    }
+                };
+            }
+        };
+        Assertions.assertEquals(walked, keyOrdered.getUserFileNames());
+        Assertions.assertEquals(walked, drain(keyOrdered.iterateUserFileNames()));
+    }
+
+    @Test
+    public void testStreamingListing() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket bucket = Bucket.create(local, path);
+        for(int week=0; week<4; week++) {
+            for(int slice=0; slice<3; slice++) {
+                emitToBucket(bucket, week + "/" + slice + "/file", new byte[] {(byte) week});
+            }
+        }
+        FSDataOutputStream hidden = local.create(new Path(path, "_temporary/0/hidden" + Bucket.EXTENSION));
+        hidden.write(new byte[] {1, 2, 3});
+        hidden.close();
+
+        List<String> expected = bucket.getUserFileNames();
+        Assertions.assertEquals(12, expected.size());
+        Assertions.assertEquals(expected, drain(bucket.iterateUserFileNames()));
+        Assertions.assertEquals(expected, drain(new Bucket(local, path).setListingThreads(4).iterateUserFileNames()));
+        Assertions.assertEquals(bucket.getStoredFiles(), drain(bucket.iterateStoredFiles()));
+
+        //listings run a bounded distance ahead and stop when the iterator is closed
+        final AtomicInteger listings = new AtomicInteger();
+        Bucket counting = new Bucket(local, path) {
+            @Override
+            protected FileStatus[] listStatus(Path dir) throws IOException {
+                listings.incrementAndGet();
+                return super.listStatus(dir);
+            }
+        };
+        RemoteIterator<String> partial = counting.setListingThreads(2).iterateUserFileNames();
+        Assertions.assertEquals(expected.get(0), partial.next());
+        Bucket.closeIterator(partial);
+        Thread.sleep(100);
+        int listed = listings.get();
+        //the root, four weeks and twelve slices would be all 17 directories
+        Assertions.assertTrue(listed < 17, listed + " listings");
+        Thread.sleep(100);
+        Assertions.assertEquals(listed, listings.get());
+        Assertions.assertFalse(partial.hasNext());
+
+        int count = 0;
+        for(Object o: bucket) count++;
+        Assertions.assertEquals(12, count);
+    }
+
+    private static <T> List<T> drain(RemoteIterator<T> it) throws IOException {
+        List<T> ret = new ArrayList<T>();
+        while(it.hasNext()) ret.add(it.next());
+        return ret;
+    }
+
     @Test
     public void testSubBucket() throws Exception {
         String path = TestUtils.getTmpPath(local, "bucket");
@@ -299,6 +698,484 @@ public class BucketTest {
 
     }
 
+    @Test
+    public void testBatchWrites() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket<String> bucket = Bucket.create(local, path, BucketFormatFactory.getDefaultCopy().setStructure(new TestStructure()));
+        Bucket<String>.TypedRecordOutputStream os = bucket.openWrite();
+        os.writeObjects(Arrays.asList("a1", "b1", "za1", "a2", "zb1", "za2"));
+        os.writeObjects("a3", "c1");
+        os.close();
+        TestUtils.assertBucketContents(bucket, "a1", "b1", "za1", "a2", "zb1", "za2", "a3", "c1");
+        Assertions.assertEquals(Arrays.asList("a1", "a2", "a3"), readAll(bucket.getSubBucket("a")));
+        Assertions.assertEquals(Arrays.asList("za1", "za2"), readAll(bucket.getSubBucket("z/a")));
+
+        path = TestUtils.getTmpPath(local, "bucket");
+        bucket = Bucket.create(local, path, BucketFormatFactory.getDefaultCopy().setStructure(new ReusingStructure()));
+        os = bucket.openWrite();
+        os.writeObjects(Arrays.asList("a1", "b1", "za1", "a2", "zb1", "za2"));
+        os.close();
+        Assertions.assertEquals(Arrays.asList("a1", "a2"), readAll(bucket.getSubBucket("a")));
+        Assertions.assertEquals(Arrays.asList("b1"), readAll(bucket.getSubBucket("b")));
+        Assertions.assertEquals(Arrays.asList("za1", "za2"), readAll(bucket.getSubBucket("z/a")));
+
+        path = TestUtils.getTmpPath(local, "bucket");
+        Bucket blocked = Bucket.create(local, path, new BucketSpec("SequenceFile").setArg("compressionType", "block").setArg("compressionCodec", "default"));
+        RecordOutputStream raw = blocked.openWrite("f");
+        raw.writeRawBatch("abcdef".getBytes(), new int[] {0, 1, 3, 6}, 3);
+        raw.close();
+        Assertions.assertEquals(Arrays.asList("a", "bc", "def"), readAll(blocked));
+    }
+
+    //hands out the same list every time
+    public static class ReusingStructure extends TestStructure {
+        private List<String> _target = new ArrayList<String>();
+
+        @Override
+        public List<String> getTarget(String object) {
+            _target.clear();
+            _target.addAll(super.getTarget(object));
+            return _target;
+        }
+    }
+
+    public static class CountingStructure extends TestStructure {
+        static int validations = 0;
+
+        @Override
+        public boolean isValidTarget(String... dirs) {
+            validations++;
+            return super.isValidTarget(dirs);
+        }
+    }
+
+    @Test
+    public void testTargetsValidatedOnce() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket<String> bucket = Bucket.create(local, path, BucketFormatFactory.getDefaultCopy().setStructure(new CountingStructure()));
+        Bucket<String>.TypedRecordOutputStream os = bucket.openWrite();
+        int before = CountingStructure.validations;
+        for(int i=0; i<100; i++) {
+            os.writeObject("a" + i);
+            os.writeObject("za" + i);
+            os.writeObject("zb" + i);
+        }
+        os.close();
+        Assertions.assertEquals(3, CountingStructure.validations - before);
+        Assertions.assertEquals(100, readAll(bucket.getSubBucket("z/b")).size());
+    }
+
+    @Test
+    public void testBoundedWriters() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket<String> bucket = Bucket.create(local, path, BucketFormatFactory.getDefaultCopy().setStructure(new TestStructure()));
+        Bucket<String>.TypedRecordOutputStream os = bucket.setMaxOpenWriters(2).openWrite("part", false);
+        os.writeObject("a1");
+        os.writeObject("b1");
+        os.writeObject("c1");
+        //a was committed to make room for c, so this rolls a new part file
+        Assertions.assertTrue(bucket.exists("a/part"));
+        os.writeObject("a2");
+        os.writeObject("c2");
+        os.writeObject("b2");
+        os.close();
+        Assertions.assertEquals(new HashSet<String>(Arrays.asList("part", "part-1")),
+                new HashSet<String>(bucket.getSubBucket("a").getUserFileNames()));
+        //c stayed open because it was written more recently than b when b2 came along
+        Assertions.assertEquals(2, bucket.getSubBucket("b").getUserFileNames().size());
+        Assertions.assertEquals(1, bucket.getSubBucket("c").getUserFileNames().size());
+        TestUtils.assertBucketContents(bucket.getSubBucket("a"), "a1", "a2");
+        TestUtils.assertBucketContents(bucket.getSubBucket("b"), "b1", "b2");
+        Assertions.assertEquals(Arrays.asList("c1", "c2"), readAll(bucket.getSubBucket("c")));
+
+        Configuration conf = new Configuration();
+        conf.setLong(Bucket.WRITE_BUFFER_BUDGET, 1000);
+        conf.setLong(Bucket.WRITE_BUFFER_PER_WRITER, 1000);
+        FileSystem budgetFs = FileSystem.newInstance(conf);
+        try {
+            Bucket<String> budgeted = new Bucket<String>(budgetFs, path);
+            os = budgeted.openWrite("budget", false);
+            os.writeObject("a3");
+            os.writeObject("b3");
+            os.writeObject("a4");
+            os.close();
+            Assertions.assertTrue(budgeted.exists("a/budget") && budgeted.exists("a/budget-1"));
+        } finally {
+            budgetFs.close();
+        }
+    }
+
+
+    @Test
+    public void testFailedCloseNeverCommits() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket.create(local, path);
+        Bucket<byte[]> bucket = new Bucket<byte[]>(local, path) {
+            @Override
+            protected RecordOutputStream createOutputStream(Path p) throws IOException {
+                final RecordOutputStream os = super.createOutputStream(p);
+                if(!p.getName().startsWith("f.")) return os;
+                //fails the first close, and like most streams does nothing much on the second
+                return new RecordOutputStream() {
+                    private boolean tried = false;
+
+                    public void writeRaw(byte[] record) throws IOException {
+                        os.writeRaw(record);
+                    }
+
+                    public void writeRaw(byte[] record, int start, int length) throws IOException {
+                        os.writeRaw(record, start, length);
+                    }
+
+                    public void close() throws IOException {
+                        if(tried) return;
+                        tried = true;
+                        os.close();
+                        throw new IOException("disk full");
+                    }
+                };
+            }
+        };
+        RecordOutputStream os = bucket.openWrite("f");
+        os.writeRaw(new byte[] {1});
+        for(int i=0; i<2; i++) {
+            try {
+                os.close();
+                Assertions.fail("a failed close has to keep failing");
+            } catch(IOException e) {
+            }
+        }
+        Assertions.assertFalse(bucket.exists("f"));
+        //the partial data is gone rather than left for someone to commit
+        Assertions.assertFalse(local.exists(new Path(path, "f.bucketfiletmp")));
+    }
+
+    @Test
+    public void testEvictionRetriesFailedCommits() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket.create(local, path, BucketFormatFactory.getDefaultCopy().setStructure(new TestStructure()));
+        final AtomicInteger failures = new AtomicInteger(1);
+        Bucket<String> bucket = new Bucket<String>(local, path) {
+            @Override
+            protected boolean rename(Path source, Path dest) throws IOException {
+                if(dest.getName().startsWith("part") && failures.getAndDecrement() > 0) return false;
+                return super.rename(source, dest);
+            }
+        };
+        Bucket<String>.TypedRecordOutputStream os = bucket.setMaxOpenWriters(1).openWrite("part", false);
+        os.writeObject("a1");
+        try {
+            os.writeObject("b1");
+            Assertions.fail("evicting a should have failed");
+        } catch(IOException e) {
+        }
+        //a is still open, and committed by the next eviction
+        os.writeObject("b1");
+        Assertions.assertTrue(bucket.exists("a/part"));
+        os.close();
+        TestUtils.assertBucketContents(bucket.getSubBucket("a"), "a1");
+        TestUtils.assertBucketContents(bucket.getSubBucket("b"), "b1");
+    }
+    @Test
+    public void testAsyncWrites() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket<byte[]> bucket = Bucket.create(local, path);
+        bucket.setAsyncWriteBuffers(2);
+        List<String> records = new ArrayList<String>();
+        for(int i=0; i<1000; i++) records.add("r" + i);
+        writeStrings(bucket, "a/b", records);
+        Assertions.assertEquals(records, readAll(bucket));
+        try {
+            bucket.setAsyncWriteBuffers(1);
+            Assertions.fail("one buffer can't be written asynchronously");
+        } catch(IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testBloomFilters() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket<String> bucket = Bucket.create(local, path, BucketFormatFactory.getDefaultCopy().setStructure(new SortedFileFormatTest.KeyedStructure()));
+        bucket.setBloomFilterFpp(0.01);
+        for(int f=0; f<2; f++) {
+            Bucket<String>.TypedRecordOutputStream os = bucket.openWrite("file" + f, false);
+            for(int i=0; i<100; i++) {
+                os.writeObject("k" + (f * 100 + i) + ":" + i);
+            }
+            os.close();
+        }
+        Assertions.assertTrue(bucket.filesMightContain("k5".getBytes()).contains("k/file0"));
+        Assertions.assertTrue(bucket.filesMightContain("k105".getBytes()).contains("k/file1"));
+        int positives = 0;
+        for(int i=200; i<1200; i++) {
+            if(bucket.mightContain(("k" + i).getBytes())) positives++;
+        }
+        Assertions.assertTrue(positives < 60, positives + " false positives");
+
+        //files without filters can't be ruled out
+        bucket.setBloomFilterFpp(0);
+        Bucket<String>.TypedRecordOutputStream os = bucket.openWrite("file2", false);
+        os.writeObject("k999:x");
+        os.close();
+        Assertions.assertEquals(Arrays.asList("k/file2"), bucket.filesMightContain("k5000".getBytes()));
+
+        bucket.delete("k/file0");
+        Assertions.assertFalse(local.exists(bucket.toStoredBloomPath("k/file0")));
+        Assertions.assertTrue(local.exists(bucket.toStoredBloomPath("k/file1")));
+        List<String> files = bucket.filesMightContain("k105".getBytes());
+        Collections.sort(files);
+        Assertions.assertEquals(Arrays.asList("k/file1", "k/file2"), files);
+
+        //a file rewritten under the same name without a filter can't be ruled out by the old one
+        Path oldFilter = new Path(TestUtils.getTmpPath(local, "oldfilter"));
+        FileUtil.copy(local, bucket.toStoredBloomPath("k/file1"), local, oldFilter, false, local.getConf());
+        Bucket<String> other = new Bucket<String>(local, path);
+        Assertions.assertFalse(other.filesMightContain("k5000".getBytes()).contains("k/file1"));
+        bucket.clear();
+        Assertions.assertFalse(local.exists(bucket.toStoredBloomPath("k/file1")));
+        os = bucket.openWrite("file1", false);
+        os.writeObject("k5000:x");
+        os.close();
+        Assertions.assertEquals(Arrays.asList("k/file1"), other.filesMightContain("k5000".getBytes()));
+        //even when a stale filter is left behind
+        FileUtil.copy(local, oldFilter, local, bucket.toStoredBloomPath("k/file1"), false, local.getConf());
+        Assertions.assertNull(bucket.readBloomFilter("k/file1"));
+        Assertions.assertEquals(Arrays.asList("k/file1"), new Bucket<String>(local, path).filesMightContain("k5000".getBytes()));
+        //or one that doesn't say which file it was written for
+        RecordInputStream stale = bucket.createInputStream(oldFilter);
+        byte[] filter = stale.readRawRecord();
+        stale.close();
+        bucket.delete(bucket.toStoredBloomPath("k/file1"), false);
+        RecordOutputStream unlengthed = bucket.createMetadataOutputStream(bucket.toStoredBloomPath("k/file1"));
+        unlengthed.writeRaw(filter);
+        unlengthed.close();
+        Assertions.assertNull(new Bucket<String>(local, path).readBloomFilter("k/file1"));
+        Assertions.assertEquals(Arrays.asList("k/file1"), new Bucket<String>(local, path).filesMightContain("k5000".getBytes()));
+
+        Bucket<String> unkeyed = Bucket.create(local, TestUtils.getTmpPath(local, "bucket2"), BucketFormatFactory.getDefaultCopy().setStructure(new TestStructure()));
+        unkeyed.setBloomFilterFpp(0.01);
+        try {
+            unkeyed.openWrite("a", false).writeObject("abc");
+            Assertions.fail("bloom filters need keys");
+        } catch(IllegalStateException e) {
+        }
+    }
+
+    //records "e<n>" have the stat n, anything else has none
+    public static class StatsStructure extends TestStructure implements StatsBucketStructure<String> {
+        public List<String> getStatFields() {
+            return Arrays.asList("n");
+        }
+
+        public byte[][] getStatValues(String object) {
+            if(!object.startsWith("e")) return new byte[][] {null};
+            return new byte[][] {FileStats.sortable(Long.parseLong(object.substring(1)))};
+        }
+    }
+
+    public static class DeserializeCountingStructure extends StatsStructure {
+        static int deserialized = 0;
+
+        @Override
+        public String deserialize(byte[] serialized) {
+            deserialized++;
+            return super.deserialize(serialized);
+        }
+    }
+
+    @Test
+    public void testStatsFromWrittenObjects() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket<String> bucket = Bucket.create(local, path, BucketFormatFactory.getDefaultCopy().setStructure(new DeserializeCountingStructure()));
+        int before = DeserializeCountingStructure.deserialized;
+        Bucket<String>.TypedRecordOutputStream os = bucket.openWrite("file", false);
+        os.writeObject("e1");
+        os.writeObjects("e5", "e3");
+        os.close();
+        Assertions.assertEquals(before, DeserializeCountingStructure.deserialized);
+        FileStats stats = bucket.getStats("e/file");
+        Assertions.assertEquals(Arrays.asList(1L, 5L), Arrays.asList(decode(stats.getMin("n")), decode(stats.getMax("n"))));
+
+        //records written raw have to be read back once
+        os = bucket.openWrite("e/raw", false);
+        os.writeRaw("e7".getBytes());
+        os.writeRawBatch("e8e9".getBytes(), new int[] {0, 2, 4}, 2);
+        os.close();
+        Assertions.assertEquals(before + 3, DeserializeCountingStructure.deserialized);
+        stats = bucket.getStats("e/raw");
+        Assertions.assertEquals(Arrays.asList(7L, 9L), Arrays.asList(decode(stats.getMin("n")), decode(stats.getMax("n"))));
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket<String> bucket = Bucket.create(local, path, BucketFormatFactory.getDefaultCopy().setStructure(new StatsStructure()));
+        for(int f=0; f<3; f++) {
+            Bucket<String>.TypedRecordOutputStream os = bucket.openWrite("file" + f, false);
+            for(int i=0; i<10; i++) {
+                os.writeObject("e" + (f * 100 - 50 + i));
+            }
+            os.close();
+        }
+        FileStats stats = bucket.getStats("e/file1");
+        Assertions.assertEquals(10, stats.getRecords());
+        Assertions.assertEquals(Arrays.asList(50L, 59L), Arrays.asList(decode(stats.getMin("n")), decode(stats.getMax("n"))));
+        Assertions.assertNull(stats.getMin("other"));
+
+        Assertions.assertEquals(Arrays.asList("e/file0"), bucket.getUserFileNames(RangePredicate.atMost("n", -45)));
+        Assertions.assertEquals(Arrays.asList("e/file1"), bucket.getUserFileNames(RangePredicate.between("n", 0, 100)));
+        Assertions.assertEquals(0, bucket.getUserFileNames(RangePredicate.between("n", 60, 100)).size());
+        //unknown fields can't rule anything out
+        Assertions.assertEquals(3, bucket.getUserFileNames(RangePredicate.atLeast("other", 0)).size());
+        //neither can files without stats
+        bucket.setWriteStats(false);
+        Bucket<String>.TypedRecordOutputStream os = bucket.openWrite("file3", false);
+        os.writeObject("e1000");
+        os.close();
+        Assertions.assertFalse(local.exists(bucket.toStoredStatsPath("e/file3")));
+        Assertions.assertEquals(Arrays.asList("e/file2", "e/file3"), sorted(bucket.getUserFileNames(RangePredicate.atLeast("n", 150))));
+
+        //only the records of files that weren't pruned come back
+        List<String> read = new ArrayList<String>();
+        Bucket<String>.BucketIterator it = bucket.iterator(RangePredicate.atLeast("n", 150));
+        while(it.hasNext()) {
+            read.add(it.next());
+        }
+        it.close();
+        Assertions.assertEquals(11, read.size());
+        Assertions.assertTrue(read.contains("e1000"));
+
+        List<Path> paths = new PrunedBucketPathLister(RangePredicate.atMost("n", 0)).getPaths(bucket);
+        Assertions.assertEquals(Arrays.asList(bucket.toStoredPath("e/file0"), bucket.toStoredPath("e/file3")), sorted(paths));
+
+        //files with no values for a field can't match a predicate on it
+        bucket.setWriteStats(true);
+        os = bucket.openWrite("file4", false);
+        os.writeObject("x");
+        os.close();
+        Assertions.assertFalse(bucket.getUserFileNames(RangePredicate.atLeast("n", 150)).contains("x/file4"));
+
+        //overwriting replaces the stats
+        os = bucket.openWrite("file1", true);
+        os.writeObject("e500");
+        os.close();
+        Assertions.assertEquals(500L, decode(bucket.getStats("e/file1").getMin("n")));
+        bucket.delete("e/file1");
+        Assertions.assertFalse(local.exists(bucket.toStoredStatsPath("e/file1")));
+        Assertions.assertNull(bucket.getStats("e/file1"));
+    }
+
+    @Test
+    public void testStatsOfRewrittenFiles() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket<String> bucket = Bucket.create(local, path, BucketFormatFactory.getDefaultCopy().setStructure(new StatsStructure()));
+        Bucket<String>.TypedRecordOutputStream os = bucket.openWrite("file0", false);
+        for(int i=0; i<10; i++) {
+            os.writeObject("e" + i);
+        }
+        os.close();
+        Path oldStats = new Path(TestUtils.getTmpPath(local, "oldstats"));
+        FileUtil.copy(local, bucket.toStoredStatsPath("e/file0"), local, oldStats, false, local.getConf());
+        //caches the stats of the first file
+        Bucket<String> other = new Bucket<String>(local, path);
+        Assertions.assertEquals(0, other.getUserFileNames(RangePredicate.atLeast("n", 5000)).size());
+
+        bucket.clear();
+        Assertions.assertFalse(local.exists(bucket.toStoredStatsPath("e/file0")));
+        bucket.setWriteStats(false);
+        os = bucket.openWrite("file0", false);
+        os.writeObject("e5000");
+        os.close();
+        Assertions.assertEquals(Arrays.asList("e/file0"), other.getUserFileNames(RangePredicate.atLeast("n", 5000)));
+        Assertions.assertEquals(1, other.count());
+
+        //a stale sidecar left behind doesn't prune it either
+        FileUtil.copy(local, oldStats, local, bucket.toStoredStatsPath("e/file0"), false, local.getConf());
+        Assertions.assertNull(bucket.getStats("e/file0"));
+        Assertions.assertEquals(Arrays.asList("e/file0"), other.getUserFileNames(RangePredicate.atLeast("n", 5000)));
+        Assertions.assertEquals(Arrays.asList(bucket.toStoredPath("e/file0")), new PrunedBucketPathLister(RangePredicate.atLeast("n", 5000)).getPaths(new Bucket(local, path)));
+        List<String> read = new ArrayList<String>();
+        Bucket<String>.BucketIterator it = new Bucket<String>(local, path).iterator(RangePredicate.atLeast("n", 5000));
+        while(it.hasNext()) {
+            read.add(it.next());
+        }
+        it.close();
+        Assertions.assertEquals(Arrays.asList("e5000"), read);
+        Assertions.assertEquals(1, new Bucket<String>(local, path).count());
+        Assertions.assertFalse(new Bucket<String>(local, path).isEmpty());
+    }
+
+    @Test
+    public void testAttrPredicates() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket.create(local, path);
+        final List<String> listed = new ArrayList<String>();
+        Bucket bucket = new Bucket(local, path) {
+            @Override
+            protected RemoteIterator<FileStatus> listStatusIterator(Path dir) throws IOException {
+                listed.add(Utils.makeRelative(new Path(getInstanceRoot()).makeQualified(local), dir.makeQualified(local)));
+                return super.listStatusIterator(dir);
+            }
+        };
+        emitToBucket(bucket, "2024/01/us/a", new byte[] {1});
+        emitToBucket(bucket, "2024/01/eu/b", new byte[] {2});
+        emitToBucket(bucket, "2024/02/us/c", new byte[] {3});
+        emitToBucket(bucket, "2023/12/us/d", new byte[] {4});
+        emitToBucket(bucket, "2024/01/e", new byte[] {5});
+
+        AttrPredicate attrs = AttrPredicate.glob("2024/*/us");
+        Assertions.assertEquals(Arrays.asList("2024/01/us/a", "2024/02/us/c"), sorted(bucket.getUserFileNames(attrs)));
+        Assertions.assertFalse(listed.contains("2023"));
+        Assertions.assertFalse(listed.contains("2024/01/eu"));
+        Assertions.assertTrue(listed.contains("2024/01/us"));
+
+        Assertions.assertEquals(Arrays.asList(bucket.toStoredPath("2024/01/e")), bucket.getStoredFiles(AttrPredicate.glob("2024/01")));
+        Assertions.assertEquals(Arrays.asList(bucket.toStoredPath("2023/12/us/d")), new AllBucketPathLister(AttrPredicate.glob("2023/*/*")).getPaths(bucket));
+
+        Set<Integer> records = new HashSet<Integer>();
+        Bucket.BucketIterator it = bucket.iterator(new AttrPredicate() {
+            public boolean accept(List<String> dirs) {
+                return dirs.contains("eu") || dirs.contains("12");
+            }
+        });
+        while(it.hasNext()) {
+            records.add((int) ((byte[]) it.next())[0]);
+        }
+        it.close();
+        Assertions.assertEquals(new HashSet<Integer>(Arrays.asList(2, 4)), records);
+
+        //the manifest is filtered the same way
+        bucket.enableManifest();
+        Assertions.assertEquals(Arrays.asList("2024/01/us/a", "2024/02/us/c"), sorted(new Bucket(local, path).getUserFileNames(attrs)));
+    }
+
+    private static long decode(byte[] sortable) {
+        long ret = 0;
+        for(byte b: sortable) {
+            ret = (ret << 8) | (b & 0xFF);
+        }
+        return ret ^ Long.MIN_VALUE;
+    }
+
+    private static <T extends Comparable<T>> List<T> sorted(List<T> list) {
+        List<T> ret = new ArrayList<T>(list);
+        Collections.sort(ret);
+        return ret;
+    }
+
+    private List<String> readAll(Bucket<?> bucket) throws IOException {
+        List<String> ret = new ArrayList<String>();
+        for(String name: bucket.getUserFileNames()) {
+            RecordInputStream is = bucket.openRead(name);
+            byte[] record;
+            while((record = is.readRawRecord())!=null) {
+                ret.add(new String(record));
+            }
+            is.close();
+        }
+        return ret;
+    }
+
     @Test
     public void testMetadata() throws Exception {
         String path = TestUtils.getTmpPath(local, "bucket");
@@ -0,0 +1,90 @@
+package ca.gristle.hadoop.bucket;
+
+import ca.gristle.support.TestUtils;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class ConcatConsolidationTest {
+    static MiniDFSCluster cluster;
+    static FileSystem dfs;
+
+    @BeforeAll
+    public static void startCluster() throws Exception {
+        Configuration conf = new Configuration();
+        conf.set(MiniDFSCluster.HDFS_MINIDFS_BASEDIR, new File("target/minidfs").getAbsolutePath());
+        cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+        cluster.waitActive();
+        dfs = cluster.getFileSystem();
+    }
+
+    @AfterAll
+    public static void stopCluster() {
+        if(cluster!=null) cluster.shutdown();
+    }
+
+    private Set<String> fill(Bucket bucket) throws Exception {
+        Set<String> expected = new HashSet<String>();
+        for(int f=0; f<6; f++) {
+            List<String> records = new ArrayList<String>();
+            //one empty file, which concat can't take
+            for(int i=0; f>0 && i<1000; i++) {
+                records.add(f + "-" + i);
+            }
+            expected.addAll(records);
+            TestUtils.emitToBucket(bucket, "a/file" + f, records);
+        }
+        TestUtils.emitToBucket(bucket, "b/file", "b");
+        expected.add("b");
+        return expected;
+    }
+
+    private static Set<String> readAll(Bucket bucket) {
+        Set<String> ret = new HashSet<String>();
+        for(Object r: bucket) {
+            ret.add(new String((byte[]) r));
+        }
+        return ret;
+    }
+
+    @Test
+    public void testConcatsBlockFiles() throws Exception {
+        String path = TestUtils.getTmpPath(dfs, "concat");
+        Bucket bucket = Bucket.create(dfs, path, new BucketSpec(BucketFormatFactory.BLOCK_FILE));
+        Set<String> expected = fill(bucket);
+        bucket.consolidate();
+
+        Assertions.assertEquals(2, bucket.getUserFileNames().size());
+        Assertions.assertEquals(expected, readAll(bucket));
+        //joined in place rather than rewritten into a new subdirectory
+        for(Object name: bucket.getUserFileNames()) {
+            String parent = new Path((String) name).getParent().toString();
+            Assertions.assertTrue(parent.equals("a") || parent.equals("b"), name.toString());
+        }
+        Assertions.assertEquals(expected.size(), bucket.count());
+    }
+
+    @Test
+    public void testFallsBackToRewriting() throws Exception {
+        String path = TestUtils.getTmpPath(dfs, "concat");
+        Bucket bucket = Bucket.create(dfs, path, new BucketSpec(BucketFormatFactory.SEQUENCE_FILE));
+        Set<String> expected = fill(bucket);
+        bucket.consolidate();
+
+        //rewritten into one new file, since the job isn't limited to joining files within a directory
+        Assertions.assertEquals(1, bucket.getUserFileNames().size());
+        Assertions.assertEquals(expected, readAll(bucket));
+        String name = (String) bucket.getUserFileNames().get(0);
+        Assertions.assertTrue(name.contains("/cons"), name);
+    }
+}
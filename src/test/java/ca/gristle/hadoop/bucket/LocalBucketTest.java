@@ -0,0 +1,169 @@
+package ca.gristle.hadoop.bucket;
+
+import ca.gristle.hadoop.formats.RecordInputStream;
+import ca.gristle.hadoop.formats.RecordOutputStream;
+import ca.gristle.hadoop.formats.SimpleInputStream;
+import ca.gristle.hadoop.formats.SimpleOutputStream;
+import ca.gristle.support.TestUtils;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class LocalBucketTest {
+
+    private static class SimpleLocalBucket extends AbstractLocalBucket {
+        public SimpleLocalBucket(String root) throws IOException {
+            super(root);
+        }
+
+        @Override
+        protected RecordInputStream createInputStream(Path path) throws IOException {
+            return new SimpleInputStream(createLocalInputStream(path));
+        }
+
+        @Override
+        protected RecordOutputStream createOutputStream(Path path) throws IOException {
+            return new SimpleOutputStream(createLocalOutputStream(path));
+        }
+    }
+
+    private static void write(AbstractBucket bucket, String name, String... records) throws IOException {
+        RecordOutputStream os = bucket.openWrite(name);
+        for(String r: records) {
+            os.writeRaw(r.getBytes());
+        }
+        os.close();
+    }
+
+    @Test
+    public void testLocalOperations() throws Exception {
+        FileSystem local = FileSystem.getLocal(new Configuration());
+        String root = TestUtils.getTmpPath(local, "localbucket");
+        //a tiny buffer so records are written through the channel in many pieces
+        AbstractLocalBucket bucket = new SimpleLocalBucket(root).setWriteBufferBytes(3).setSyncOnClose(true);
+
+        write(bucket, "a", "rec1", "a much longer second record");
+        write(bucket, "x/y/b", "rec2");
+        write(bucket, "_hidden/c", "rec3");
+        Assertions.assertEquals(new HashSet<String>(Arrays.asList("a", "x/y/b", "_hidden/c")), new HashSet<String>(bucket.getUserFileNames()));
+        Assertions.assertEquals(0, bucket.getStoredUnfinishedFiles().size());
+
+        RecordInputStream is = bucket.openRead("a");
+        Assertions.assertEquals("rec1", new String(is.readRawRecord()));
+        Assertions.assertEquals("a much longer second record", new String(is.readRawRecord()));
+        Assertions.assertNull(is.readRawRecord());
+        is.close();
+
+        Map<String, Long> sizes = bucket.getUserFileSizes();
+        Assertions.assertEquals(new File(root, "x/y/b" + AbstractBucket.EXTENSION).length(), (long) sizes.get("x/y/b"));
+
+        try {
+            write(bucket, "a", "again");
+            Assertions.fail("should not replace an existing bucketfile");
+        } catch(IOException e) {
+        }
+        RecordOutputStream os = bucket.openWrite("a", true);
+        os.writeRaw("rec4".getBytes());
+        os.close();
+        is = bucket.openRead("a");
+        Assertions.assertEquals("rec4", new String(is.readRawRecord()));
+        is.close();
+
+        //leftovers from Hadoop's local filesystem aren't listed
+        Assertions.assertTrue(new File(root, "x/y/.b" + AbstractBucket.EXTENSION + ".crc").createNewFile());
+        Assertions.assertEquals(Arrays.asList("y"), bucket.getAttrsAtDir("x"));
+        Assertions.assertEquals(3, bucket.getStoredFiles().size());
+        bucket.delete("x/y/b");
+        Assertions.assertFalse(bucket.exists("x/y/b"));
+        Assertions.assertFalse(new File(root, "x/y/.b" + AbstractBucket.EXTENSION + ".crc").exists());
+        Assertions.assertEquals(new HashSet<String>(Arrays.asList("a", "_hidden/c")), new HashSet<String>(bucket.getUserFileNames()));
+
+        bucket.writeMetadata("meta", "value");
+        Assertions.assertEquals("value", bucket.getMetadata("meta"));
+        Assertions.assertEquals(Arrays.asList("meta"), bucket.getMetadataFileNames());
+    }
+
+    @Test
+    public void testRenameAndPrunedListing() throws Exception {
+        FileSystem local = FileSystem.getLocal(new Configuration());
+        String root = TestUtils.getTmpPath(local, "localbucket");
+        final List<String> listed = new ArrayList<String>();
+        AbstractLocalBucket bucket = new SimpleLocalBucket(root) {
+            @Override
+            protected RemoteIterator<FileStatus> listStatusIterator(Path path) throws IOException {
+                listed.add(path.getName());
+                return super.listStatusIterator(path);
+            }
+        };
+        write(bucket, "2024/us/a", "rec1");
+        write(bucket, "2024/eu/b", "rec2");
+        write(bucket, "2023/us/c", "rec3");
+        Assertions.assertEquals(Arrays.asList("2024/us/a"), bucket.getUserFileNames(AttrPredicate.glob("2024/us")));
+        Assertions.assertFalse(listed.contains("2023"));
+        Assertions.assertFalse(listed.contains("eu"));
+
+        Path a = bucket.toStoredPath("2024/us/a");
+        Path b = bucket.toStoredPath("2024/eu/b");
+        Assertions.assertFalse(bucket.rename(a, b));
+        Assertions.assertFalse(bucket.rename(new Path(root, "missing"), new Path(root, "other")));
+        Assertions.assertTrue(bucket.exists(a));
+        Path moved = new Path(root, "2024/moved" + AbstractBucket.EXTENSION);
+        Assertions.assertTrue(bucket.rename(a, moved));
+        Assertions.assertFalse(bucket.exists(a));
+        Assertions.assertEquals(new HashSet<String>(Arrays.asList("2023/us/c", "2024/eu/b", "2024/moved")), new HashSet<String>(bucket.getUserFileNames()));
+    }
+
+    @Test
+    public void testAbandonedListingClosesDirectories() throws Exception {
+        FileSystem local = FileSystem.getLocal(new Configuration());
+        String root = TestUtils.getTmpPath(local, "localbucket");
+        final AtomicInteger open = new AtomicInteger();
+        AbstractLocalBucket bucket = new SimpleLocalBucket(root) {
+            @Override
+            protected RemoteIterator<FileStatus> listStatusIterator(Path path) throws IOException {
+                final RemoteIterator<FileStatus> it = super.listStatusIterator(path);
+                Assertions.assertTrue(it instanceof Closeable);
+                open.incrementAndGet();
+                return new CloseableRemoteIterator<FileStatus>() {
+                    public boolean hasNext() throws IOException {
+                        return it.hasNext();
+                    }
+
+                    public FileStatus next() throws IOException {
+                        return it.next();
+                    }
+
+                    public void close() throws IOException {
+                        open.decrementAndGet();
+                        closeIterator(it);
+                    }
+                };
+            }
+        };
+        write(bucket, "2024/us/a", "rec1");
+        write(bucket, "2024/us/b", "rec2");
+        write(bucket, "2024/eu/c", "rec3");
+        RemoteIterator<String> names = bucket.iterateUserFileNames();
+        Assertions.assertTrue(names.hasNext());
+        names.next();
+        Assertions.assertTrue(open.get() > 0);
+        AbstractBucket.closeIterator(names);
+        Assertions.assertEquals(0, open.get());
+
+        Assertions.assertEquals(3, bucket.getUserFileNames().size());
+        Assertions.assertEquals(0, open.get());
+    }
+}
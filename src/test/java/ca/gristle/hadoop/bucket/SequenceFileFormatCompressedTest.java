@@ -1,5 +1,11 @@
 package ca.gristle.hadoop.bucket;
 
+import ca.gristle.hadoop.formats.RecordOutputStream;
+import ca.gristle.support.TestUtils;
+import org.apache.hadoop.fs.Path;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
 public class SequenceFileFormatCompressedTest extends BucketFormatTester {
 
     public SequenceFileFormatCompressedTest() throws Exception {
@@ -11,4 +17,17 @@ public class SequenceFileFormatCompressedTest extends BucketFormatTester {
         return new BucketSpec("SequenceFile").setArg("compressionType", "record").setArg("compressionCodec", "default");
     }
 
+    @Test
+    public void testAppendStoredNeedsSameCompression() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Path source = new Path(path, "source");
+        BucketFormat block = BucketFormatFactory.create(new BucketSpec("SequenceFile").setArg("compressionType", "block"));
+        RecordOutputStream os = block.getOutputStream(local, source);
+        os.writeRaw("a".getBytes());
+        os.close();
+
+        os = format.getOutputStream(local, new Path(path, "target"));
+        Assertions.assertFalse(os.appendStored(local, source));
+        os.close();
+    }
 }
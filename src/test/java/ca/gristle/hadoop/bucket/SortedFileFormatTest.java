@@ -0,0 +1,139 @@
+package ca.gristle.hadoop.bucket;
+
+import ca.gristle.hadoop.formats.RecordInputStream;
+import ca.gristle.support.TestUtils;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class SortedFileFormatTest {
+    FileSystem local;
+
+    public SortedFileFormatTest() throws Exception {
+        local = FileSystem.getLocal(new Configuration());
+    }
+
+    //records are "key:value", stored under the first letter of the key like TestStructure
+    public static class KeyedStructure extends TestStructure implements KeyedBucketStructure<String> {
+        static int keys = 0;
+
+        public byte[] getKey(String object) {
+            keys++;
+            return object.substring(0, object.indexOf(':')).getBytes();
+        }
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket<String> bucket = Bucket.create(local, path, new BucketSpec(BucketFormatFactory.SORTED_FILE).setArg("blockSize", 64).setStructure(new KeyedStructure()));
+        for(int f=0; f<3; f++) {
+            Bucket<String>.TypedRecordOutputStream os = bucket.openWrite("file" + f, false);
+            //written out of order and spread over the files
+            for(int i=299; i>=0; i--) {
+                if(i % 3 == f) os.writeObject("k" + (i % 100) + ":" + f + "-" + i);
+            }
+            os.close();
+        }
+
+        RecordInputStream is = bucket.openRead("k/file0");
+        String prev = "";
+        int records = 0;
+        byte[] record;
+        while((record = is.readRawRecord())!=null) {
+            String key = new String(record).split(":")[0];
+            Assertions.assertTrue(key.compareTo(prev) >= 0, key + " came after " + prev);
+            prev = key;
+            records++;
+        }
+        is.close();
+        Assertions.assertEquals(100, records);
+
+        int before = KeyedStructure.keys;
+        List<String> found = bucket.lookup("k42".getBytes());
+        Collections.sort(found);
+        Assertions.assertEquals(Arrays.asList("k42:0-42", "k42:1-142", "k42:2-242"), found);
+        //only the blocks covering the key were decoded
+        Assertions.assertTrue(KeyedStructure.keys - before < 100, "decoded " + (KeyedStructure.keys - before) + " keys");
+
+        Assertions.assertEquals(0, bucket.lookup("k42x".getBytes()).size());
+        Assertions.assertEquals(0, bucket.lookup("a".getBytes()).size());
+
+        //overwriting a file drops its cached index
+        Bucket<String>.TypedRecordOutputStream os = bucket.openWrite("file0", true);
+        os.writeObject("k42:new");
+        os.close();
+        found = bucket.lookup("k42".getBytes());
+        Collections.sort(found);
+        Assertions.assertEquals(Arrays.asList("k42:1-142", "k42:2-242", "k42:new"), found);
+
+        bucket.writeMetadata("meta", "not a keyed record");
+        Assertions.assertEquals("not a keyed record", bucket.getMetadata("meta"));
+    }
+
+    @Test
+    public void testSpilledRuns() throws Exception {
+        File tmp = new File(System.getProperty("java.io.tmpdir"));
+        int runsBefore = countRuns(tmp);
+        String path = TestUtils.getTmpPath(local, "bucket");
+        //a buffer of a few records, so the file is written as many runs
+        Bucket<String> bucket = Bucket.create(local, path, new BucketSpec(BucketFormatFactory.SORTED_FILE)
+                .setArg("blockSize", 64).setArg(SortedFileFormat.SORT_BUFFER_ARG, 500).setStructure(new KeyedStructure()));
+        Bucket<String>.TypedRecordOutputStream os = bucket.openWrite("file", false);
+        for(int i=0; i<500; i++) {
+            os.writeObject("k" + (i * 7 % 50) + ":" + i);
+        }
+        os.close();
+        Assertions.assertEquals(runsBefore, countRuns(tmp));
+
+        RecordInputStream is = bucket.openRead("k/file");
+        String prevKey = "";
+        int prevIndex = -1;
+        int records = 0;
+        byte[] record;
+        while((record = is.readRawRecord())!=null) {
+            String[] parts = new String(record).split(":");
+            int cmp = parts[0].compareTo(prevKey);
+            Assertions.assertTrue(cmp >= 0, parts[0] + " came after " + prevKey);
+            int index = Integer.parseInt(parts[1]);
+            //records with equal keys keep the order they were written in
+            if(cmp==0) Assertions.assertTrue(index > prevIndex, index + " came after " + prevIndex);
+            prevKey = parts[0];
+            prevIndex = index;
+            records++;
+        }
+        is.close();
+        Assertions.assertEquals(500, records);
+        Assertions.assertEquals(10, bucket.lookup("k42".getBytes()).size());
+    }
+
+    private static int countRuns(File dir) {
+        int ret = 0;
+        for(String name: dir.list()) {
+            if(name.startsWith("sortrun")) ret++;
+        }
+        return ret;
+    }
+
+    @Test
+    public void testNeedsKeyedStructure() throws Exception {
+        try {
+            BucketFormatFactory.create(new BucketSpec(BucketFormatFactory.SORTED_FILE).setStructure(new TestStructure()));
+            Assertions.fail("should need a keyed structure");
+        } catch(IllegalArgumentException e) {
+        }
+
+        String path = TestUtils.getTmpPath(local, "bucket");
+        Bucket<String> bucket = Bucket.create(local, path, BucketFormatFactory.getDefaultCopy().setStructure(new TestStructure()));
+        try {
+            bucket.lookup("a".getBytes());
+            Assertions.fail("lookups need the sorted format");
+        } catch(IllegalStateException e) {
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package ca.gristle.hadoop.formats;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+
+public class AsyncRecordOutputStreamTest {
+
+    @Test
+    public void testWritesInOrder() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        //small buffers so records are handed off many times and some records span more than a buffer
+        RecordOutputStream os = new AsyncRecordOutputStream(new SimpleOutputStream(bytes), 2, 16);
+        for(int i=0; i<5000; i++) {
+            os.writeRaw(("record" + i).getBytes());
+        }
+        os.writeRawBatch("xyzzy".getBytes(), new int[] {0, 2, 5}, 2);
+        os.close();
+
+        SimpleInputStream is = new SimpleInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for(int i=0; i<5000; i++) {
+            Assertions.assertArrayEquals(("record" + i).getBytes(), is.readRawRecord());
+        }
+        Assertions.assertArrayEquals("xy".getBytes(), is.readRawRecord());
+        Assertions.assertArrayEquals("zzy".getBytes(), is.readRawRecord());
+        Assertions.assertNull(is.readRawRecord());
+    }
+
+    @Test
+    public void testSurfacesFailures() throws IOException {
+        RecordOutputStream failing = new RecordOutputStream() {
+            public void writeRaw(byte[] record) throws IOException {
+                writeRaw(record, 0, record.length);
+            }
+
+            public void writeRaw(byte[] record, int start, int length) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            public void close() {
+            }
+        };
+        RecordOutputStream os = new AsyncRecordOutputStream(failing, 3, 1024);
+        os.writeRaw(new byte[] {1, 2, 3});
+        try {
+            os.close();
+            Assertions.fail("should rethrow the background failure");
+        } catch(IOException e) {
+            Assertions.assertEquals("disk full", e.getMessage());
+        }
+        //the failure sticks rather than the stream looking cleanly closed
+        try {
+            os.close();
+            Assertions.fail("should rethrow on a second close");
+        } catch(IOException e) {
+            Assertions.assertEquals("disk full", e.getMessage());
+        }
+        try {
+            os.writeRaw(new byte[] {4});
+            Assertions.fail("closed streams can't be written");
+        } catch(IOException e) {
+            Assertions.assertEquals("disk full", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testInterruptedClose() throws IOException {
+        final boolean[] closed = new boolean[] {false};
+        RecordOutputStream delegate = new RecordOutputStream() {
+            public void writeRaw(byte[] record) throws IOException {
+                writeRaw(record, 0, record.length);
+            }
+
+            public void writeRaw(byte[] record, int start, int length) {
+            }
+
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        RecordOutputStream os = new AsyncRecordOutputStream(delegate, 2, 1024);
+        os.writeRaw(new byte[] {1, 2, 3});
+        Thread.currentThread().interrupt();
+        try {
+            os.close();
+            Assertions.fail("should be interrupted");
+        } catch(InterruptedIOException e) {
+        }
+        Assertions.assertTrue(Thread.interrupted());
+        Assertions.assertTrue(closed[0]);
+        try {
+            os.close();
+            Assertions.fail("an interrupted close didn't flush, so it can't succeed later");
+        } catch(InterruptedIOException e) {
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ca.gristle.hadoop.formats;
+
+import ca.gristle.hadoop.bucket.BucketFormat;
+import ca.gristle.hadoop.bucket.BucketFormatFactory;
+import ca.gristle.hadoop.bucket.BucketSpec;
+import ca.gristle.support.TestUtils;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+
+public class MappedFileInputStreamTest {
+
+    @Test
+    public void testReadsAcrossSegments() throws IOException {
+        LocalFileSystem local = FileSystem.getLocal(new Configuration());
+        Path path = new Path(TestUtils.getTmpPath(local, "mapped"));
+        byte[] data = new byte[10000];
+        new Random(7).nextBytes(data);
+        FSDataOutputStream out = local.create(path);
+        out.write(data);
+        out.close();
+
+        MappedFileInputStream is = new MappedFileInputStream(local.pathToFile(path), 64);
+        Assertions.assertEquals(data.length, is.getLength());
+        byte[] read = new byte[data.length];
+        int n = 0;
+        while(n < read.length) {
+            n += is.read(read, n, Math.min(100, read.length - n));
+        }
+        Assertions.assertArrayEquals(data, read);
+        Assertions.assertEquals(-1, is.read());
+
+        is.seek(63);
+        Assertions.assertEquals(data[63] & 0xFF, is.read());
+        Assertions.assertEquals(data[64] & 0xFF, is.read());
+
+        byte[] positioned = new byte[300];
+        is.readFully(1000, positioned);
+        Assertions.assertArrayEquals(Arrays.copyOfRange(data, 1000, 1300), positioned);
+        Assertions.assertEquals(65, is.getPos());
+
+        ByteBuffer buf = ByteBuffer.allocate(200);
+        Assertions.assertEquals(200, is.read(buf));
+        Assertions.assertArrayEquals(Arrays.copyOfRange(data, 65, 265), buf.array());
+
+        ByteBuffer slice = is.slice(130, 60);
+        Assertions.assertEquals(60, slice.remaining());
+        Assertions.assertEquals(data[130], slice.get(0));
+        Assertions.assertNull(is.slice(100, 60));
+        is.close();
+    }
+
+    @Test
+    public void testFormatsReadMapped() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setBoolean(MappedFileInputStream.ENABLED, true);
+        //tiny mappings so records and blocks straddle them
+        conf.setInt(MappedFileInputStream.SEGMENT_BYTES, 100);
+        FileSystem local = FileSystem.newInstance(FileSystem.getDefaultUri(conf), conf);
+        String root = TestUtils.getTmpPath(local, "mappedformats");
+        BucketSpec[] specs = new BucketSpec[] {
+                new BucketSpec("SequenceFile"),
+                new BucketSpec("BlockFile").setArg("compressionCodec", "none").setArg("blockSize", 50),
+                new BucketSpec("BlockFile").setArg("blockSize", 500)};
+        for(int s=0; s<specs.length; s++) {
+            BucketFormat format = BucketFormatFactory.create(specs[s]);
+            Path path = new Path(root, "" + s);
+            RecordOutputStream os = format.getOutputStream(local, path);
+            for(int i=0; i<1000; i++) {
+                os.writeRaw(("record" + i).getBytes());
+            }
+            os.close();
+
+            FSDataInputStream in = MappedFileInputStream.open(local, path);
+            Assertions.assertTrue(in.getWrappedStream() instanceof MappedFileInputStream);
+            in.close();
+
+            RecordInputStream is = format.getInputStream(local, path);
+            for(int i=0; i<1000; i++) {
+                Assertions.assertArrayEquals(("record" + i).getBytes(), is.readRawRecord());
+            }
+            Assertions.assertNull(is.readRawRecord());
+            is.close();
+        }
+
+        //checksummed reads unless mapping is asked for
+        conf.unset(MappedFileInputStream.ENABLED);
+        FileSystem unmapped = FileSystem.newInstance(FileSystem.getDefaultUri(conf), conf);
+        FSDataInputStream in = MappedFileInputStream.open(unmapped, new Path(root, "0"));
+        Assertions.assertFalse(in.getWrappedStream() instanceof MappedFileInputStream);
+        in.close();
+    }
+}
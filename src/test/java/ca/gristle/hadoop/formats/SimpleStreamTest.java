@@ -3,6 +3,7 @@ package ca.gristle.hadoop.formats;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import ca.gristle.support.TestUtils;
 import org.apache.hadoop.conf.Configuration;
@@ -33,5 +34,13 @@ public class SimpleStreamTest {
         Assertions.assertNull(is.readRawRecord());
         Assertions.assertNull(is.readRawRecord());
         is.close();
+
+        is = new SimpleInputStream(new FileInputStream(path));
+        for(int i=0; i<=10000; i++) {
+            ByteBuffer record = is.readRecord();
+            Assertions.assertEquals("prefix" + i + "suffix", new String(record.array(), record.position(), record.remaining()));
+        }
+        Assertions.assertNull(is.readRecord());
+        is.close();
     }
 }
@@ -0,0 +1,100 @@
+package ca.gristle.support;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class SubsetSumTest {
+    static class Item implements SubsetSum.Value {
+        long value;
+
+        Item(long value) {
+            this.value = value;
+        }
+
+        public long getValue() {
+            return value;
+        }
+    }
+
+    private static List<Item> items(long... values) {
+        List<Item> ret = new ArrayList<Item>();
+        for(long v: values) {
+            ret.add(new Item(v));
+        }
+        return ret;
+    }
+
+    private static void checkPacking(List<Item> input, long target, SubsetSum.Packing<Item> packing) {
+        Map<Item, Boolean> seen = new IdentityHashMap<Item, Boolean>();
+        for(List<Item> bin: packing.getBins()) {
+            Assertions.assertFalse(bin.isEmpty());
+            long sum = 0;
+            for(Item i: bin) {
+                Assertions.assertNull(seen.put(i, true), "packed twice");
+                sum += i.value;
+            }
+            if(bin.size() > 1) Assertions.assertTrue(sum <= target, "bin of " + sum + " over " + target);
+            else if(bin.get(0).value >= target) Assertions.assertEquals(1, bin.size());
+        }
+        Assertions.assertEquals(input.size(), seen.size());
+    }
+
+    @Test
+    public void testStrategies() {
+        for(SubsetSum.Strategy strategy: SubsetSum.Strategy.values()) {
+            List<Item> input = items(1, 2, 5, 2, 4, 1, 3, 2, 12, 10);
+            SubsetSum.Packing<Item> packing = SubsetSum.pack(input, 10, strategy);
+            checkPacking(input, 10, packing);
+            //the big ones alone, the rest filling two bins exactly
+            Assertions.assertEquals(4, packing.getBins().size(), strategy.name());
+            Assertions.assertEquals(2, packing.getOversized());
+            Assertions.assertEquals(2, packing.getLowerBound());
+            Assertions.assertEquals(1.0, packing.getEfficiency(), 1e-9);
+            //the input isn't reordered
+            Assertions.assertEquals(5, input.get(2).value);
+        }
+        Assertions.assertEquals(0, SubsetSum.pack(new ArrayList<Item>(), 10, SubsetSum.Strategy.BEST_FIT_DECREASING).getBins().size());
+        Assertions.assertEquals(1.0, SubsetSum.pack(items(20), 10, SubsetSum.Strategy.FIRST_FIT_DECREASING).getEfficiency(), 1e-9);
+    }
+
+    @Test
+    public void testRandom() {
+        Random rand = new Random(17);
+        for(int trial=0; trial<20; trial++) {
+            List<Item> input = new ArrayList<Item>();
+            int n = 1 + rand.nextInt(300);
+            for(int i=0; i<n; i++) {
+                input.add(new Item(rand.nextInt(120)));
+            }
+            SubsetSum.Packing<Item> greedy = SubsetSum.pack(input, 100, SubsetSum.Strategy.GREEDY);
+            checkPacking(input, 100, greedy);
+            for(SubsetSum.Strategy strategy: new SubsetSum.Strategy[] {SubsetSum.Strategy.FIRST_FIT_DECREASING, SubsetSum.Strategy.BEST_FIT_DECREASING}) {
+                SubsetSum.Packing<Item> packing = SubsetSum.pack(input, 100, strategy);
+                checkPacking(input, 100, packing);
+                //decreasing fits are within 11/9 OPT + 1
+                long bins = packing.getBins().size() - packing.getOversized();
+                Assertions.assertTrue(bins <= (11 * packing.getLowerBound()) / 9 + 1, packing.toString());
+            }
+        }
+    }
+
+    @Test
+    public void testFromConf() {
+        Configuration conf = new Configuration(false);
+        Assertions.assertEquals(SubsetSum.Strategy.BEST_FIT_DECREASING, SubsetSum.Strategy.fromConf(conf, "packing"));
+        conf.set("packing", "first_fit_decreasing");
+        Assertions.assertEquals(SubsetSum.Strategy.FIRST_FIT_DECREASING, SubsetSum.Strategy.fromConf(conf, "packing"));
+        conf.set("packing", "worst");
+        try {
+            SubsetSum.Strategy.fromConf(conf, "packing");
+            Assertions.fail("unknown strategy");
+        } catch(IllegalArgumentException e) {
+        }
+    }
+}